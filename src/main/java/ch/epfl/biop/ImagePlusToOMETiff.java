@@ -203,6 +203,8 @@ public class ImagePlusToOMETiff {
                     OMETiffExporter.OMETiffExporterBuilder.MetaData.MetaDataBuilder builder =
                             OMETiffExporter.builder()
                                     .put(sources)
+                                    // Level 0 is copied from the stack of the image
+                                    .setImagePlus(image)
                                     .defineMetaData(image.getTitle())
                                     .putMetadataFromSources(sources, u)
                                     .pixelsTimeIncrementInS(image.getCalibration().frameInterval);
@@ -0,0 +1,310 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.kheops;
+
+import ch.epfl.biop.bdv.img.ResourcePool;
+import loci.formats.IFormatReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * A pool of Bio-Formats readers which sizes itself on the contention it sees.
+ * <p>
+ * How many readers an export needs depends on the format: decoding a JPEG
+ * tile of a VSI file keeps a reader busy for milliseconds, a LIF plane is
+ * little more than a file read. A fixed pool is either too small for the
+ * first or a waste of memory for the second, and it is shared by every series
+ * exported in parallel. This pool starts with a single reader and opens
+ * another one whenever a thread has waited more than {@code growAfterMs} for
+ * one, up to {@code maxSize}; a reader left idle for more than
+ * {@code shrinkAfterMs} is closed, down to one.
+ * <p>
+ * What happened is counted - acquisitions, waits, time waited, readers opened
+ * and closed, time spent idle - see {@link #toString()}.
+ */
+public class ElasticReaderPool extends ResourcePool<IFormatReader> {
+
+    private final Supplier<IFormatReader> readerSupplier;
+    private final int maxSize;
+    private final long growAfterMs;
+    private final long shrinkAfterMs;
+
+    /** Idle readers, the most recently used first */
+    private final LinkedBlockingDeque<Idle> idle = new LinkedBlockingDeque<>();
+    /** Readers open or being opened */
+    private final AtomicInteger open = new AtomicInteger();
+    private final AtomicBoolean growing = new AtomicBoolean();
+    private volatile boolean shutDown = false;
+
+    private final AtomicLong acquisitions = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitedNs = new AtomicLong();
+    private final AtomicLong opened = new AtomicLong();
+    private final AtomicLong closed = new AtomicLong();
+    private final AtomicLong idleNs = new AtomicLong();
+    private final AtomicInteger peak = new AtomicInteger();
+
+    private static final class Idle {
+        final IFormatReader reader;
+        final long since = System.nanoTime();
+
+        Idle(IFormatReader reader) {
+            this.reader = reader;
+        }
+    }
+
+    /**
+     * @param readerSupplier opens a new reader, ready to read
+     * @param maxSize maximal number of readers open at the same time
+     * @param growAfterMs how long a thread may wait for a reader before another one is opened
+     * @param shrinkAfterMs how long a reader may stay idle before it is closed
+     */
+    public ElasticReaderPool(Supplier<IFormatReader> readerSupplier, int maxSize,
+                             long growAfterMs, long shrinkAfterMs) {
+        super(Math.max(1, maxSize), true);
+        this.readerSupplier = readerSupplier;
+        this.maxSize = Math.max(1, maxSize);
+        this.growAfterMs = growAfterMs;
+        this.shrinkAfterMs = shrinkAfterMs;
+    }
+
+    /**
+     * How many readers fit in a quarter of the heap
+     * @param bytesPerReader memory held by an open reader, in bytes
+     * @return at least 1
+     */
+    public static int memoryCap(long bytesPerReader) {
+        long quarter = Runtime.getRuntime().maxMemory() / 4;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, quarter / Math.max(1, bytesPerReader)));
+    }
+
+    /**
+     * @return a reader, to give back with {@link #recycle}
+     * @throws IllegalStateException once the pool is shut down
+     */
+    @Override
+    public IFormatReader acquire() {
+        checkNotShutDown();
+        acquisitions.incrementAndGet();
+        IFormatReader reader = take();
+        if (reader == null && reserve(1)) {
+            // The first reader, or every reader is gone
+            reader = openReader();
+        }
+        if (reader != null) return notShutDown(reader);
+        long start = System.nanoTime();
+        waits.incrementAndGet();
+        try {
+            reader = takeWithin(growAfterMs);
+            // One reader opened at a time: opening one can take seconds, during
+            // which every thread would otherwise open its own
+            if ((reader == null) && growing.compareAndSet(false, true)) {
+                try {
+                    if (reserve(maxSize)) reader = openReader();
+                } finally {
+                    growing.set(false);
+                }
+            }
+            while (reader == null) {
+                // The readers in use are closed as they come back
+                checkNotShutDown();
+                reader = takeWithin(1000);
+            }
+            return notShutDown(reader);
+        } finally {
+            waitedNs.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void recycle(IFormatReader reader) {
+        if (reader == null) return;
+        if (shutDown) {
+            close(reader);
+            return;
+        }
+        idle.offerFirst(new Idle(reader));
+        shrink();
+    }
+
+    @Override
+    public IFormatReader createObject() {
+        return readerSupplier.get();
+    }
+
+    /**
+     * Closes the idle readers, and the others as they are recycled
+     * @param closer closes a reader
+     */
+    @Override
+    public void shutDown(Consumer<IFormatReader> closer) {
+        shutDown = true;
+        List<Idle> readers = new ArrayList<>();
+        idle.drainTo(readers);
+        for (Idle i : readers) {
+            closer.accept(i.reader);
+            open.decrementAndGet();
+            closed.incrementAndGet();
+        }
+    }
+
+    /** @return the highest number of readers the pool opens */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /** @return the number of readers currently open */
+    public int getOpenReaders() {
+        return open.get();
+    }
+
+    /** @return the highest number of readers open at the same time */
+    public int getPeakReaders() {
+        return peak.get();
+    }
+
+    /** @return how many times a reader was acquired */
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    /** @return how many acquisitions found no idle reader */
+    public long getWaits() {
+        return waits.get();
+    }
+
+    /** @return the time spent waiting for a reader, in ms, all threads together */
+    public long getWaitedMs() {
+        return TimeUnit.NANOSECONDS.toMillis(waitedNs.get());
+    }
+
+    /** @return how many readers were opened */
+    public long getOpened() {
+        return opened.get();
+    }
+
+    /** @return how many readers were closed */
+    public long getClosed() {
+        return closed.get();
+    }
+
+    /** @return the time readers spent idle in the pool, in ms, all readers together */
+    public long getIdleMs() {
+        return TimeUnit.NANOSECONDS.toMillis(idleNs.get());
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "reader pool: %d acquisitions, %d waits (%d ms), " +
+                "%d readers opened, %d closed, peak %d of %d, %d ms idle", getAcquisitions(),
+                getWaits(), getWaitedMs(), getOpened(), getClosed(), getPeakReaders(),
+                maxSize, getIdleMs());
+    }
+
+    private void checkNotShutDown() {
+        if (shutDown) throw new IllegalStateException("The reader pool is shut down");
+    }
+
+    /** @return the reader, or closes it if the pool was shut down meanwhile */
+    private IFormatReader notShutDown(IFormatReader reader) {
+        if (shutDown) {
+            close(reader);
+            checkNotShutDown();
+        }
+        return reader;
+    }
+
+    private IFormatReader take() {
+        return unwrap(idle.pollFirst());
+    }
+
+    private IFormatReader takeWithin(long ms) {
+        try {
+            return unwrap(idle.pollFirst(ms, TimeUnit.MILLISECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a reader", e);
+        }
+    }
+
+    private IFormatReader unwrap(Idle i) {
+        if (i == null) return null;
+        idleNs.addAndGet(System.nanoTime() - i.since);
+        return i.reader;
+    }
+
+    /** @return true if one more reader may be opened, and is counted as open */
+    private boolean reserve(int limit) {
+        while (true) {
+            int n = open.get();
+            if (n >= limit) return false;
+            if (open.compareAndSet(n, n + 1)) {
+                peak.accumulateAndGet(n + 1, Math::max);
+                return true;
+            }
+        }
+    }
+
+    private IFormatReader openReader() {
+        try {
+            IFormatReader reader = createObject();
+            opened.incrementAndGet();
+            return reader;
+        } catch (RuntimeException e) {
+            open.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /** Closes the readers idle for too long, the least recently used first */
+    private synchronized void shrink() {
+        Idle oldest;
+        while ((open.get() > 1) && ((oldest = idle.peekLast()) != null) &&
+                (System.nanoTime() - oldest.since > TimeUnit.MILLISECONDS.toNanos(shrinkAfterMs))) {
+            if (idle.removeLastOccurrence(oldest)) {
+                unwrap(oldest);
+                close(oldest.reader);
+            }
+        }
+    }
+
+    private void close(IFormatReader reader) {
+        open.decrementAndGet();
+        try {
+            reader.close();
+            closed.incrementAndGet();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
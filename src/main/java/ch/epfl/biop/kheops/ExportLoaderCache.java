@@ -0,0 +1,185 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.kheops;
+
+import net.imglib2.cache.CacheLoader;
+import net.imglib2.cache.LoaderCache;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
+
+import java.lang.reflect.Array;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * The cache of the source blocks during an export: bounded in bytes, and
+ * evicting in the order the export consumes the blocks.
+ * <p>
+ * A {@code BoundedSoftRefLoaderCache} counts blocks, whatever their pixel type,
+ * and leaves the rest to soft references, which the garbage collector clears
+ * whenever it wants to - typically all at once, under memory pressure. An export
+ * reads level 0 once, tile after tile and row after row: a block is needed
+ * again only if it straddles the tile being computed and the next one, along x,
+ * or the tile below, one row of tiles later. Evicting the least recently used
+ * block is then evicting the one whose last tile is done, and a budget of a row
+ * of blocks plus a few per worker keeps all those which straddle two tiles.
+ * When the tile grid of the export is aligned with the blocks, see
+ * {@link KheopsHelper#alignTileSize}, each block is read by a single tile and
+ * anything above a block per worker is not even needed.
+ * <p>
+ * Values are strongly held until evicted. Concurrent requests of a missing key
+ * wait for a single load.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public class ExportLoaderCache<K, V> implements LoaderCache<K, V> {
+
+    private final long maxBytes;
+    private final ToLongFunction<? super V> weigher;
+
+    /** Least recently used first, guarded by this */
+    private final LinkedHashMap<K, V> values = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    private final Map<K, FutureTask<V>> loading = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxBytes size of the values kept, in bytes - the last value loaded is
+     *                 kept even if it is bigger on its own
+     * @param weigher size of a value, in bytes, see {@link #cellBytes(Object)}
+     */
+    public ExportLoaderCache(long maxBytes, ToLongFunction<? super V> weigher) {
+        this.maxBytes = maxBytes;
+        this.weigher = weigher;
+    }
+
+    @Override
+    public V getIfPresent(K key) {
+        synchronized (this) {
+            return values.get(key);
+        }
+    }
+
+    @Override
+    public V get(K key, CacheLoader<? super K, ? extends V> loader) throws ExecutionException {
+        V value = getIfPresent(key);
+        if (value != null) return value;
+        FutureTask<V> task = new FutureTask<>(() -> {
+            // Loaded by another thread between the two lookups
+            V loaded = getIfPresent(key);
+            return loaded != null ? loaded : loader.get(key);
+        });
+        FutureTask<V> running = loading.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+                try {
+                    put(key, task.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ExecutionException(e);
+                } catch (ExecutionException e) {
+                    // Not cached: the next request tries again
+                }
+            } finally {
+                loading.remove(key, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ExecutionException(e);
+        }
+    }
+
+    private synchronized void put(K key, V value) {
+        V previous = values.put(key, value);
+        if (previous != null) bytes -= weigher.applyAsLong(previous);
+        bytes += weigher.applyAsLong(value);
+        Iterator<Map.Entry<K, V>> eldest = values.entrySet().iterator();
+        while (bytes > maxBytes && values.size() > 1) {
+            bytes -= weigher.applyAsLong(eldest.next().getValue());
+            eldest.remove();
+        }
+    }
+
+    @Override
+    public synchronized void invalidate(K key) {
+        V value = values.remove(key);
+        if (value != null) bytes -= weigher.applyAsLong(value);
+    }
+
+    @Override
+    public synchronized void invalidateIf(long parallelismThreshold, Predicate<K> condition) {
+        Iterator<Map.Entry<K, V>> entries = values.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<K, V> entry = entries.next();
+            if (condition.test(entry.getKey())) {
+                bytes -= weigher.applyAsLong(entry.getValue());
+                entries.remove();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void invalidateAll(long parallelismThreshold) {
+        values.clear();
+        bytes = 0;
+    }
+
+    /**
+     * @return the size of the values held, in bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Size of a cached cell of a bigdataviewer cache, in bytes: the size of the
+     * array of its data, or 8 bytes per pixel if its data is not an array.
+     * @param value a {@link Cell}
+     * @return size of the value in bytes
+     */
+    public static long cellBytes(Object value) {
+        if (!(value instanceof Cell)) return 1;
+        Object data = ((Cell<?>) value).getData();
+        if (data instanceof ArrayDataAccess) {
+            Object array = ((ArrayDataAccess<?>) data).getCurrentStorageArray();
+            Class<?> type = array.getClass().getComponentType();
+            int elementBytes = (type == byte.class || type == boolean.class) ? 1
+                    : (type == short.class || type == char.class) ? 2
+                    : (type == int.class || type == float.class) ? 4 : 8;
+            return (long) Array.getLength(array) * elementBytes;
+        }
+        return ((Cell<?>) value).size() * 8;
+    }
+}
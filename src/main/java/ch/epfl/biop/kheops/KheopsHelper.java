@@ -36,7 +36,12 @@ import ch.epfl.biop.bdv.img.opener.OpenerSettings;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.measure.Calibration;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
 import loci.formats.IFormatReader;
+import loci.formats.ImageReader;
+import loci.formats.Memoizer;
+import loci.formats.MetadataTools;
 import mpicbg.spim.data.generic.AbstractSpimData;
 import mpicbg.spim.data.generic.sequence.BasicImgLoader;
 import mpicbg.spim.data.generic.sequence.BasicViewSetup;
@@ -55,17 +60,41 @@ import org.scijava.Context;
 import spimdata.util.Displaysettings;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Consumer;
 
 public class KheopsHelper {
 
+    /**
+     * Memory an open reader is assumed to hold, which caps the size of the reader
+     * pool of a file, see {@link ElasticReaderPool#memoryCap(long)}
+     */
+    static final long READER_BYTES = Long.getLong("kheops.readerBytes", 128L << 20);
+
+    /** A thread waiting this long for a reader opens another one */
+    static final long READER_GROW_AFTER_MS = 20;
+
+    /** A reader idle this long is closed */
+    static final long READER_SHRINK_AFTER_MS = 30000;
+
+    /**
+     * Where the readers keep their parsed state between openings, see {@link Memoizer}:
+     * -Dkheops.memoDir=path, or false to parse the file at each opening
+     */
+    static final String MEMO_DIRECTORY = System.getProperty("kheops.memoDir",
+            new File(System.getProperty("java.io.tmpdir"), "kheops-memo").getPath());
+
+    /** Only the files which take longer than this to parse are memoized */
+    static final long MEMO_MIN_ELAPSED_MS = 100;
+
     public static SourcesInfo getSourcesFromFile(String path,int tileX,
                                                             int tileY,
                                                             int maxCacheSize,
@@ -73,17 +102,67 @@ public class KheopsHelper {
                                                             boolean splitRGB,
                                                             String position_convention,
                                                             Context context) {
+        return getSourcesFromFile(path, "", tileX, tileY, maxCacheSize, nParallelJobs, splitRGB, position_convention, context);
+    }
+
+    /**
+     * Opens the sources of a subset of the series of a file. The other series get
+     * no opener, no setup and no source: opening a plate to export a few wells
+     * does not pay for all the wells.
+     * @param subsetSeries the series to open, see {@link IntRangeParser}, all of them if empty.
+     *                     Indexes out of the file are skipped.
+     * @return the sources, keyed by series index in the file, with the series to
+     * export in {@link SourcesInfo#series}
+     */
+    public static SourcesInfo getSourcesFromFile(String path,
+                                                 String subsetSeries,
+                                                 int tileX,
+                                                 int tileY,
+                                                 int maxCacheSize,
+                                                 int nParallelJobs,
+                                                 boolean splitRGB,
+                                                 String position_convention,
+                                                 Context context) {
 
         List<OpenerSettings> openerSettings = new ArrayList<>();
         File f = new File(path);
-        int nSeries = BioFormatsHelper.getNSeries(f);
-        for (int i = 0; i < nSeries; i++) {
+        int[][] geometry = getSeriesGeometry(f);
+        int nSeries = geometry.length;
+
+        SourcesInfo info = new SourcesInfo();
+        try {
+            for (int iSeries : new IntRangeParser(subsetSeries).get(nSeries)) {
+                if ((iSeries < 0) || (iSeries >= nSeries)) {
+                    IJ.log("Series "+iSeries+" is not in "+f.getName()+" ("+nSeries+" series). Skipped.");
+                } else {
+                    info.series.add(iSeries);
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Could not parse the series subset '"+subsetSeries+"'", e);
+        }
+        // A series listed twice is exported twice, but opened once
+        List<Integer> openedSeries = new ArrayList<>(new LinkedHashSet<>(info.series));
+        if (openedSeries.isEmpty()) return info;
+
+        long cacheBytes = 0;
+        for (int i : openedSeries) {
+            // Cache blocks made of whole tiles of the file: a tile is then
+            // decoded for a single block
+            int blockX = alignTileSize(tileX, geometry[i][0]);
+            int blockY = alignTileSize(tileY, geometry[i][1]);
+            // A row of blocks and two per job: the blocks straddling two rows of
+            // export tiles are still there for the second one, see ExportLoaderCache
+            long blockBytes = (long) blockX * blockY * Math.max(geometry[i][3], 1);
+            long blocksPerRow = (geometry[i][2] + blockX - 1) / blockX;
+            cacheBytes = Math.max(cacheBytes, Math.max((long) maxCacheSize * nParallelJobs,
+                    blocksPerRow + 2L * nParallelJobs) * blockBytes);
             openerSettings.add(
                     OpenerSettings.BioFormats()
                             .location(f)
                             .setSerie(i)
                             .micrometer()
-                            .cacheBlockSize(tileX,tileY, 1)
+                            .cacheBlockSize(blockX,blockY, 1)
                             .readerPoolSize(nParallelJobs)
                             .splitRGBChannels(splitRGB)
                             .positionConvention(position_convention)
@@ -93,14 +172,19 @@ public class KheopsHelper {
 
         AbstractSpimData<?> asd = OpenersToSpimData.getSpimData(openerSettings);
 
-        boolean result = boundSpimDataCache(asd, maxCacheSize*nParallelJobs, nParallelJobs, nParallelJobs);
+        boolean result = boundSpimDataCache(asd, new ExportLoaderCache<>(cacheBytes, ExportLoaderCache::cellBytes), nParallelJobs, nParallelJobs);
         if (!result) System.out.println("Warning: could not bound cache of spimdata. The memory may get full.");
 
         Map<Integer, SourceAndConverter> idToSource = new SourceAndConverterFromSpimDataCreator(asd).getSetupIdToSourceAndConverter();
 
-        SourcesInfo info = new SourcesInfo();
         OpenersImageLoader loader = ((OpenersImageLoader)(asd.getSequenceDescription().getImgLoader()));
-        info.readerPool = (ResourcePool<IFormatReader>) loader.openers.get(0).getPixelReader();
+        info.imageLoaderPool = (ResourcePool<IFormatReader>) loader.openers.get(0).getPixelReader();
+        // The exporter reads level 0 and the metadata through readers of its own,
+        // as many as the decoding needs
+        info.readerPool = new ElasticReaderPool(() -> openReader(f),
+                Math.min(Math.max(nParallelJobs, Runtime.getRuntime().availableProcessors()),
+                        ElasticReaderPool.memoryCap(READER_BYTES)),
+                READER_GROW_AFTER_MS, READER_SHRINK_AFTER_MS);
 
         idToSource.keySet()
                 .forEach(id -> {
@@ -112,7 +196,8 @@ public class KheopsHelper {
                         info.idToSeriesIndex.put(id, si);
                         info.idToChannels.put(id, channel.getName());
                         info.idToImageName.put(id, imageName);
-                        info.seriesToId.put(si.getId(), id);
+                        // The series index counts the openers, not the series of the file
+                        info.seriesToId.put(openedSeries.get(si.getId()), id);
                     }
                     Displaysettings displaysettings = bvs.getAttribute(Displaysettings.class);
                     if (displaysettings!=null) {
@@ -125,7 +210,7 @@ public class KheopsHelper {
         for (int id = 0; id<nSources; id++) {
             SourceAndConverter source = idToSource.get(id);
             if (info.idToSeriesIndex.get(id)!=null) {
-                int sn_id = info.idToSeriesIndex.get(id).getId();
+                int sn_id = openedSeries.get(info.idToSeriesIndex.get(id).getId());
                 if (!info.idToSources.containsKey(sn_id)) {
                     info.idToSources.put(sn_id, new ArrayList<>());
                 }
@@ -138,20 +223,116 @@ public class KheopsHelper {
         return info;
     }
 
+    /**
+     * Aligns a tile size on the native tiles of a file, along one axis
+     * @param requestedTileSize the tile size which would be used otherwise
+     * @param optimalTileSize the tile size of the file, see
+     *                        {@link IFormatReader#getOptimalTileWidth()}, 0 if unknown
+     * @return the largest multiple of the native tile size which is not above
+     * the requested one, or the requested one if the native tiles are bigger
+     */
+    public static int alignTileSize(int requestedTileSize, int optimalTileSize) {
+        if ((optimalTileSize <= 0) || (optimalTileSize > requestedTileSize)) return requestedTileSize;
+        return requestedTileSize / optimalTileSize * optimalTileSize;
+    }
+
+    /**
+     * @return the optimal tile width and height, the width and the bytes per pixel
+     * of the full resolution level of each series of a file, 0 where it could
+     * not be read
+     */
+    private static int[][] getSeriesGeometry(File f) {
+        int[][] sizes = null;
+        IFormatReader reader = null;
+        try {
+            // Opened as the pool readers: they find the memo file written here
+            reader = openReader(f);
+            sizes = new int[reader.getSeriesCount()][4];
+            for (int i = 0; i < sizes.length; i++) {
+                reader.setSeries(i);
+                sizes[i][0] = reader.getOptimalTileWidth();
+                sizes[i][1] = reader.getOptimalTileHeight();
+                sizes[i][2] = reader.getSizeX();
+                sizes[i][3] = FormatTools.getBytesPerPixel(reader.getPixelType()) * reader.getRGBChannelCount();
+            }
+        } catch (Exception e) {
+            System.out.println("Warning: could not read the tile size of "+f.getName()+": "+e.getMessage());
+            if (sizes == null) sizes = new int[BioFormatsHelper.getNSeries(f)][4];
+        } finally {
+            try {
+                if (reader != null) reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * @return a reader of the file, with OME metadata and its resolution levels
+     * apart, as the pools of the image loaders open them. Once the file has been
+     * parsed, the next readers load its memo file instead, see {@link #MEMO_DIRECTORY}
+     */
+    private static IFormatReader openReader(File f) {
+        IFormatReader reader = memoize(new ImageReader());
+        reader.setFlattenedResolutions(false);
+        reader.setMetadataStore(MetadataTools.createOMEXMLMetadata());
+        try {
+            reader.setId(f.getAbsolutePath());
+        } catch (FormatException | IOException e) {
+            throw new RuntimeException("Could not open "+f.getAbsolutePath(), e);
+        }
+        return reader;
+    }
+
+    /**
+     * @return the reader wrapped in a {@link Memoizer} using {@link #MEMO_DIRECTORY},
+     * or the reader itself if memoization is off or the directory can't be created
+     */
+    static IFormatReader memoize(IFormatReader reader) {
+        if (MEMO_DIRECTORY.equals("false")) return reader;
+        File directory = new File(MEMO_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.out.println("Warning: could not create the memo directory "+directory.getAbsolutePath());
+            return reader;
+        }
+        return new Memoizer(reader, MEMO_MIN_ELAPSED_MS, directory);
+    }
+
     public static class SourcesInfo {
+        /** Series to export, indexes in the file, in the order of the subset */
+        public final List<Integer> series = new ArrayList<>();
         public final Map<Integer, List<SourceAndConverter>> idToSources = new HashMap<>();
         public final Map<Integer, ImageName> idToImageName = new HashMap<>();
         public final Map<Integer, SeriesIndex> idToSeriesIndex = new HashMap<>();
         public final Map<Integer, String> idToChannels = new HashMap<>();
         public final Map<Integer, Integer> seriesToId = new HashMap<>();
+        /** Readers of the file, for the exporter and the metadata, see {@link ElasticReaderPool} */
         public ResourcePool<IFormatReader> readerPool;
+        /** Readers of the image loader of the sources, null if there is none */
+        public ResourcePool<IFormatReader> imageLoaderPool;
+
+        /**
+         * Closes the readers of both pools, once the exports are done
+         */
+        public void closeReaders() {
+            Consumer<IFormatReader> closer = reader -> {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            };
+            if (readerPool != null) readerPool.shutDown(closer);
+            if (imageLoaderPool != null) imageLoaderPool.shutDown(closer);
+        }
     }
 
-    private static boolean boundSpimDataCache(AbstractSpimData<?> asd, int nBlocks, int nThreads, int nPriorities) {
-        LoaderCache loaderCache = new BoundedSoftRefLoaderCache(nBlocks);
+    private static boolean boundSpimDataCache(AbstractSpimData<?> asd, LoaderCache<?, ?> loaderCache, int nThreads, int nPriorities) {
         BasicImgLoader imageLoader = asd.getSequenceDescription().getImgLoader();
         VolatileGlobalCellCache cache = new VolatileGlobalCellCache(nPriorities, nThreads);
-        // Now override the backingCache field of the VolatileGlobalCellCache
+        // Now override the backingCache field of the VolatileGlobalCellCache:
+        // neither the cache nor the image loaders take one from outside
         try {
             Field backingCacheField = VolatileGlobalCellCache.class.getDeclaredField(
                     "backingCache");
@@ -192,6 +373,15 @@ public class KheopsHelper {
     }
 
     public static void transferSeriesMeta(MetadataRetrieve metaSrc, int seriesSrc, MetadataStore metaDst, int seriesDst) {
+        transferSeriesMeta(metaSrc, seriesSrc, metaDst, seriesDst, metaDst);
+    }
+
+    /**
+     * Same as {@link #transferSeriesMeta(MetadataRetrieve, int, MetadataStore, int)},
+     * but the per plane metadata goes to a store of its own
+     * @param planesDst where the Plane elements are written
+     */
+    public static void transferSeriesMeta(MetadataRetrieve metaSrc, int seriesSrc, MetadataStore metaDst, int seriesDst, MetadataStore planesDst) {
 
         // Global
         metaDst.setCreator(metaSrc.getCreator());
@@ -228,7 +418,7 @@ public class KheopsHelper {
         // Per plane
         int planeCount = metaSrc.getPlaneCount(seriesSrc);
         for (int i = 0; i<planeCount; i++) {
-            transferPlaneMeta(metaSrc,seriesSrc,i,metaDst,seriesDst,i);
+            transferPlaneMeta(metaSrc,seriesSrc,i,planesDst,seriesDst,i);
         }
 
         int sizeC = metaSrc.getChannelCount(seriesSrc); // ? 1: metaSrc.getPixelsSizeC(seriesSrc).getValue();
@@ -261,7 +451,7 @@ public class KheopsHelper {
 
         AbstractSpimData<?> asd = ImagePlusToSpimData.getSpimData(image); //OpenersToSpimData.getSpimData(openerSettings);
 
-        boolean result = boundSpimDataCache(asd, maxCacheSize*nParallelJobs, nParallelJobs, nParallelJobs);
+        boolean result = boundSpimDataCache(asd, new BoundedSoftRefLoaderCache<>(maxCacheSize*nParallelJobs), nParallelJobs, nParallelJobs);
         if (!result) System.out.println("Warning: could not bound cache of spimdata. The memory may get full.");
 
         Map<Integer, SourceAndConverter> idToSource = new SourceAndConverterFromSpimDataCreator(asd).getSetupIdToSourceAndConverter();
@@ -296,6 +486,7 @@ public class KheopsHelper {
             }
             info.idToSources.get(sn_id).add(source);
         }
+        info.series.add(0);
 
         return info;
     }
@@ -22,7 +22,6 @@
 package ch.epfl.biop.kheops.command;
 
 import bdv.viewer.SourceAndConverter;
-import ch.epfl.biop.kheops.IntRangeParser;
 import ch.epfl.biop.kheops.KheopsHelper;
 import ch.epfl.biop.kheops.ometiff.OMETiffExporter;
 import ij.IJ;
@@ -42,7 +41,6 @@ import org.scijava.task.Task;
 import org.scijava.task.TaskService;
 
 import java.io.File;
-import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
@@ -65,9 +63,12 @@ public class KheopsBatchCommand implements Command {
 
     @Parameter(label= "Output folder (optional)", style = "directory", required=false)
     File output_dir;
-    @Parameter(label="Compression type", choices = {"LZW", "Uncompressed", "JPEG-2000", "JPEG-2000 Lossy", "JPEG"})
+    @Parameter(label="Compression type", choices = {"LZW", "Uncompressed", "JPEG-2000", "JPEG-2000 Lossy", "JPEG", "Auto"})
     String compression = "LZW";
 
+    @Parameter(label="Copy the compressed tiles of the source when possible", required = false)
+    boolean copy_source_tiles = false;
+
     @Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false)
     String message = "<html><b>Subset in CTZ and series. Leave fields blank to export all.<br></b>" +
             "You can use commas or colons to separate ranges. eg. '1:2:10' or '1,3,5,8'. '-1' is the last index.</html>";
@@ -148,18 +149,11 @@ public class KheopsBatchCommand implements Command {
 
                             final KheopsHelper.SourcesInfo sourcesInfo =
                                         KheopsHelper
-                                                .getSourcesFromFile(input_path.getAbsolutePath(), tileSize, tileSize, 1,
+                                                .getSourcesFromFile(input_path.getAbsolutePath(), subset_series, tileSize, tileSize, 1,
                                                         1, false, "CORNER", context);
 
-                            int nSeriesOriginal = sourcesInfo.idToSources.keySet().size();
-
-                            List<Integer> series;
-                            try {
-                                series = new IntRangeParser(subset_series).get(nSeriesOriginal);
-                            } catch (Exception e) {
-                                e.printStackTrace();
-                                throw new RuntimeException(e);
-                            }
+                            // Only the series of the subset have been opened
+                            List<Integer> series = sourcesInfo.series;
 
                             series.forEach(iSeries -> {
                                 if ((batchTask==null)||(!batchTask.isCanceled())) {
@@ -167,7 +161,7 @@ public class KheopsBatchCommand implements Command {
                                     SourceAndConverter[] sources = sourcesInfo.idToSources.get(iSeries).toArray(new SourceAndConverter[0]);
 
                                     if (series.size() > 1) {
-                                        if (sourcesInfo.idToSeriesIndex.containsKey(iSeries)) {
+                                        if (sourcesInfo.seriesToId.containsKey(iSeries)) {
                                             fileNameWithOutExt += "_" + sourcesInfo.idToImageName.get(sourcesInfo.seriesToId.get(iSeries)).getName();
                                         } else {
                                             fileNameWithOutExt += "_" + iSeries;
@@ -212,7 +206,7 @@ public class KheopsBatchCommand implements Command {
                                         try {
                                             OMETiffExporter.OMETiffExporterBuilder.MetaData.MetaDataBuilder builder = OMETiffExporter.builder()
                                                     .put(sources)
-                                                    //.setReaderPool(sourcesInfo.readerPool, iSeries)
+                                                    .setReaderPool(sourcesInfo.readerPool, iSeries)
                                                     .defineMetaData("Image")
                                                     .applyOnMeta(meta -> {
                                                         IFormatReader reader = null;
@@ -232,9 +226,11 @@ public class KheopsBatchCommand implements Command {
                                             if (override_voxel_size) {
                                                 builder.voxelPhysicalSizeMicrometer(this.vox_size_xy, this.vox_size_xy, this.vox_size_z);
                                             }
-                                            OMETiffExporter exporter = builder.defineWriteOptions()
+                                            OMETiffExporter.OMETiffExporterBuilder.WriterOptions.WriterOptionsBuilder writeOptions = builder.defineWriteOptions()
                                                     .maxTilesInQueue(numberOfBlocksComputedInAdvance)
                                                     .compression(compression)
+                                                    // The single worker compresses while the next tiles decode
+                                                    .prefetch(2)
                                                     .nThreads(1)
                                                     .downsample(2)
                                                     .nResolutionLevels(nResolutions)
@@ -243,7 +239,11 @@ public class KheopsBatchCommand implements Command {
                                                     .rangeZ(subset_slices)
                                                     .monitor(taskService)
                                                     .savePath(output_path.getAbsolutePath())
-                                                    .tileSize(tileSize, tileSize).create();
+                                                    .tileSize(tileSize, tileSize);
+                                            if (copy_source_tiles) {
+                                                writeOptions.passthrough();
+                                            }
+                                            OMETiffExporter exporter = writeOptions.create();
 
                                             if (batchTask!=null) {
                                                 synchronized (cancelConcatenatorLock) {
@@ -265,13 +265,7 @@ public class KheopsBatchCommand implements Command {
 
                                 }
                             });
-                            sourcesInfo.readerPool.shutDown(reader -> {
-                                try {
-                                    reader.close();
-                                } catch (IOException e) {
-                                    e.printStackTrace();
-                                }
-                            });
+                            sourcesInfo.closeReaders();
 
                             if (batchTask!=null) {
                                 synchronized (cancelConcatenatorLock) {
@@ -22,6 +22,7 @@
 package ch.epfl.biop.kheops.command;
 
 import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.kheops.ElasticReaderPool;
 import ch.epfl.biop.kheops.IntRangeParser;
 import ch.epfl.biop.kheops.KheopsHelper;
 import ch.epfl.biop.kheops.ometiff.OMETiffExporter;
@@ -39,7 +40,6 @@ import org.scijava.task.Task;
 import org.scijava.task.TaskService;
 
 import java.io.File;
-import java.io.IOException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.HashMap;
@@ -66,9 +66,12 @@ public class KheopsCommand implements Command {
     @Parameter(label= "Output folder (optional)", style = "directory", required=false)
     File output_dir;
 
-    @Parameter(label="Compression type", choices = {"LZW", "Uncompressed", "JPEG-2000", "JPEG-2000 Lossy", "JPEG"})
+    @Parameter(label="Compression type", choices = {"LZW", "Uncompressed", "JPEG-2000", "JPEG-2000 Lossy", "JPEG", "Auto"})
     String compression = "LZW";
 
+    @Parameter(label="Copy the compressed tiles of the source when possible", required = false)
+    boolean copy_source_tiles = false;
+
     @Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false)
     String message = "<html><b>Subset in CTZ and series. Leave fields blank to export all.<br></b>" +
             "You can use commas or colons to separate ranges. eg. '1:2:10' or '1,3,5,8'. '-1' is the last index.</html>";
@@ -130,6 +133,9 @@ public class KheopsCommand implements Command {
         // of a slide scanner file almost twice as slow. The gain saturates quickly
         // though, because the single writing thread then becomes the limit - 4
         // readers already give 97% of what 31 give. See BENCHMARKS.md.
+        // This sizes the pool of the image loader. The level 0 reads of the exporter
+        // go through sourcesInfo.readerPool, which grows and shrinks on its own, see
+        // ElasticReaderPool.
         int readerPoolSize = Math.min(nThreads, 8);
 
         File parent_dir = new File(input_path.getParent());
@@ -149,18 +155,16 @@ public class KheopsCommand implements Command {
 
         final KheopsHelper.SourcesInfo sourcesInfo =
                     KheopsHelper
-                            .getSourcesFromFile(input_path.getAbsolutePath(), tileSize, tileSize, numberOfBlocksComputedInAdvance,
+                            .getSourcesFromFile(input_path.getAbsolutePath(), subset_series, tileSize, tileSize, numberOfBlocksComputedInAdvance,
                                     readerPoolSize, false, "CORNER", context);
 
-        int nSeriesOriginal = sourcesInfo.idToSources.keySet().size();
+        // Only the series of the subset have been opened
+        List<Integer> series = sourcesInfo.series;
 
-        List<Integer> series;
-        try {
-            series = new IntRangeParser(subset_series).get(nSeriesOriginal);
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new RuntimeException(e);
-        }
+        // One tile decoding ahead per reader the exporter can get: the pool of the
+        // file grows up to its maximal size, not to readerPoolSize
+        int prefetchDistance = sourcesInfo.readerPool instanceof ElasticReaderPool
+                ? ((ElasticReaderPool) sourcesInfo.readerPool).getMaxSize() : readerPoolSize;
 
         boolean process_series_in_parallel = (series.size() != 1);
 
@@ -180,7 +184,7 @@ public class KheopsCommand implements Command {
             series.forEach(iSeries -> {
                 String fileNameWithOutExt = FilenameUtils.removeExtension(fileName);
                 if (series.size() > 1) {
-                    if (sourcesInfo.idToSeriesIndex.containsKey(iSeries)) {
+                    if (sourcesInfo.seriesToId.containsKey(iSeries)) {
                         fileNameWithOutExt += "_" + sourcesInfo.idToImageName.get(sourcesInfo.seriesToId.get(iSeries)).getName();
                     } else {
                         fileNameWithOutExt += "_" + iSeries;
@@ -267,6 +271,7 @@ public class KheopsCommand implements Command {
 
                                         OMETiffExporter.OMETiffExporterBuilder.MetaData.MetaDataBuilder builder = OMETiffExporter.builder()
                                                 .put(sources)
+                                                .setReaderPool(sourcesInfo.readerPool, iSeries)
                                                 .defineMetaData("Image")
                                                 .applyOnMeta(meta -> {
                                                     IFormatReader reader = null;
@@ -287,9 +292,10 @@ public class KheopsCommand implements Command {
                                             builder.voxelPhysicalSizeMicrometer(this.vox_size_xy, this.vox_size_xy, this.vox_size_z);
                                         }
 
-                                        OMETiffExporter exporter = builder.defineWriteOptions()
+                                        OMETiffExporter.OMETiffExporterBuilder.WriterOptions.WriterOptionsBuilder writeOptions = builder.defineWriteOptions()
                                                 .maxTilesInQueue(finalParallelProcess ? numberOfBlocksComputedInAdvanceWhenParallel : numberOfBlocksComputedInAdvance)
                                                 .compression(compression)
+                                                .prefetch(finalParallelProcess ? 0 : prefetchDistance)
                                                 .nThreads(finalParallelProcess ? 1 : nThreads)
                                                 .downsample(2)
                                                 .nResolutionLevels(nResolutions)
@@ -298,7 +304,11 @@ public class KheopsCommand implements Command {
                                                 .rangeZ(set.slices_set)
                                                 .monitor(taskService)
                                                 .savePath(output_path.getAbsolutePath()+optionalSubSetPattern(set)+".ome.tiff")
-                                                .tileSize(tileSize, tileSize).create();
+                                                .tileSize(tileSize, tileSize);
+                                        if (copy_source_tiles) {
+                                            writeOptions.passthrough();
+                                        }
+                                        OMETiffExporter exporter = writeOptions.create();
 
                                         if (batchTask!=null) {
                                             synchronized (cancelConcatenatorLock) {
@@ -342,13 +352,8 @@ public class KheopsCommand implements Command {
                 }
             });
 
-            sourcesInfo.readerPool.shutDown(reader -> {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            });
+            sourcesInfo.closeReaders();
+            logger.accept(input_path.getName()+"\t "+sourcesInfo.readerPool);
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
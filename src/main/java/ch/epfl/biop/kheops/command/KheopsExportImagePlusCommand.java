@@ -41,7 +41,7 @@ public class KheopsExportImagePlusCommand implements Command {
     @Parameter(label= "Output folder (optional)", style = "directory")
     File output_dir;
 
-    @Parameter(label="Compression type", choices = {"LZW", "Uncompressed", "JPEG-2000", "JPEG-2000 Lossy", "JPEG"})
+    @Parameter(label="Compression type", choices = {"LZW", "Uncompressed", "JPEG-2000", "JPEG-2000 Lossy", "JPEG", "Auto"})
     String compression = "LZW";
 
     @Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false)
@@ -93,7 +93,7 @@ public class KheopsExportSourcesCommand implements Command {
     //@Parameter(label = "Number of tiles computed in advance")
 
 
-    @Parameter(label="Compression type", choices = {"LZW", "Uncompressed", "JPEG-2000", "JPEG-2000 Lossy", "JPEG"})
+    @Parameter(label="Compression type", choices = {"LZW", "Uncompressed", "JPEG-2000", "JPEG-2000 Lossy", "JPEG", "Auto"})
     String compression = "LZW";
 
     @Parameter
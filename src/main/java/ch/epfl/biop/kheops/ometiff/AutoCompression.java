@@ -0,0 +1,221 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.kheops.ometiff;
+
+import loci.formats.FormatException;
+import loci.formats.codec.Codec;
+import loci.formats.codec.CodecOptions;
+import ome.codecs.CompressionType;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Picks the lossless compression of an export from what it costs on this
+ * data, on this machine, to this disk.
+ * <p>
+ * Whether compressing pays depends on the entropy of the data and on which of
+ * the CPU or the disk is the limit: uncompressed is worth x1.66 on one of the
+ * datasets of {@code BENCHMARKS.md}, and nothing on another. So a sample of
+ * level 0 tiles is compressed with each candidate, which gives a compression
+ * ratio and a cost per byte, and a few MB are written and flushed next to the
+ * output file, once per directory, which gives the bandwidth of the disk.
+ * The estimated time of the export is then the compression spread over the
+ * workers, overlapped with the writing of the compressed bytes - or added to
+ * it, when the writing thread compresses itself.
+ * <p>
+ * Only compressions that Bio-Formats reads back are candidates: no Zstandard,
+ * nothing lossy.
+ */
+final class AutoCompression {
+
+	/** The name the exporter and the commands know this mode by */
+	static final String COMPRESSION = "Auto";
+
+	/** How many level 0 tiles are compressed with each candidate */
+	static final int SAMPLE_TILES = 16;
+
+	/** How many bytes are written to measure the bandwidth of the disk */
+	static final int PROBE_BYTES = 32 << 20;
+
+	/**
+	 * The bandwidth of each directory measured so far, in bytes per second: a
+	 * batch writing its files to one folder measures it once
+	 */
+	private static final Map<File, Double> bandwidths = new ConcurrentHashMap<>();
+
+	/** What a candidate costs on the sample */
+	static final class Estimate {
+
+		final String compression;
+		/** Compressed size over raw size */
+		final double ratio;
+		/** Compression time per raw byte, on one thread */
+		final double nsPerByte;
+		/** Estimated time of the whole export */
+		double seconds;
+
+		Estimate(String compression, double ratio, double nsPerByte) {
+			this.compression = compression;
+			this.ratio = ratio;
+			this.nsPerByte = nsPerByte;
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.ROOT, "%s: x%.2f, %.1f ns/B, %.1f s",
+				compression, ratio, nsPerByte, seconds);
+		}
+	}
+
+	private AutoCompression() {}
+
+	/**
+	 * @param withPredictor whether a predictor is applied, which needs a
+	 *          compression
+	 * @return the candidate compressions
+	 */
+	static List<String> candidates(boolean withPredictor) {
+		List<String> candidates = new ArrayList<>();
+		if (!withPredictor) {
+			candidates.add(CompressionType.UNCOMPRESSED.getCompression());
+		}
+		candidates.add(CompressionType.LZW.getCompression());
+		candidates.add(CompressionType.ZLIB.getCompression());
+		return candidates;
+	}
+
+	/**
+	 * @param zlibCodec the codec the workers compress zlib tiles with
+	 * @return the codec the workers would compress with, null for none
+	 */
+	static Codec codec(String compression, Codec zlibCodec) {
+		if (compression.equals(CompressionType.LZW.getCompression())) {
+			return new FastLZWCodec();
+		}
+		if (compression.equals(CompressionType.ZLIB.getCompression())) {
+			return zlibCodec;
+		}
+		return null;
+	}
+
+	/**
+	 * Compresses the sample with a candidate, once to warm it up, then timed.
+	 *
+	 * @param codec the codec of the candidate, see {@link #codec}
+	 */
+	static Estimate measure(String compression, Codec codec, List<byte[]> sample,
+		CodecOptions options) throws FormatException
+	{
+		if (codec == null) return new Estimate(compression, 1, 0);
+		codec.compress(sample.get(0), new CodecOptions(options));
+		long raw = 0, compressed = 0;
+		long start = System.nanoTime();
+		for (byte[] tile : sample) {
+			raw += tile.length;
+			compressed += codec.compress(tile, new CodecOptions(options)).length;
+		}
+		long elapsed = System.nanoTime() - start;
+		return new Estimate(compression, compressed / (double) raw, elapsed /
+			(double) raw);
+	}
+
+	/**
+	 * Writes {@link #PROBE_BYTES} of incompressible bytes to a temporary file
+	 * and flushes them to the disk, the first time a directory is asked for.
+	 *
+	 * @param directory where the export is written
+	 * @return the write bandwidth, in bytes per second
+	 */
+	static double writeBandwidth(File directory) throws IOException {
+		File key = directory.getAbsoluteFile();
+		Double bandwidth = bandwidths.get(key);
+		if (bandwidth == null) {
+			// Two exports starting together may both measure: the last one stays
+			bandwidth = measureBandwidth(key);
+			bandwidths.put(key, bandwidth);
+		}
+		return bandwidth;
+	}
+
+	private static double measureBandwidth(File directory) throws IOException {
+		byte[] block = new byte[1 << 20];
+		new Random(0).nextBytes(block); // A compressing file system sees through zeros
+		File probe = File.createTempFile("kheops-bandwidth", ".tmp", directory);
+		try (FileChannel channel = FileChannel.open(probe.toPath(),
+			StandardOpenOption.WRITE))
+		{
+			long start = System.nanoTime();
+			for (int written = 0; written < PROBE_BYTES; written += block.length) {
+				ByteBuffer buffer = ByteBuffer.wrap(block);
+				while (buffer.hasRemaining()) channel.write(buffer);
+			}
+			channel.force(false);
+			return PROBE_BYTES * 1e9 / Math.max(1, System.nanoTime() - start);
+		}
+		finally {
+			if (!probe.delete()) probe.deleteOnExit();
+		}
+	}
+
+	/**
+	 * Fills in the estimated time of each candidate, and picks one.
+	 *
+	 * @param estimates the measured candidates
+	 * @param rawBytes the raw size of the whole export, pyramid included
+	 * @param bandwidth write bandwidth, in bytes per second
+	 * @param workers how many threads compress, 0 if the writing thread does
+	 * @param timeBudget the time the export may take, in seconds, to pick the
+	 *          smallest file within it; 0 or less to pick the fastest export
+	 * @return the chosen candidate
+	 */
+	static Estimate choose(List<Estimate> estimates, long rawBytes,
+		double bandwidth, int workers, double timeBudget)
+	{
+		Estimate fastest = null, smallest = null;
+		for (Estimate estimate : estimates) {
+			double compressing = estimate.nsPerByte * rawBytes / 1e9;
+			double writing = estimate.ratio * rawBytes / bandwidth;
+			estimate.seconds = workers > 0 ? Math.max(compressing / workers,
+				writing) : compressing + writing;
+			if (fastest == null || estimate.seconds < fastest.seconds) {
+				fastest = estimate;
+			}
+			if (estimate.seconds <= timeBudget && (smallest == null ||
+				estimate.ratio < smallest.ratio))
+			{
+				smallest = estimate;
+			}
+		}
+		return timeBudget > 0 && smallest != null ? smallest : fastest;
+	}
+}
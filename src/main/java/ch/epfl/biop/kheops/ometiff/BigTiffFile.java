@@ -0,0 +1,967 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.kheops.ometiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The directory structure of a BigTIFF file - every IFD, every SubIFD and all
+ * their tags - read into memory, so that it can be written back somewhere
+ * else.
+ * <p>
+ * Bio-Formats decides where the IFDs of the files it writes go: {@code
+ * TiffSaver} writes each one right after the tiles it describes, so they end
+ * up scattered between the pixels of the whole file. Nothing in its API lets a
+ * caller choose otherwise. This class is what changes the layout of a file
+ * once the writer is done with it, without touching a single tile: the tiles
+ * are moved as opaque byte ranges and only the offsets pointing at them are
+ * rewritten.
+ * <p>
+ * Only what the exporter produces is supported: BigTIFF (the exporter always
+ * sets {@code setBigTiff(true)}), in either byte order, with tiles or strips
+ * and SubIFDs. A file with any other tag that points into the file, such as
+ * EXIF directories, is rejected rather than silently broken.
+ */
+final class BigTiffFile {
+
+	static final int IMAGE_WIDTH = 256;
+	static final int IMAGE_LENGTH = 257;
+	static final int COMPRESSION = 259;
+	static final int IMAGE_DESCRIPTION = 270;
+	static final int STRIP_OFFSETS = 273;
+	static final int SAMPLES_PER_PIXEL = 277;
+	static final int STRIP_BYTE_COUNTS = 279;
+	static final int PLANAR_CONFIGURATION = 284;
+	static final int PREDICTOR = 317;
+	static final int TILE_WIDTH = 322;
+	static final int TILE_LENGTH = 323;
+	static final int TILE_OFFSETS = 324;
+	static final int TILE_BYTE_COUNTS = 325;
+	static final int SUB_IFDS = 330;
+
+	static final int TYPE_ASCII = 2;
+	static final int TYPE_SHORT = 3;
+	static final int TYPE_LONG = 4;
+	static final int TYPE_IFD = 13;
+	static final int TYPE_LONG8 = 16;
+	static final int TYPE_IFD8 = 18;
+
+	/** Tags holding offsets this class does not know how to move */
+	private static final Set<Integer> FOREIGN_POINTERS = new HashSet<>(Arrays
+		.asList(288, // FreeOffsets
+			513, // JPEGInterchangeFormat
+			34665, // ExifIFD
+			34853, // GPSInfo
+			40965)); // InteroperabilityIFD
+
+	/** BigTIFF header: byte order, 43, offset size 8, 0, first IFD offset */
+	static final int HEADER_SIZE = 16;
+
+	/** One tag of a directory, with its value as raw bytes in the file order */
+	static final class Entry {
+
+		final int tag;
+		int type;
+		long count;
+		byte[] value;
+		/** Where the value was read from, when it does not fit in the entry */
+		long valueOffset;
+		/** Where the value goes when it does not fit in the entry */
+		long newValueOffset;
+
+		Entry(int tag, int type, long count, byte[] value) {
+			this.tag = tag;
+			this.type = type;
+			this.count = count;
+			this.value = value;
+		}
+
+		boolean inline() {
+			return value.length <= 8;
+		}
+	}
+
+	/** One IFD, main or SubIFD */
+	static final class Directory {
+
+		/** Where the directory was read from */
+		final long offset;
+		/**
+		 * 0 for the IFDs of the main chain, 1 and above for the resolution levels
+		 * stored as their SubIFDs
+		 */
+		final int level;
+		final List<Entry> entries = new ArrayList<>();
+		/** The next IFD of the same chain */
+		Directory next;
+		/** In the order of the SubIFDs tag */
+		final List<Directory> subDirectories = new ArrayList<>();
+		long newOffset;
+
+		Directory(long offset, int level) {
+			this.offset = offset;
+			this.level = level;
+		}
+
+		Entry get(int tag) {
+			for (Entry entry : entries) {
+				if (entry.tag == tag) return entry;
+			}
+			return null;
+		}
+
+		/** Bytes taken by the directory itself, values which do not fit excluded */
+		long size() {
+			return 8 + 20L * entries.size() + 8;
+		}
+
+		Entry offsetsEntry() {
+			Entry entry = get(TILE_OFFSETS);
+			return entry != null ? entry : get(STRIP_OFFSETS);
+		}
+
+		Entry byteCountsEntry() {
+			Entry entry = get(TILE_BYTE_COUNTS);
+			return entry != null ? entry : get(STRIP_BYTE_COUNTS);
+		}
+	}
+
+	final ByteOrder order;
+	/** The main chain, from the header */
+	final List<Directory> mainDirectories;
+	/** Every directory, the main chain first then the SubIFDs */
+	final List<Directory> directories;
+
+	private BigTiffFile(ByteOrder order, List<Directory> mainDirectories,
+		List<Directory> directories)
+	{
+		this.order = order;
+		this.mainDirectories = mainDirectories;
+		this.directories = directories;
+	}
+
+	// ----------------------------------------------------------------- reading
+
+	/**
+	 * Reads every directory of a BigTIFF file. The tiles are not read.
+	 *
+	 * @param channel the file, opened for reading
+	 * @return its directories
+	 * @throws IOException if the file is not a BigTIFF file, or holds a
+	 *           directory structure this class does not support
+	 */
+	static BigTiffFile read(FileChannel channel) throws IOException {
+		ByteBuffer header = read(channel, 0, HEADER_SIZE, ByteOrder.BIG_ENDIAN);
+		ByteOrder order;
+		if (header.get(0) == 'I' && header.get(1) == 'I') {
+			order = ByteOrder.LITTLE_ENDIAN;
+		}
+		else if (header.get(0) == 'M' && header.get(1) == 'M') {
+			order = ByteOrder.BIG_ENDIAN;
+		}
+		else {
+			throw new IOException("Not a TIFF file");
+		}
+		header.order(order);
+		if (header.getShort(2) != 43) throw new IOException("Not a BigTIFF file");
+		if (header.getShort(4) != 8) {
+			throw new IOException("Unsupported BigTIFF offset size " + header
+				.getShort(4));
+		}
+
+		Map<Long, Directory> known = new HashMap<>();
+		List<Directory> main = new ArrayList<>();
+		List<Directory> subs = new ArrayList<>();
+		Directory previous = null;
+		// The main chain is walked iteratively: it can be tens of thousands of
+		// IFDs long
+		for (long offset = header.getLong(8); offset != 0;) {
+			long[] next = new long[1];
+			Directory directory = readDirectory(channel, order, offset, 0, known,
+				subs, next);
+			if (previous != null) previous.next = directory;
+			main.add(directory);
+			previous = directory;
+			offset = next[0];
+		}
+		List<Directory> all = new ArrayList<>(main);
+		all.addAll(subs);
+		return new BigTiffFile(order, main, all);
+	}
+
+	private static Directory readDirectory(FileChannel channel, ByteOrder order,
+		long offset, int level, Map<Long, Directory> known, List<Directory> subs,
+		long[] nextOffset) throws IOException
+	{
+		if (known.containsKey(offset)) {
+			throw new IOException("IFD at " + offset + " is referenced twice");
+		}
+		Directory directory = new Directory(offset, level);
+		known.put(offset, directory);
+
+		long count = read(channel, offset, 8, order).getLong(0);
+		if (count < 0 || count > 65535) {
+			throw new IOException("Implausible IFD at " + offset + ": " + count +
+				" entries");
+		}
+		ByteBuffer entries = read(channel, offset + 8, (int) (20 * count + 8),
+			order);
+		for (int i = 0; i < count; i++) {
+			int base = 20 * i;
+			int tag = entries.getShort(base) & 0xFFFF;
+			int type = entries.getShort(base + 2) & 0xFFFF;
+			long n = entries.getLong(base + 4);
+			long size = n * typeSize(type);
+			if (n < 0 || size > Integer.MAX_VALUE) {
+				throw new IOException("Tag " + tag + " of the IFD at " + offset +
+					" is too large");
+			}
+			byte[] value = new byte[(int) size];
+			Entry entry = new Entry(tag, type, n, value);
+			if (size <= 8) {
+				entries.position(base + 12);
+				entries.get(value);
+			}
+			else {
+				entry.valueOffset = entries.getLong(base + 12);
+				read(channel, entry.valueOffset, (int) size, order).get(value);
+			}
+			directory.entries.add(entry);
+		}
+		nextOffset[0] = entries.getLong((int) (20 * count));
+
+		Entry subIfds = directory.get(SUB_IFDS);
+		if (subIfds != null) {
+			long[] offsets = longs(subIfds, order);
+			for (int k = 0; k < offsets.length; k++) {
+				if (offsets[k] == 0) continue;
+				// A SubIFD may itself chain to the next resolution level, which may
+				// then already be known
+				Directory sub = known.containsKey(offsets[k]) ? known.get(offsets[k])
+					: readSubChain(channel, order, offsets[k], level + k + 1, known, subs);
+				directory.subDirectories.add(sub);
+			}
+		}
+		return directory;
+	}
+
+	private static Directory readSubChain(FileChannel channel, ByteOrder order,
+		long offset, int level, Map<Long, Directory> known, List<Directory> subs)
+		throws IOException
+	{
+		long[] next = new long[1];
+		Directory sub = readDirectory(channel, order, offset, level, known, subs,
+			next);
+		subs.add(sub);
+		if (next[0] != 0) {
+			if (known.containsKey(next[0])) {
+				// Listed in the SubIFDs tag as well, which is what OME-TIFF does:
+				// keep pointing at it
+				sub.next = known.get(next[0]);
+			}
+			else {
+				sub.next = readSubChain(channel, order, next[0], level + 1, known,
+					subs);
+			}
+		}
+		return sub;
+	}
+
+	private static ByteBuffer read(FileChannel channel, long offset, int size,
+		ByteOrder order) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, offset + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of file at " + (offset + buffer
+					.position()));
+			}
+		}
+		buffer.flip();
+		return buffer.order(order);
+	}
+
+	static int typeSize(int type) throws IOException {
+		switch (type) {
+			case 1: // BYTE
+			case 2: // ASCII
+			case 6: // SBYTE
+			case 7: // UNDEFINED
+				return 1;
+			case 3: // SHORT
+			case 8: // SSHORT
+				return 2;
+			case 4: // LONG
+			case 9: // SLONG
+			case 11: // FLOAT
+			case 13: // IFD
+				return 4;
+			case 5: // RATIONAL
+			case 10: // SRATIONAL
+			case 12: // DOUBLE
+			case 16: // LONG8
+			case 17: // SLONG8
+			case 18: // IFD8
+				return 8;
+			default:
+				throw new IOException("Unknown TIFF field type " + type);
+		}
+	}
+
+	// ------------------------------------------------------------------ values
+
+	/** The values of an unsigned integer entry, whatever its integer type */
+	static long[] longs(Entry entry, ByteOrder order) throws IOException {
+		ByteBuffer value = ByteBuffer.wrap(entry.value).order(order);
+		long[] values = new long[(int) entry.count];
+		for (int i = 0; i < values.length; i++) {
+			switch (entry.type) {
+				case TYPE_SHORT:
+					values[i] = value.getShort(2 * i) & 0xFFFFL;
+					break;
+				case TYPE_LONG:
+				case TYPE_IFD:
+					values[i] = value.getInt(4 * i) & 0xFFFFFFFFL;
+					break;
+				case TYPE_LONG8:
+				case TYPE_IFD8:
+					values[i] = value.getLong(8 * i);
+					break;
+				default:
+					throw new IOException("Tag " + entry.tag + " is not an integer (type " +
+						entry.type + ")");
+			}
+		}
+		return values;
+	}
+
+	long[] longs(Entry entry) throws IOException {
+		return longs(entry, order);
+	}
+
+	/** Replaces the values of an entry with 64 bits integers of the given type */
+	void setLongs(Entry entry, int type, long[] values) {
+		ByteBuffer value = ByteBuffer.allocate(8 * values.length).order(order);
+		for (long v : values) {
+			value.putLong(v);
+		}
+		entry.type = type;
+		entry.count = values.length;
+		entry.value = value.array();
+	}
+
+	/** Replaces one value of an unsigned integer entry, keeping its type */
+	void setLong(Entry entry, int index, long v) throws IOException {
+		ByteBuffer value = ByteBuffer.wrap(entry.value).order(order);
+		switch (entry.type) {
+			case TYPE_SHORT:
+				value.putShort(2 * index, (short) v);
+				break;
+			case TYPE_LONG:
+			case TYPE_IFD:
+				value.putInt(4 * index, (int) v);
+				break;
+			case TYPE_LONG8:
+			case TYPE_IFD8:
+				value.putLong(8 * index, v);
+				break;
+			default:
+				throw new IOException("Tag " + entry.tag + " is not an integer (type " +
+					entry.type + ")");
+		}
+	}
+
+	/**
+	 * Writes the value of an entry back where it was read from, in the entry
+	 * or where it points. The value must have kept its size
+	 */
+	private static void writeInPlace(FileChannel channel, Directory directory,
+		Entry entry) throws IOException
+	{
+		long at = entry.inline() ? directory.offset + 8 + 20L * directory.entries
+			.indexOf(entry) + 12 : entry.valueOffset;
+		ByteBuffer buffer = ByteBuffer.wrap(entry.value);
+		while (buffer.hasRemaining()) {
+			at += channel.write(buffer, at);
+		}
+	}
+
+	/** The single value of a SHORT or LONG entry, or the default if absent */
+	long get(Directory directory, int tag, long defaultValue) throws IOException {
+		Entry entry = directory.get(tag);
+		return entry == null ? defaultValue : longs(entry)[0];
+	}
+
+	// ------------------------------------------------------------ short tags
+
+	/**
+	 * Overwrites the Compression tag of every IFD and every SubIFD of a BigTIFF
+	 * file, see {@link #setShortTag}.
+	 * <p>
+	 * This is how a file gets a compression Bio-Formats has no writer for: the
+	 * tiles are handed over already compressed, under a compression the writer
+	 * knows, and the tag is put right once the writer is done.
+	 *
+	 * @param file a closed BigTIFF file
+	 * @param code the TIFF compression code to declare
+	 * @throws IOException if the file cannot be rewritten
+	 */
+	static void setCompression(File file, int code) throws IOException {
+		setShortTag(file, COMPRESSION, code);
+	}
+
+	/**
+	 * Gives a single SHORT tag the same value in every IFD and every SubIFD of
+	 * a BigTIFF file.
+	 * <p>
+	 * Where every directory has the tag already, its value is overwritten in
+	 * place: nothing moves. Otherwise the tag has to be inserted, which makes
+	 * every directory 20 bytes longer: all of them, with the values they point
+	 * at, are written again at the end of the file, and the header, the next
+	 * IFD offsets and the SubIFDs are pointed at the new copies. The tiles do
+	 * not move. The old directories stay behind as unreferenced bytes, which
+	 * {@link #moveDirectoriesFirst} drops if it runs afterwards: where it does,
+	 * it is better given the tag to set itself.
+	 *
+	 * @param file a closed BigTIFF file
+	 * @param tag the tag to set
+	 * @param value its value, 0 to 65535
+	 * @throws IOException if the file cannot be rewritten, or holds the tag
+	 *           with another type or count
+	 */
+	static void setShortTag(File file, int tag, int value) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+			StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			BigTiffFile tiff = read(channel);
+			if (tiff.putShortTag(file, tag, value)) {
+				for (Directory directory : tiff.directories) {
+					writeInPlace(channel, directory, directory.get(tag));
+				}
+			}
+			else {
+				tiff.appendDirectories(channel);
+			}
+		}
+	}
+
+	/**
+	 * Gives a single SHORT tag the same value in every directory read, in
+	 * memory only, inserting it where it is missing.
+	 *
+	 * @return whether every directory had the tag already
+	 */
+	private boolean putShortTag(File file, int tag, int value)
+		throws IOException
+	{
+		byte[] bytes = ByteBuffer.allocate(2).order(order).putShort((short) value)
+			.array();
+		boolean inPlace = true;
+		for (Directory directory : directories) {
+			Entry entry = directory.get(tag);
+			if (entry == null) {
+				inPlace = false;
+				continue;
+			}
+			if (entry.type != TYPE_SHORT || entry.count != 1) {
+				throw new IOException("Tag " + tag + " of the IFD at " +
+					directory.offset + " of " + file + " is not a single SHORT");
+			}
+			entry.value = bytes;
+		}
+		if (inPlace) return true;
+
+		for (Directory directory : directories) {
+			if (directory.get(tag) != null) continue;
+			// TIFF wants the entries sorted by tag
+			int index = 0;
+			while (index < directory.entries.size() && directory.entries.get(index)
+				.tag < tag)
+			{
+				index++;
+			}
+			directory.entries.add(index, new Entry(tag, TYPE_SHORT, 1, bytes));
+		}
+		return false;
+	}
+
+	/**
+	 * Writes every directory and its values again at the end of the file, and
+	 * points the header and the SubIFDs at the new copies.
+	 */
+	private void appendDirectories(FileChannel channel) throws IOException {
+		// As in writeDirectoriesFirst: the SubIFDs become 64 bits first, so that
+		// the size of what is appended is known before it is placed
+		for (Directory directory : directories) {
+			Entry subIfds = directory.get(SUB_IFDS);
+			if (subIfds != null) {
+				setLongs(subIfds, TYPE_IFD8, new long[(int) subIfds.count]);
+			}
+		}
+		long start = align(channel.size());
+		long end = placeDirectories(start);
+		for (Directory directory : directories) {
+			Entry subIfds = directory.get(SUB_IFDS);
+			if (subIfds == null) continue;
+			long[] offsets = new long[directory.subDirectories.size()];
+			for (int k = 0; k < offsets.length; k++) {
+				offsets[k] = directory.subDirectories.get(k).newOffset;
+			}
+			setLongs(subIfds, TYPE_IFD8, offsets);
+		}
+
+		ByteBuffer region = ByteBuffer.allocate(Math.toIntExact(end - start))
+			.order(order);
+		for (Directory directory : directories) {
+			writeDirectory(region, directory, start);
+		}
+		region.clear();
+		while (region.hasRemaining()) {
+			channel.write(region, start + region.position());
+		}
+		ByteBuffer first = ByteBuffer.allocate(8).order(order);
+		first.putLong(mainDirectories.get(0).newOffset).flip();
+		long at = 8;
+		while (first.hasRemaining()) {
+			at += channel.write(first, at);
+		}
+	}
+
+	// ----------------------------------------------------------- shared tiles
+
+	/**
+	 * Points tiles at a copy of the same bytes stored elsewhere in the file: the
+	 * TileOffsets and TileByteCounts entries of each tile are overwritten, in
+	 * place, with the ones of its copy. Both must hold the same bytes: unless
+	 * {@code verify} is set, nothing checks it.
+	 * <p>
+	 * The bytes the tiles pointed at before stay in the file, unreferenced, until
+	 * {@link #moveDirectoriesFirst} rewrites it: that one only copies the tiles
+	 * which something points at, and each of them once.
+	 * <p>
+	 * Directories are found the way the exporter writes them: one IFD per plane
+	 * in the main chain, resolution level {@code l > 0} of a plane in its
+	 * SubIFD {@code l - 1}.
+	 *
+	 * @param file a closed BigTIFF file
+	 * @param links one {@code {level, plane, tile, level of the copy, plane of
+	 *          the copy, tile of the copy}} per tile to repoint, tiles being
+	 *          numbered as in TileOffsets
+	 * @param verify whether to compare the bytes of each tile with its copy
+	 *          first, and leave the tile alone where they differ
+	 * @return how many tiles now point at their copy
+	 * @throws IOException if the file cannot be rewritten, or does not have the
+	 *           directories or the tiles a link refers to
+	 */
+	static int shareTiles(File file, List<int[]> links, boolean verify)
+		throws IOException
+	{
+		if (links.isEmpty()) return 0;
+		int shared = 0;
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+			StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			BigTiffFile tiff = read(channel);
+			Map<Directory, long[][]> changed = new HashMap<>();
+			for (int[] link : links) {
+				long[][] tile = tiff.tiles(tiff.directory(link[1], link[0]), changed);
+				long[][] copy = tiff.tiles(tiff.directory(link[4], link[3]), changed);
+				if (verify && !sameBytes(channel, tile[0][link[2]], tile[1][link[2]],
+					copy[0][link[5]], copy[1][link[5]]))
+				{
+					continue;
+				}
+				tile[0][link[2]] = copy[0][link[5]];
+				tile[1][link[2]] = copy[1][link[5]];
+				shared++;
+			}
+			for (Map.Entry<Directory, long[][]> entry : changed.entrySet()) {
+				Directory directory = entry.getKey();
+				Entry offsets = directory.offsetsEntry();
+				Entry counts = directory.byteCountsEntry();
+				for (int i = 0; i < entry.getValue()[0].length; i++) {
+					tiff.setLong(offsets, i, entry.getValue()[0][i]);
+					tiff.setLong(counts, i, entry.getValue()[1][i]);
+				}
+				writeInPlace(channel, directory, offsets);
+				writeInPlace(channel, directory, counts);
+			}
+		}
+		return shared;
+	}
+
+	private static boolean sameBytes(FileChannel channel, long offset,
+		long count, long otherOffset, long otherCount) throws IOException
+	{
+		if (count != otherCount || count > Integer.MAX_VALUE) return false;
+		if (offset == otherOffset) return true;
+		ByteBuffer bytes = read(channel, offset, (int) count, ByteOrder.BIG_ENDIAN);
+		ByteBuffer other = read(channel, otherOffset, (int) count,
+			ByteOrder.BIG_ENDIAN);
+		return bytes.equals(other);
+	}
+
+	private Directory directory(int plane, int level) throws IOException {
+		if (plane >= mainDirectories.size()) {
+			throw new IOException("No IFD for plane " + plane);
+		}
+		Directory main = mainDirectories.get(plane);
+		if (level == 0) return main;
+		if (level > main.subDirectories.size()) {
+			throw new IOException("No SubIFD for level " + level + " of plane " +
+				plane);
+		}
+		return main.subDirectories.get(level - 1);
+	}
+
+	/** The offsets and the byte counts of a directory, read once */
+	private long[][] tiles(Directory directory, Map<Directory, long[][]> read)
+		throws IOException
+	{
+		long[][] tiles = read.get(directory);
+		if (tiles == null) {
+			Entry offsets = directory.offsetsEntry();
+			Entry counts = directory.byteCountsEntry();
+			if (offsets == null || counts == null) {
+				throw new IOException("IFD at " + directory.offset + " has no tiles");
+			}
+			tiles = new long[][] { longs(offsets), longs(counts) };
+			read.put(directory, tiles);
+		}
+		return tiles;
+	}
+
+	// ---------------------------------------------------------- cloud layout
+
+	/**
+	 * Rewrites a BigTIFF file so that all its IFDs, its SubIFDs and every value
+	 * they point at - including the OME-XML of the ImageDescription - come first,
+	 * in one contiguous region right after the header, followed by the tiles,
+	 * resolution level by resolution level, the lowest resolution first.
+	 * <p>
+	 * A reader then gets the whole structure of the file with one or two large
+	 * reads, and the overview with the next one, instead of walking IFDs spread
+	 * over the whole file - one seek each, which is what makes opening a large
+	 * OME-TIFF from a network share slow.
+	 * <p>
+	 * This costs one extra sequential copy of the file: it is written to a
+	 * sibling file which then replaces the original. Tiles shared by several
+	 * entries stay shared.
+	 * <p>
+	 * Within each plane, the tiles are stored in the given {@link TileOrder}.
+	 * The TileOffsets tag keeps listing them row by row, so this changes nothing
+	 * for a reader but where the bytes are.
+	 *
+	 * @param file a BigTIFF file
+	 * @param tileOrder the order of the tiles within a plane
+	 * @throws IOException if the file cannot be read or rewritten, in which case
+	 *           it is left untouched
+	 */
+	static void moveDirectoriesFirst(File file, TileOrder tileOrder)
+		throws IOException
+	{
+		moveDirectoriesFirst(file, tileOrder, Collections.emptyMap());
+	}
+
+	/**
+	 * As {@link #moveDirectoriesFirst(File, TileOrder)}, giving SHORT tags the
+	 * same value in every directory on the way, as {@link #setShortTag} does.
+	 * Directories which grow with an inserted tag are only written once, in
+	 * the rewritten file: nothing is left behind.
+	 *
+	 * @param file a BigTIFF file
+	 * @param tileOrder the order of the tiles within a plane
+	 * @param shortTags the value of each tag to set
+	 * @throws IOException if the file cannot be read or rewritten, in which case
+	 *           it is left untouched
+	 */
+	static void moveDirectoriesFirst(File file, TileOrder tileOrder,
+		Map<Integer, Integer> shortTags) throws IOException
+	{
+		File relaidOut = new File(file.getParentFile(), file.getName() +
+			".relayout");
+		try (FileChannel in = FileChannel.open(file.toPath(),
+			StandardOpenOption.READ); FileChannel out = FileChannel.open(relaidOut
+				.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+		{
+			BigTiffFile tiff = read(in);
+			for (Map.Entry<Integer, Integer> tag : shortTags.entrySet()) {
+				tiff.putShortTag(file, tag.getKey(), tag.getValue());
+			}
+			tiff.writeDirectoriesFirst(in, out, tileOrder);
+		}
+		catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(relaidOut.toPath());
+			throw e;
+		}
+		Files.move(relaidOut.toPath(), file.toPath(),
+			StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	void writeDirectoriesFirst(FileChannel in, FileChannel out,
+		TileOrder tileOrder) throws IOException
+	{
+		for (Directory directory : directories) {
+			for (Entry entry : directory.entries) {
+				if (FOREIGN_POINTERS.contains(entry.tag)) {
+					throw new IOException("Tag " + entry.tag +
+						" points into the file and cannot be moved");
+				}
+			}
+			// Offsets become 64 bits now, so that the size of the header region is
+			// known before the tiles are placed
+			Entry offsets = directory.offsetsEntry();
+			if (offsets != null) {
+				setLongs(offsets, TYPE_LONG8, longs(offsets));
+			}
+			Entry subIfds = directory.get(SUB_IFDS);
+			if (subIfds != null) {
+				setLongs(subIfds, TYPE_IFD8, new long[(int) subIfds.count]);
+			}
+		}
+
+		long dataStart = placeDirectories(HEADER_SIZE);
+		Copies copies = placeTiles(dataStart, tileOrder);
+		// The offsets of the SubIFDs are only known now
+		for (Directory directory : directories) {
+			Entry subIfds = directory.get(SUB_IFDS);
+			if (subIfds == null) continue;
+			long[] offsets = new long[directory.subDirectories.size()];
+			for (int k = 0; k < offsets.length; k++) {
+				offsets[k] = directory.subDirectories.get(k).newOffset;
+			}
+			setLongs(subIfds, TYPE_IFD8, offsets);
+		}
+
+		ByteBuffer region = ByteBuffer.allocate(Math.toIntExact(dataStart)).order(
+			order);
+		writeHeader(region, mainDirectories.get(0).newOffset);
+		for (Directory directory : directories) {
+			writeDirectory(region, directory);
+		}
+		region.clear();
+		while (region.hasRemaining()) {
+			out.write(region, region.position());
+		}
+		copies.run(in, out);
+	}
+
+	/**
+	 * Gives every directory and every value which does not fit in its entry a
+	 * place, one after the other from {@code start} on.
+	 *
+	 * @return where the region ends
+	 */
+	long placeDirectories(long start) {
+		long position = start;
+		for (Directory directory : directories) {
+			directory.newOffset = position;
+			position = align(position + directory.size());
+			for (Entry entry : directory.entries) {
+				if (entry.inline()) continue;
+				entry.newValueOffset = position;
+				position = align(position + entry.value.length);
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Gives every tile a place from {@code start} on, level by level from the
+	 * lowest resolution, and updates the offsets of the directories.
+	 */
+	private Copies placeTiles(long start, TileOrder tileOrder)
+		throws IOException
+	{
+		int maxLevel = 0;
+		for (Directory directory : directories) {
+			maxLevel = Math.max(maxLevel, directory.level);
+		}
+		Copies copies = new Copies();
+		Map<Long, Long> moved = new HashMap<>();
+		long position = start;
+		for (int level = maxLevel; level >= 0; level--) {
+			for (Directory directory : directories) {
+				if (directory.level != level) continue;
+				Entry offsetsEntry = directory.offsetsEntry();
+				Entry countsEntry = directory.byteCountsEntry();
+				if (offsetsEntry == null || countsEntry == null) continue;
+				long[] offsets = longs(offsetsEntry);
+				long[] counts = longs(countsEntry);
+				if (offsets.length != counts.length) {
+					throw new IOException("IFD at " + directory.offset + " has " +
+						offsets.length + " offsets for " + counts.length + " byte counts");
+				}
+				long[] newOffsets = new long[offsets.length];
+				for (int i : storageOrder(directory, offsets.length, tileOrder)) {
+					if (counts[i] == 0) continue; // nothing stored, nothing to move
+					Long already = moved.get(offsets[i]);
+					if (already != null) {
+						newOffsets[i] = already;
+						continue;
+					}
+					newOffsets[i] = position;
+					moved.put(offsets[i], position);
+					copies.add(offsets[i], position, counts[i]);
+					position += counts[i];
+				}
+				setLongs(offsetsEntry, TYPE_LONG8, newOffsets);
+			}
+		}
+		return copies;
+	}
+
+	/**
+	 * The indexes of the TileOffsets of a directory in the order the tiles
+	 * should be stored: plane by plane - one per sample when the samples are
+	 * stored separately - and along {@code tileOrder} within each. Strips, and
+	 * anything whose tile count does not match its tile grid, keep their order.
+	 */
+	private int[] storageOrder(Directory directory, int n, TileOrder tileOrder)
+		throws IOException
+	{
+		int[] rowMajor = TileOrder.ROW_MAJOR.order(n, 1);
+		if (tileOrder == TileOrder.ROW_MAJOR || directory.get(TILE_WIDTH) == null) {
+			return rowMajor;
+		}
+		long tileWidth = get(directory, TILE_WIDTH, 0);
+		long tileLength = get(directory, TILE_LENGTH, 0);
+		if (tileWidth <= 0 || tileLength <= 0) return rowMajor;
+		long nX = (get(directory, IMAGE_WIDTH, 0) + tileWidth - 1) / tileWidth;
+		long nY = (get(directory, IMAGE_LENGTH, 0) + tileLength - 1) / tileLength;
+		long planes = get(directory, PLANAR_CONFIGURATION, 1) == 2 ? get(directory,
+			SAMPLES_PER_PIXEL, 1) : 1;
+		if (nX * nY * planes != n) return rowMajor;
+		int perPlane = (int) (nX * nY);
+		int[] inPlane = tileOrder.order((int) nX, (int) nY);
+		int[] order = new int[n];
+		for (int p = 0; p < planes; p++) {
+			for (int i = 0; i < perPlane; i++) {
+				order[p * perPlane + i] = p * perPlane + inPlane[i];
+			}
+		}
+		return order;
+	}
+
+	void writeHeader(ByteBuffer buffer, long firstDirectory) {
+		buffer.put(0, (byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M'));
+		buffer.put(1, (byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M'));
+		buffer.putShort(2, (short) 43);
+		buffer.putShort(4, (short) 8);
+		buffer.putShort(6, (short) 0);
+		buffer.putLong(8, firstDirectory);
+	}
+
+	/**
+	 * Writes a directory and its values where {@link #placeDirectories} put
+	 * them, relative to {@code base}, the file offset of the buffer's first byte.
+	 */
+	void writeDirectory(ByteBuffer buffer, Directory directory, long base) {
+		int at = Math.toIntExact(directory.newOffset - base);
+		buffer.putLong(at, directory.entries.size());
+		at += 8;
+		for (Entry entry : directory.entries) {
+			buffer.putShort(at, (short) entry.tag);
+			buffer.putShort(at + 2, (short) entry.type);
+			buffer.putLong(at + 4, entry.count);
+			if (entry.inline()) {
+				buffer.putLong(at + 12, 0);
+				for (int i = 0; i < entry.value.length; i++) {
+					buffer.put(at + 12 + i, entry.value[i]);
+				}
+			}
+			else {
+				buffer.putLong(at + 12, entry.newValueOffset);
+				buffer.position(Math.toIntExact(entry.newValueOffset - base));
+				buffer.put(entry.value);
+			}
+			at += 20;
+		}
+		buffer.putLong(at, directory.next == null ? 0 : directory.next.newOffset);
+	}
+
+	private void writeDirectory(ByteBuffer buffer, Directory directory) {
+		writeDirectory(buffer, directory, 0);
+	}
+
+	/** TIFF wants values on word boundaries; 8 keeps the 64 bits ones aligned */
+	static long align(long position) {
+		return (position + 7) & ~7L;
+	}
+
+	/** Byte ranges to copy from the original file, merged when contiguous */
+	private static final class Copies {
+
+		private long[] ranges = new long[3 * 1024];
+		private int size = 0;
+
+		void add(long from, long to, long length) {
+			if (size > 0) {
+				int last = size - 3;
+				long lastLength = ranges[last + 2];
+				if (ranges[last] + lastLength == from && ranges[last + 1] +
+					lastLength == to)
+				{
+					ranges[last + 2] += length;
+					return;
+				}
+			}
+			if (size == ranges.length) ranges = Arrays.copyOf(ranges, 2 * size);
+			ranges[size++] = from;
+			ranges[size++] = to;
+			ranges[size++] = length;
+		}
+
+		void run(FileChannel in, FileChannel out) throws IOException {
+			for (int i = 0; i < size; i += 3) {
+				long from = ranges[i];
+				long length = ranges[i + 2];
+				out.position(ranges[i + 1]);
+				while (length > 0) {
+					long copied = in.transferTo(from, length, out);
+					if (copied <= 0) {
+						throw new IOException("Could not copy " + length + " bytes from " +
+							from);
+					}
+					from += copied;
+					length -= copied;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.kheops.ometiff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The tiles of an export in which every pixel has the same value - the
+ * background of a slide scan, often more than half of it.
+ * <p>
+ * Two such tiles of the same size and the same value hold the same bytes once
+ * compressed, so each is compressed once: the workers find the others here.
+ * Every repeat is recorded too, so that once the file is closed its entries
+ * in TileOffsets and TileByteCounts can be pointed at the first copy, see
+ * {@link BigTiffFile#shareTiles}. Bio-Formats still writes each repeat, so
+ * this only pays off when the tiles are moved afterwards: a cloud optimised
+ * layout copies the shared tile once and leaves the repeats behind. The
+ * exporter uses it only then, see {@code cloudOptimizedLayout()}.
+ * <p>
+ * A tile of 0 bytes, which GDAL takes for an empty tile, is not an option:
+ * that convention is not part of TIFF, and not every reader follows it.
+ * <p>
+ * {@code -Dkheops.shareConstantTiles=false} treats every tile like any other.
+ */
+final class ConstantTiles {
+
+	/**
+	 * How many distinct constant tiles are kept, compressed. A slide has one or
+	 * two background values; beyond that, tiles are compressed as usual
+	 */
+	static final int MAX_CACHED = 64;
+
+	/** Size and value of a constant tile: equal keys, equal bytes */
+	private static final class Key {
+
+		final int level, width, height;
+		final byte[] pixel;
+		final int hash;
+
+		Key(int level, int width, int height, byte[] pixel) {
+			this.level = level;
+			this.width = width;
+			this.height = height;
+			this.pixel = pixel;
+			this.hash = 31 * (31 * (31 * level + width) + height) + Arrays.hashCode(
+				pixel);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return level == k.level && width == k.width && height == k.height &&
+				Arrays.equals(pixel, k.pixel);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+	}
+
+	/** Where a constant tile was first seen: level, plane, tile */
+	private final Map<Key, int[]> first = new ConcurrentHashMap<>();
+	private final Map<Key, byte[]> compressed = new ConcurrentHashMap<>();
+	/** One {@code {level, plane, tile, level, plane, tile}} per repeat */
+	private final List<int[]> repeats = new ArrayList<>();
+
+	/** @return whether constant tiles should be shared, see the class doc */
+	static boolean enabled() {
+		return !System.getProperty("kheops.shareConstantTiles", "true").equals(
+			"false");
+	}
+
+	/**
+	 * @param tile the samples of a tile, as computed
+	 * @param pixelSize bytes per pixel, all samples included
+	 * @return the bytes of its single pixel value, or null if the pixels differ
+	 */
+	static byte[] constantPixel(byte[] tile, int pixelSize) {
+		if (tile.length < pixelSize || tile.length % pixelSize != 0) return null;
+		// A bit-by-bit comparison with the first pixel, which fails on the
+		// first sample of anything but background
+		for (int i = pixelSize; i < tile.length; i++) {
+			if (tile[i] != tile[i - pixelSize]) return null;
+		}
+		return Arrays.copyOf(tile, pixelSize);
+	}
+
+	/**
+	 * Records a constant tile.
+	 *
+	 * @param level resolution level
+	 * @param plane plane index, as written
+	 * @param tile tile index within the plane, row by row
+	 * @param width tile width, in pixels, padding excluded
+	 * @param height tile height, in pixels, padding excluded
+	 * @param pixel the value of its pixels
+	 * @param compress compresses the tile, called once per distinct tile
+	 * @return the compressed tile, or null if {@code compress} is null
+	 */
+	byte[] add(int level, int plane, int tile, int width, int height,
+		byte[] pixel, Callable<byte[]> compress) throws Exception
+	{
+		Key key = new Key(level, width, height, pixel);
+		int[] where = { level, plane, tile };
+		int[] earlier = first.putIfAbsent(key, where);
+		if (earlier != null) {
+			synchronized (repeats) {
+				repeats.add(new int[] { level, plane, tile, earlier[0], earlier[1],
+					earlier[2] });
+			}
+		}
+		if (compress == null) return null;
+		byte[] bytes = compressed.get(key);
+		if (bytes == null) {
+			bytes = compress.call();
+			if (compressed.size() < MAX_CACHED) compressed.putIfAbsent(key, bytes);
+		}
+		return bytes;
+	}
+
+	/** @return the repeats, to be given to {@link BigTiffFile#shareTiles} */
+	List<int[]> repeats() {
+		synchronized (repeats) {
+			return new ArrayList<>(repeats);
+		}
+	}
+}
@@ -0,0 +1,516 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package ch.epfl.biop.kheops.ometiff;
+
+import ch.epfl.biop.bdv.img.ResourcePool;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.IFormatReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The tiles of resolution level 0, read with {@code openBytes} from the readers
+ * of the source file instead of through the imglib2 view of it.
+ * <p>
+ * The view goes from the reader to a cached cell, then through
+ * {@code Views.hyperSlice} and {@code Views.interval} to a cursor which copies
+ * the tile pixel by pixel into a big endian {@code byte[]}: every level 0
+ * pixel is copied twice, and the cells are cached for nothing, since each one
+ * is read once. Here the reader decodes straight into the tile, which only has
+ * its bytes swapped, in one pass, when the source is little endian. An RGB
+ * source stored planar is read into a buffer kept per thread and interleaved
+ * from there.
+ * <p>
+ * This gives the very same bytes as {@link SourceToByteArray}, provided the
+ * source has the pixel type the export has: the check is made once, in
+ * {@link #create}, and a source which does not pass - another pixel type, an
+ * indexed color image - is read through imglib2 as before. A tile which fails
+ * to read returns null, and is computed as usual.
+ * {@code -Dkheops.directReads=false} switches this off.
+ * <p>
+ * A source which stores several channels in one block - the samples of an RGB
+ * or multi-sample TIFF, the channels of some multiplexed images - has them
+ * exported one channel each, and its reader decodes the whole block whatever
+ * channel is asked for. Such a tile is read fused: the first of its channels
+ * reads every sample of its pixels, and the tile is held until each exported
+ * channel of it, counted once per (t, z, tile), has taken its samples out.
+ * The channels of a tile are a plane apart in the export order, so the tiles
+ * held are bounded in bytes, {@code -Dkheops.fusedTileBytes}: past that, the
+ * oldest is dropped, keeps its count, and is read again for its next channel.
+ */
+final class DirectTiles {
+
+	private static final Logger logger = LoggerFactory.getLogger(
+		DirectTiles.class);
+
+	/** Bytes of fused tiles held at most, see the class doc */
+	static final long FUSED_TILE_BYTES = Math.min(Long.getLong(
+		"kheops.fusedTileBytes", 256L << 20), Runtime.getRuntime().maxMemory() / 8);
+
+	final ResourcePool<IFormatReader> readerPool;
+	final int series;
+	final int bytesPerPixel, samplesPerPixel;
+	/**
+	 * Samples per pixel of the source: {@link #samplesPerPixel}, or more when
+	 * its channels stored together are exported apart and read fused
+	 */
+	final int sourceSamples;
+	/** How many times each block of channels of the source is exported */
+	private final int[] exportedSamples;
+	/**
+	 * The fused tiles some exported channels have still to take, keyed by
+	 * {@code {t, block, z, y, x}}, guarded by itself
+	 */
+	private final Map<TileIterator.IntsKey, FusedTile> pending = new HashMap<>();
+	/** The fused tiles whose samples are held, oldest first, guarded by pending */
+	private final Map<TileIterator.IntsKey, FusedTile> held =
+		new LinkedHashMap<>();
+	private final long maxFusedBytes;
+	private long fusedBytes;
+	/** Planar RGB tiles, read before being interleaved */
+	private final ThreadLocal<byte[]> planarBuffer = new ThreadLocal<>();
+	private final AtomicLong direct = new AtomicLong();
+	private final AtomicLong missed = new AtomicLong();
+	private final AtomicLong sourceReads = new AtomicLong();
+
+	/** @return whether level 0 tiles should be read directly, see the class doc */
+	static boolean enabled() {
+		return !System.getProperty("kheops.directReads", "true").equals("false");
+	}
+
+	/**
+	 * @param readerPool readers of the source file
+	 * @param series the series of the source file which is exported
+	 * @param bytesPerPixel bytes per sample of the export
+	 * @param samplesPerPixel samples per pixel of the export, 3 for RGB
+	 */
+	DirectTiles(ResourcePool<IFormatReader> readerPool, int series,
+		int bytesPerPixel, int samplesPerPixel)
+	{
+		this(readerPool, series, bytesPerPixel, samplesPerPixel, samplesPerPixel,
+			null, 0);
+	}
+
+	/**
+	 * @param sourceSamples samples per pixel of the source, more than
+	 *          {@code samplesPerPixel} to read its channels fused
+	 * @param exportedChannels the channels of the source which are exported,
+	 *          one sample each, in the export order
+	 * @param maxFusedBytes bytes of fused tiles held at most
+	 */
+	DirectTiles(ResourcePool<IFormatReader> readerPool, int series,
+		int bytesPerPixel, int samplesPerPixel, int sourceSamples,
+		List<Integer> exportedChannels, long maxFusedBytes)
+	{
+		this.readerPool = readerPool;
+		this.series = series;
+		this.bytesPerPixel = bytesPerPixel;
+		this.samplesPerPixel = samplesPerPixel;
+		this.sourceSamples = sourceSamples;
+		this.maxFusedBytes = maxFusedBytes;
+		if (sourceSamples == samplesPerPixel) {
+			exportedSamples = null;
+		}
+		else {
+			int nBlocks = 0;
+			for (int c : exportedChannels) {
+				nBlocks = Math.max(nBlocks, c / sourceSamples + 1);
+			}
+			// A channel exported twice takes its tiles twice
+			exportedSamples = new int[nBlocks];
+			for (int c : exportedChannels) {
+				exportedSamples[c / sourceSamples]++;
+			}
+		}
+	}
+
+	/**
+	 * @param isFloat whether the samples of the export are floats
+	 * @param width width of the exported level 0
+	 * @param height height of the exported level 0
+	 * @param sizeC number of channels of the source image
+	 * @param exportedChannels the channels which are exported
+	 * @return the reader of the level 0 tiles of the source, or null if its
+	 *         bytes are not those of the export
+	 */
+	static DirectTiles create(ResourcePool<IFormatReader> readerPool,
+		int series, int bytesPerPixel, int samplesPerPixel, boolean isFloat,
+		int width, int height, int sizeC, List<Integer> exportedChannels)
+	{
+		int sourceSamples = samplesPerPixel;
+		try {
+			IFormatReader reader = readerPool.acquire();
+			try {
+				reader.setSeries(series);
+				reader.setResolution(0);
+				if (fusable(reader, bytesPerPixel, samplesPerPixel, isFloat, width,
+					height, sizeC))
+				{
+					sourceSamples = reader.getRGBChannelCount();
+				}
+				else if (!compatible(reader, bytesPerPixel, samplesPerPixel, isFloat,
+					width, height))
+				{
+					logger.debug("Level 0 is read through imglib2: the source has " +
+						"another pixel type or size");
+					return null;
+				}
+			}
+			finally {
+				readerPool.recycle(reader);
+			}
+		}
+		catch (Exception e) {
+			logger.debug("Level 0 is read through imglib2: " + e.getMessage());
+			return null;
+		}
+		return new DirectTiles(readerPool, series, bytesPerPixel, samplesPerPixel,
+			sourceSamples, exportedChannels, FUSED_TILE_BYTES);
+	}
+
+	/**
+	 * @return whether the bytes of the reader, set to the exported series and
+	 *         level 0, are those of the export once in big endian order
+	 */
+	static boolean compatible(IFormatReader reader, int bytesPerPixel,
+		int samplesPerPixel, boolean isFloat, int width, int height)
+	{
+		int pixelType = reader.getPixelType();
+		boolean sameType = isFloat ? pixelType == FormatTools.FLOAT
+			: bytesPerPixel == 1 ? pixelType == FormatTools.UINT8
+				: bytesPerPixel == 2 && pixelType == FormatTools.UINT16;
+		return sameType && !reader.isIndexed() && reader
+			.getRGBChannelCount() == samplesPerPixel && reader
+				.getSizeX() == width && reader.getSizeY() == height;
+	}
+
+	/**
+	 * @param sizeC number of channels of the source image, one per sample of
+	 *          the reader when they are exported apart
+	 * @return whether the reader stores several channels in one block, exported
+	 *         one sample each, which can be read fused
+	 */
+	static boolean fusable(IFormatReader reader, int bytesPerPixel,
+		int samplesPerPixel, boolean isFloat, int width, int height, int sizeC)
+	{
+		int rgbChannelCount = reader.getRGBChannelCount();
+		return samplesPerPixel == 1 && rgbChannelCount > 1 && reader
+			.getSizeC() == sizeC && compatible(reader, bytesPerPixel,
+				rgbChannelCount, isFloat, width, height);
+	}
+
+	/**
+	 * @return the big endian bytes of a level 0 tile of the source, or null if
+	 *         it has to be computed
+	 */
+	byte[] tile(int z, int c, int t, int x, int y, int w, int h) {
+		if (sourceSamples != samplesPerPixel) return fusedTile(z, c, t, x, y, w,
+			h);
+		return unfusedTile(z, c, t, x, y, w, h);
+	}
+
+	/**
+	 * As {@link #tile}, for a tile the export reads again later: a fused tile
+	 * is read on its own, neither held nor counted as taken.
+	 */
+	byte[] sample(int z, int c, int t, int x, int y, int w, int h) {
+		if (sourceSamples == samplesPerPixel) return unfusedTile(z, c, t, x, y, w,
+			h);
+		FusedTile fusedTile = new FusedTile(z, c / sourceSamples, t, x, y, w, h,
+			0);
+		FutureTask<byte[]> read = fusedTile.newRead();
+		read.run();
+		try {
+			return fusedTile.sample(read, c % sourceSamples);
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+
+	private byte[] unfusedTile(int z, int c, int t, int x, int y, int w, int h) {
+		byte[] tile = null;
+		try {
+			IFormatReader reader = readerPool.acquire();
+			try {
+				reader.setSeries(series);
+				reader.setResolution(0);
+				tile = read(reader, reader.getIndex(z, c, t), x, y, w, h);
+			}
+			finally {
+				readerPool.recycle(reader);
+			}
+		}
+		catch (Exception e) {
+			if (missed.get() == 0) {
+				logger.debug("A level 0 tile could not be read directly: " + e
+					.getMessage());
+			}
+		}
+		(tile == null ? missed : direct).incrementAndGet();
+		sourceReads.incrementAndGet();
+		return tile;
+	}
+
+	/**
+	 * @return a channel of a tile, split from the tile of all the samples of
+	 *         its pixels, which is read by the first channel which needs it
+	 */
+	private byte[] fusedTile(int z, int c, int t, int x, int y, int w, int h) {
+		int block = c / sourceSamples;
+		TileIterator.IntsKey key = new TileIterator.IntsKey(new int[] { t, block,
+			z, y, x });
+		FusedTile fusedTile;
+		FutureTask<byte[]> read;
+		boolean reading = false;
+		synchronized (pending) {
+			fusedTile = pending.get(key);
+			if (fusedTile == null) {
+				fusedTile = new FusedTile(z, block, t, x, y, w, h,
+					exportedSamples[block]);
+				pending.put(key, fusedTile);
+			}
+			if (fusedTile.read == null) { // Never read, or dropped since
+				fusedTile.read = fusedTile.newRead();
+				reading = true;
+			}
+			read = fusedTile.read;
+			if (--fusedTile.remaining <= 0) {
+				// The last channel of this tile: nothing left to hold it for
+				pending.remove(key);
+				release(key, fusedTile);
+			}
+			else if (reading) {
+				hold(key, fusedTile);
+			}
+		}
+		if (reading) read.run();
+		byte[] tile = null;
+		try {
+			tile = fusedTile.sample(read, c % sourceSamples);
+		}
+		catch (Exception e) {
+			if (missed.get() == 0) {
+				logger.debug("A level 0 tile could not be read directly: " + e
+					.getMessage());
+			}
+		}
+		(tile == null ? missed : direct).incrementAndGet();
+		return tile;
+	}
+
+	/** Holds the samples of a fused tile, dropping the oldest ones held */
+	private void hold(TileIterator.IntsKey key, FusedTile fusedTile) {
+		held.put(key, fusedTile);
+		fusedBytes += fusedTile.bytes;
+		Iterator<Map.Entry<TileIterator.IntsKey, FusedTile>> oldest = held
+			.entrySet().iterator();
+		while (fusedBytes > maxFusedBytes && oldest.hasNext()) {
+			FusedTile dropped = oldest.next().getValue();
+			if (dropped == fusedTile) break;
+			oldest.remove();
+			fusedBytes -= dropped.bytes;
+			// Keeps its count in pending: its next channel reads it again
+			dropped.read = null;
+		}
+	}
+
+	/** Stops holding the samples of a fused tile */
+	private void release(TileIterator.IntsKey key, FusedTile fusedTile) {
+		if (held.remove(key) != null) fusedBytes -= fusedTile.bytes;
+		fusedTile.read = null;
+	}
+
+	/**
+	 * A tile with all the samples of its pixels, as the source stores them,
+	 * and how many exported channels have still to take it
+	 */
+	private final class FusedTile {
+
+		final int z, block, t, x, y, w, h;
+		final int nPixels;
+		final long bytes;
+		/** Guarded by pending */
+		int remaining;
+		/** The read of the samples while they are held, guarded by pending */
+		FutureTask<byte[]> read;
+		volatile boolean interleaved, littleEndian;
+
+		FusedTile(int z, int block, int t, int x, int y, int w, int h,
+			int remaining)
+		{
+			this.z = z;
+			this.block = block;
+			this.t = t;
+			this.x = x;
+			this.y = y;
+			this.w = w;
+			this.h = h;
+			this.remaining = remaining;
+			nPixels = w * h;
+			bytes = (long) nPixels * bytesPerPixel * sourceSamples;
+		}
+
+		/** @return a read of all the samples of the tile, to run */
+		FutureTask<byte[]> newRead() {
+			return new FutureTask<>(() -> {
+				IFormatReader reader = readerPool.acquire();
+				try {
+					reader.setSeries(series);
+					reader.setResolution(0);
+					interleaved = reader.isInterleaved();
+					littleEndian = reader.isLittleEndian();
+					byte[] samples = new byte[(int) bytes];
+					reader.openBytes(reader.getIndex(z, block, t), samples, x, y, w, h);
+					sourceReads.incrementAndGet();
+					return samples;
+				}
+				finally {
+					readerPool.recycle(reader);
+				}
+			});
+		}
+
+		/** @return one sample of each pixel, big endian */
+		byte[] sample(FutureTask<byte[]> read, int sample)
+			throws InterruptedException, ExecutionException
+		{
+			byte[] samples = read.get();
+			byte[] tile = new byte[nPixels * bytesPerPixel];
+			if (interleaved) {
+				int pixelSize = bytesPerPixel * sourceSamples;
+				int src = sample * bytesPerPixel;
+				for (int dst = 0; dst < tile.length; dst += bytesPerPixel) {
+					System.arraycopy(samples, src, tile, dst, bytesPerPixel);
+					src += pixelSize;
+				}
+			}
+			else {
+				System.arraycopy(samples, sample * tile.length, tile, 0, tile.length);
+			}
+			if (bytesPerPixel > 1 && littleEndian) swapBytes(tile, bytesPerPixel);
+			return tile;
+		}
+	}
+
+	/**
+	 * Reads a tile, interleaved and big endian, with a reader already set to
+	 * the right series and resolution level.
+	 */
+	byte[] read(IFormatReader reader, int no, int x, int y, int w, int h)
+		throws FormatException, IOException
+	{
+		int nPixels = w * h;
+		byte[] tile = new byte[nPixels * bytesPerPixel * samplesPerPixel];
+		if (samplesPerPixel == 1 || reader.isInterleaved()) {
+			reader.openBytes(no, tile, x, y, w, h);
+		}
+		else {
+			byte[] planar = planarBuffer.get();
+			if (planar == null || planar.length < tile.length) {
+				planar = new byte[tile.length];
+				planarBuffer.set(planar);
+			}
+			reader.openBytes(no, planar, x, y, w, h);
+			interleave(planar, tile, nPixels, bytesPerPixel, samplesPerPixel);
+		}
+		if (bytesPerPixel > 1 && reader.isLittleEndian()) {
+			swapBytes(tile, bytesPerPixel);
+		}
+		return tile;
+	}
+
+	/**
+	 * RR...GG...BB... to RGBRGB..., for {@code nPixels} pixels of
+	 * {@code samplesPerPixel} samples of {@code bytesPerPixel} bytes
+	 */
+	static void interleave(byte[] planar, byte[] interleaved, int nPixels,
+		int bytesPerPixel, int samplesPerPixel)
+	{
+		int pixelSize = bytesPerPixel * samplesPerPixel;
+		for (int s = 0; s < samplesPerPixel; s++) {
+			int src = s * nPixels * bytesPerPixel;
+			int dst = s * bytesPerPixel;
+			for (int i = 0; i < nPixels; i++) {
+				System.arraycopy(planar, src, interleaved, dst, bytesPerPixel);
+				src += bytesPerPixel;
+				dst += pixelSize;
+			}
+		}
+	}
+
+	/** Reverses the bytes of each sample, in place */
+	static void swapBytes(byte[] bytes, int bytesPerSample) {
+		if (bytesPerSample == 2) {
+			for (int i = 0; i < bytes.length; i += 2) {
+				byte b = bytes[i];
+				bytes[i] = bytes[i + 1];
+				bytes[i + 1] = b;
+			}
+		}
+		else if (bytesPerSample == 4) {
+			for (int i = 0; i < bytes.length; i += 4) {
+				byte b0 = bytes[i];
+				byte b1 = bytes[i + 1];
+				bytes[i] = bytes[i + 3];
+				bytes[i + 1] = bytes[i + 2];
+				bytes[i + 2] = b1;
+				bytes[i + 3] = b0;
+			}
+		}
+	}
+
+	/** @return how many level 0 tiles were read directly */
+	long direct() {
+		return direct.get();
+	}
+
+	/** @return how many times the source was read, fused tiles once each */
+	long reads() {
+		return sourceReads.get();
+	}
+
+	/** @return how many fused tiles some exported channels have still to take */
+	int pendingFusedTiles() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/** @return how many level 0 tiles had to go through imglib2 */
+	long missed() {
+		return missed.get();
+	}
+}
@@ -0,0 +1,190 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.kheops.ometiff;
+
+import loci.common.RandomAccessInputStream;
+import loci.formats.FormatException;
+import loci.formats.codec.BaseCodec;
+import loci.formats.codec.CodecOptions;
+import loci.formats.codec.LZWCodec;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A TIFF LZW encoder which writes, bit for bit, the stream Bio-Formats'
+ * {@link LZWCodec} writes, about twice as fast.
+ * <p>
+ * Since the tiles are compressed on the worker threads, compressing is what
+ * bounds a writer bound export, and {@code LZWCodec.compress} spends most of
+ * its time on things that are not LZW: a 7349 entry hash table cleared with
+ * {@code Arrays.fill} at every tile and every CLEAR code, a modulo per probe,
+ * and an output array of 1.41 times the input allocated for each tile. Here,
+ * each thread keeps its own dictionary and output buffer from one tile to the
+ * next. The dictionary is open-addressed in a single {@code long[]}, each slot
+ * packing the string, its code and a generation number: emptying it is
+ * bumping the generation.
+ * <p>
+ * The stream itself is the same: a CLEAR code first, the code width grows
+ * with TIFF's early change, a CLEAR code when code 4095 has been assigned,
+ * then END_OF_INFORMATION. Same rules, same greedy parsing, same bits - which
+ * {@code FastLZWCodecTest} checks against {@code LZWCodec}. Decompression is
+ * left to {@code LZWCodec}.
+ * <p>
+ * {@code -Dkheops.fastLzw=false} gives the tiles back to {@code LZWCodec}.
+ */
+public final class FastLZWCodec extends BaseCodec {
+
+	private static final int CLEAR_CODE = 256;
+	private static final int EOI_CODE = 257;
+	private static final int FIRST_CODE = 258;
+	/** Largest code: the dictionary is cleared once it has been assigned */
+	private static final int LAST_CODE = 4095;
+
+	/**
+	 * Eight times the codes a dictionary holds, a power of two: with linear
+	 * probing, a half full table probes several times longer. 256 kB per thread
+	 */
+	private static final int TABLE_BITS = 15;
+	private static final int TABLE_MASK = (1 << TABLE_BITS) - 1;
+
+	private static final ThreadLocal<Encoder> ENCODER = ThreadLocal.withInitial(
+		Encoder::new);
+
+	/** @return whether the exporter should use this codec, see the class doc */
+	static boolean enabled() {
+		return !System.getProperty("kheops.fastLzw", "true").equals("false");
+	}
+
+	@Override
+	public byte[] compress(byte[] data, CodecOptions options)
+		throws FormatException
+	{
+		// Same as LZWCodec: nothing to compress, nothing written, not even CLEAR
+		if (data == null || data.length == 0) return data;
+		return ENCODER.get().encode(data);
+	}
+
+	@Override
+	public byte[] decompress(RandomAccessInputStream in, CodecOptions options)
+		throws FormatException, IOException
+	{
+		return new LZWCodec().decompress(in, options);
+	}
+
+	/** The state one thread reuses from tile to tile */
+	private static final class Encoder {
+
+		/**
+		 * Slot: generation (32 bits), then prefix code (12 bits) and next byte
+		 * (8 bits) - the string - then its code (12 bits). A slot of an older
+		 * generation is empty
+		 */
+		private final long[] table = new long[1 << TABLE_BITS];
+		private int generation;
+		private byte[] out = new byte[0];
+
+		// The bit writer: pending bits, right aligned, and how many of them
+		private int pos;
+		private long bits;
+		private int nBits;
+
+		byte[] encode(byte[] data) {
+			// Worst case is one 12 bit code per byte, plus CLEAR codes: 1.5 bytes
+			// per byte covers it without a bounds check in the loop
+			int capacity = data.length + (data.length >> 1) + 16;
+			if (out.length < capacity) out = new byte[capacity];
+			pos = 0;
+			bits = 0;
+			nBits = 0;
+
+			long[] table = this.table;
+			long stamp = clear();
+			int nextCode = FIRST_CODE;
+			int width = 9;
+			write(CLEAR_CODE, 9);
+
+			int omega = data[0] & 0xFF;
+			for (int i = 1; i < data.length; i++) {
+				int k = data[i] & 0xFF;
+				int string = (omega << 8) | k;
+				long key = stamp | ((long) string << 12);
+				int slot = hash(string);
+				long entry;
+				while (((entry = table[slot]) & ~0xFFFL) != key) {
+					if ((entry & 0xFFFFFFFF00000000L) != stamp) break;
+					slot = (slot + 1) & TABLE_MASK;
+				}
+				if ((entry & ~0xFFFL) == key) {
+					omega = (int) (entry & 0xFFF);
+					continue;
+				}
+				// Not in the dictionary: add it, write omega, start over from k
+				table[slot] = key | nextCode++;
+				write(omega, width);
+				omega = k;
+				if (nextCode == 512 || nextCode == 1024 || nextCode == 2048) {
+					width++;
+				}
+				else if (nextCode > LAST_CODE) {
+					write(CLEAR_CODE, width);
+					stamp = clear();
+					nextCode = FIRST_CODE;
+					width = 9;
+				}
+			}
+
+			write(omega, width);
+			// The decoder assigns a code for omega too, and widens its codes
+			// one code early
+			if (nextCode == 511 || nextCode == 1023 || nextCode == 2047) width++;
+			write(EOI_CODE, width);
+			if (nBits > 0) out[pos++] = (byte) (bits << (8 - nBits));
+			return Arrays.copyOf(out, pos);
+		}
+
+		/** Appends a code, most significant bit first */
+		private void write(int code, int width) {
+			bits = (bits << width) | code;
+			nBits += width;
+			while (nBits >= 8) {
+				nBits -= 8;
+				out[pos++] = (byte) (bits >>> nBits);
+			}
+		}
+
+		/** Empties the dictionary, @return the generation bits of the new one */
+		private long clear() {
+			if (++generation == 0) {
+				// Wrapped around after 2^32 clears: stale slots could match again
+				Arrays.fill(table, 0);
+				generation = 1;
+			}
+			return (long) generation << 32;
+		}
+
+		private static int hash(int string) {
+			return (string * 0x9E3779B1) >>> (32 - TABLE_BITS);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.kheops.ometiff;
+
+import loci.common.RandomAccessInputStream;
+import loci.formats.FormatException;
+import loci.formats.codec.BaseCodec;
+import loci.formats.codec.CodecOptions;
+import loci.formats.codec.ZlibCodec;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * A zlib (TIFF Deflate) encoder which keeps its {@link Deflater} and its
+ * output buffer from one tile to the next, with a chosen level and strategy.
+ * <p>
+ * Bio-Formats' {@link ZlibCodec} creates a {@link Deflater} for each tile -
+ * native zlib state of a few hundred kB, allocated, initialised and freed per
+ * tile - copies the stream out 8 kB at a time, and always compresses at
+ * level 6. Most of the cost of a zlib export in {@code CompressionBenchmark}
+ * is that level: level 1 is about twice as fast, and still usually smaller
+ * than LZW. Here, each thread resets its own {@link Deflater} between
+ * tiles, and deflates straight into a buffer it reuses.
+ * <p>
+ * At level 6 and the default strategy the stream is the one {@link ZlibCodec}
+ * writes. Decompression is left to {@link ZlibCodec}.
+ * <p>
+ * {@code -Dkheops.fastZlib=false} gives the tiles back to {@link ZlibCodec}.
+ */
+public final class FastZlibCodec extends BaseCodec {
+
+	/** What {@link ZlibCodec} compresses at: zlib's own default */
+	public static final int DEFAULT_LEVEL = 6;
+
+	final int level;
+	final int strategy;
+
+	/** Per codec: the level and the strategy are those of the codec */
+	private final ThreadLocal<Encoder> encoder = ThreadLocal.withInitial(
+		Encoder::new);
+
+	/** @return whether the exporter should use this codec, see the class doc */
+	static boolean enabled() {
+		return !System.getProperty("kheops.fastZlib", "true").equals("false");
+	}
+
+	public FastZlibCodec() {
+		this(DEFAULT_LEVEL, Deflater.DEFAULT_STRATEGY);
+	}
+
+	/**
+	 * @param level 1 (fastest) to 9 (smallest)
+	 * @param strategy {@link Deflater#DEFAULT_STRATEGY},
+	 *          {@link Deflater#FILTERED} or {@link Deflater#HUFFMAN_ONLY}
+	 */
+	public FastZlibCodec(int level, int strategy) {
+		if (level < 1 || level > 9) {
+			throw new IllegalArgumentException("Deflate level " + level +
+				" is not between 1 and 9");
+		}
+		if (strategy != Deflater.DEFAULT_STRATEGY &&
+			strategy != Deflater.FILTERED && strategy != Deflater.HUFFMAN_ONLY)
+		{
+			throw new IllegalArgumentException("Unknown Deflate strategy " +
+				strategy);
+		}
+		this.level = level;
+		this.strategy = strategy;
+	}
+
+	@Override
+	public byte[] compress(byte[] data, CodecOptions options)
+		throws FormatException
+	{
+		if (data == null || data.length == 0) return data;
+		return encoder.get().encode(data);
+	}
+
+	@Override
+	public byte[] decompress(RandomAccessInputStream in, CodecOptions options)
+		throws FormatException, IOException
+	{
+		return new ZlibCodec().decompress(in, options);
+	}
+
+	/** The state one thread reuses from tile to tile */
+	private final class Encoder {
+
+		private final Deflater deflater = new Deflater(level);
+		private byte[] out = new byte[0];
+
+		Encoder() {
+			deflater.setStrategy(strategy);
+		}
+
+		byte[] encode(byte[] data) {
+			deflater.reset();
+			deflater.setInput(data);
+			deflater.finish();
+			// zlib's deflateBound, about: stored blocks when nothing compresses
+			int capacity = data.length + (data.length >> 12) + (data.length >> 14) +
+				64;
+			if (out.length < capacity) out = new byte[capacity];
+			int pos = 0;
+			while (!deflater.finished()) {
+				if (pos == out.length) out = Arrays.copyOf(out, 2 * out.length);
+				pos += deflater.deflate(out, pos, out.length - pos);
+			}
+			return Arrays.copyOf(out, pos);
+		}
+	}
+}
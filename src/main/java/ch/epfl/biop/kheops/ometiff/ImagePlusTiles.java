@@ -0,0 +1,263 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package ch.epfl.biop.kheops.ometiff;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The tiles of resolution level 0, copied from the pixel arrays of an
+ * {@link ImagePlus} instead of through the imglib2 view of it.
+ * <p>
+ * An image in memory already holds its planes as primitive arrays, one per
+ * {@code ImageProcessor}. The view wraps them into cached cells, and a cursor
+ * copies each tile pixel by pixel into a big endian {@code byte[]}. Here the
+ * rows of a tile are copied in bulk from the array of its plane, through a big
+ * endian {@code ByteBuffer} view of the tile for 16 bits and float pixels.
+ * RGB pixels are split into their three bytes, as {@link SourceToByteArray}
+ * does.
+ * <p>
+ * A virtual stack reads a plane from its file each time its pixels are asked
+ * for: its planes are read once, in the background, a few planes ahead in the
+ * export order and several at a time, and each is held until all its tiles are
+ * copied. A plane read again afterwards is read without being held.
+ * <p>
+ * The check that the pixels of the image are those of the export is made
+ * once, in {@link #create}: an image which does not pass - an indexed color
+ * image for instance - is read through imglib2 as before, as is a tile which
+ * fails to be copied. {@code -Dkheops.imagePlusTiles=false} switches this off.
+ */
+final class ImagePlusTiles {
+
+	private static final Logger logger = LoggerFactory.getLogger(
+		ImagePlusTiles.class);
+
+	final ImageStack stack;
+	/** The stack index of each exported plane, in the export order */
+	final int[] stackIndexes;
+	final int pixelSize;
+	/** Planes read ahead of the one being copied, for virtual stacks */
+	final int readAhead;
+	/** Reads the planes of a virtual stack, null for a stack in memory */
+	private final ExecutorService executor;
+	/** Planes of a virtual stack read or being read, by exported plane */
+	private final Map<Integer, Future<Object>> planes = new ConcurrentHashMap<>();
+	/** Tiles of each exported plane left to copy */
+	private final AtomicIntegerArray remainingTiles;
+	private final AtomicLong copied = new AtomicLong();
+	private final AtomicLong missed = new AtomicLong();
+	private final AtomicLong planeReads = new AtomicLong();
+
+	/** @return whether level 0 tiles should be copied from the image, see the class doc */
+	static boolean enabled() {
+		return !System.getProperty("kheops.imagePlusTiles", "true").equals(
+			"false");
+	}
+
+	/**
+	 * @param stack the planes of the image
+	 * @param stackIndexes the stack index of each exported plane, in the export
+	 *          order
+	 * @param pixelSize bytes per pixel of the export, 3 for RGB
+	 * @param tilesPerPlane number of level 0 tiles of a plane
+	 * @param nThreads how many planes of a virtual stack to read at the same
+	 *          time, and ahead of the one being copied
+	 * @param name name of the export, for the threads
+	 */
+	ImagePlusTiles(ImageStack stack, int[] stackIndexes, int pixelSize,
+		int tilesPerPlane, int nThreads, String name)
+	{
+		this.stack = stack;
+		this.stackIndexes = stackIndexes;
+		this.pixelSize = pixelSize;
+		this.remainingTiles = new AtomicIntegerArray(stackIndexes.length);
+		for (int i = 0; i < stackIndexes.length; i++) {
+			remainingTiles.set(i, tilesPerPlane);
+		}
+		if (stack.isVirtual()) {
+			readAhead = nThreads;
+			executor = Executors.newFixedThreadPool(nThreads, runnable -> {
+				Thread thread = new Thread(runnable, "Kheops planes " + name);
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		else {
+			readAhead = 0;
+			executor = null;
+		}
+	}
+
+	/**
+	 * @param bytesPerPixel bytes per sample of the export
+	 * @param isFloat whether the samples of the export are floats
+	 * @param isRGB whether the export is RGB
+	 * @param width width of the exported level 0
+	 * @param height height of the exported level 0
+	 * @return the copier of the level 0 tiles of the image, or null if its
+	 *         pixels are not those of the export
+	 */
+	static ImagePlusTiles create(ImagePlus image, int bytesPerPixel,
+		boolean isFloat, boolean isRGB, int width, int height, int[] stackIndexes,
+		int tilesPerPlane, int nThreads, String name)
+	{
+		if (!compatible(image, bytesPerPixel, isFloat, isRGB, width, height)) {
+			logger.debug("Level 0 is read through imglib2: the image has another " +
+				"pixel type or size");
+			return null;
+		}
+		return new ImagePlusTiles(image.getStack(), stackIndexes, isRGB ? 3
+			: bytesPerPixel, tilesPerPlane, Math.max(1, nThreads), name);
+	}
+
+	/**
+	 * @return whether the pixel arrays of the image hold the samples of the
+	 *         export
+	 */
+	static boolean compatible(ImagePlus image, int bytesPerPixel,
+		boolean isFloat, boolean isRGB, int width, int height)
+	{
+		boolean sameType;
+		switch (image.getType()) {
+			case ImagePlus.GRAY8:
+				sameType = bytesPerPixel == 1 && !isRGB;
+				break;
+			case ImagePlus.GRAY16:
+				sameType = bytesPerPixel == 2 && !isFloat;
+				break;
+			case ImagePlus.GRAY32:
+				sameType = isFloat;
+				break;
+			case ImagePlus.COLOR_RGB:
+				sameType = isRGB;
+				break;
+			default: // Indexed colors
+				sameType = false;
+		}
+		return sameType && image.getWidth() == width && image
+			.getHeight() == height;
+	}
+
+	/**
+	 * @param plane index of the exported plane, in the export order
+	 * @return the big endian bytes of a level 0 tile of the image, or null if
+	 *         it has to be computed
+	 */
+	byte[] tile(int plane, int x, int y, int w, int h) {
+		byte[] tile = null;
+		try {
+			tile = copy(pixels(plane), x, y, w, h);
+		}
+		catch (Exception e) {
+			if (missed.get() == 0) {
+				logger.debug("A level 0 tile could not be copied from the image: " +
+					e.getMessage());
+			}
+		}
+		(tile == null ? missed : copied).incrementAndGet();
+		return tile;
+	}
+
+	/**
+	 * As {@link #tile}, for a tile the export copies again later: the plane is
+	 * read without being held, and the tile is not counted.
+	 *
+	 * @param plane index of the exported plane, in the export order
+	 * @return the big endian bytes of a level 0 tile, or null if they have to
+	 *         be computed
+	 */
+	byte[] sample(int plane, int x, int y, int w, int h) {
+		try {
+			return copy(stack.getPixels(stackIndexes[plane]), x, y, w, h);
+		}
+		catch (Exception e) {
+			return null;
+		}
+	}
+
+	/** @return the pixel array of an exported plane */
+	private Object pixels(int plane) throws Exception {
+		if (executor == null) return stack.getPixels(stackIndexes[plane]);
+		for (int i = plane; i <= Math.min(plane + readAhead, stackIndexes.length -
+			1); i++)
+		{
+			if (remainingTiles.get(i) > 0) read(i);
+		}
+		Future<Object> read = planes.get(plane);
+		if (read == null) { // All its tiles are copied already
+			planeReads.incrementAndGet();
+			return stack.getPixels(stackIndexes[plane]);
+		}
+		Object pixels = read.get();
+		if (remainingTiles.decrementAndGet(plane) <= 0) planes.remove(plane);
+		return pixels;
+	}
+
+	/** Reads a plane of the virtual stack in the background, once */
+	private void read(int plane) {
+		planes.computeIfAbsent(plane, p -> executor.submit(() -> {
+			planeReads.incrementAndGet();
+			return stack.getPixels(stackIndexes[p]);
+		}));
+	}
+
+	/** Copies a tile of a plane, row by row, see {@link SourceToByteArray#copyRows} */
+	private byte[] copy(Object pixels, int x, int y, int w, int h) {
+		int width = stack.getWidth();
+		byte[] tile = new byte[w * h * pixelSize];
+		return SourceToByteArray.copyRows(pixels, y * width + x, width, tile, 0, w,
+			w, h, pixelSize) ? tile : null;
+	}
+
+	/** Stops reading the planes of a virtual stack, once the export is over */
+	void shutdown() {
+		if (executor != null) executor.shutdownNow();
+		planes.clear();
+	}
+
+	/** @return how many level 0 tiles were copied from the image */
+	long copied() {
+		return copied.get();
+	}
+
+	/** @return how many level 0 tiles had to go through imglib2 */
+	long missed() {
+		return missed.get();
+	}
+
+	/** @return how many planes of a virtual stack were read */
+	long planeReads() {
+		return planeReads.get();
+	}
+}
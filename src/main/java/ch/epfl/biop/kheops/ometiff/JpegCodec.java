@@ -0,0 +1,98 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.kheops.ometiff;
+
+import loci.common.RandomAccessInputStream;
+import loci.formats.FormatException;
+import loci.formats.codec.BaseCodec;
+import loci.formats.codec.CodecOptions;
+import loci.formats.codec.JPEGCodec;
+import loci.formats.gui.AWTImageTools;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * JPEG with a chosen quality. The tiles are the very JFIF streams Bio-Formats'
+ * own {@link JPEGCodec} writes - it goes through ImageIO too - except that
+ * {@link JPEGCodec} always leaves ImageIO at its default quality of 75.
+ * <p>
+ * Meant for the resolution levels which are only there to navigate the image,
+ * see {@code WriterOptionsBuilder#levelCompression}: the exporter compresses
+ * their tiles with this codec on its worker threads. Decompression is left to
+ * {@link JPEGCodec}.
+ */
+final class JpegCodec extends BaseCodec {
+
+	/** ImageIO's quality, 0 to 1 */
+	final float quality;
+
+	/**
+	 * @param quality JPEG quality, 1 (smallest) to 100 (best)
+	 */
+	JpegCodec(int quality) {
+		this.quality = quality / 100f;
+	}
+
+	@Override
+	public byte[] compress(byte[] data, CodecOptions options)
+		throws FormatException
+	{
+		if (options.bitsPerSample > 8) {
+			throw new FormatException("JPEG needs 8 bit pixels, not " +
+				options.bitsPerSample + " bit");
+		}
+		BufferedImage image = AWTImageTools.makeImage(data, options.width,
+			options.height, options.channels, options.interleaved, 1, false,
+			options.littleEndian, options.signed);
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(quality);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ImageOutputStream stream = ImageIO.createImageOutputStream(out)) {
+			writer.setOutput(stream);
+			writer.write(null, new IIOImage(image, null, null), param);
+		}
+		catch (IOException e) {
+			throw new FormatException(e);
+		}
+		finally {
+			writer.dispose();
+		}
+		return out.toByteArray();
+	}
+
+	@Override
+	public byte[] decompress(RandomAccessInputStream in, CodecOptions options)
+		throws FormatException, IOException
+	{
+		return new JPEGCodec().decompress(in, options);
+	}
+}
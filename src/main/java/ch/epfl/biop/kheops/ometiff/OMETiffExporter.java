@@ -24,12 +24,17 @@ package ch.epfl.biop.kheops.ometiff;
 
 import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
+import ch.epfl.biop.bdv.img.ResourcePool;
 import ch.epfl.biop.kheops.CZTRange;
 import ch.epfl.biop.kheops.KheopsHelper;
+import ch.epfl.biop.kheops.ometiff.omecommon.FastOutput;
+import ij.ImagePlus;
 import loci.common.image.IImageScaler;
+import loci.formats.IFormatReader;
 import loci.formats.MetadataTools;
 import loci.formats.codec.Codec;
 import loci.formats.codec.CodecOptions;
+import loci.formats.codec.ZlibCodec;
 import loci.formats.in.OMETiffReader;
 import loci.formats.meta.IMetadata;
 import loci.formats.meta.IPyramidStore;
@@ -65,14 +70,21 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
+import java.util.zip.Deflater;
 
 import static ch.epfl.biop.kheops.ometiff.SourceToByteArray.validPixelType;
 
@@ -109,10 +121,54 @@ public class OMETiffExporter<T extends NumericType<T>> {
 	final CZTRange range; // To save a subset of C Z or T
 	final int nResolutionLevels;
 	final int downsample;
-	final String compression;
+	/**
+	 * The compression of the export. {@code Auto} is resolved by
+	 * {@link #export()}, see {@link #chooseCompression()}: until then it stands
+	 * for LZW, one of the candidates
+	 */
+	String compression;
+	/** Whether {@code export} picks the compression, see {@link AutoCompression} */
+	final boolean autoCompression;
+	/** Seconds the automatic compression may spend, 0 for the fastest export */
+	final double autoTimeBudget;
+	/** The compressions set from some level on */
+	final NavigableMap<Integer, String> levelCompressions;
 	final File file;
 	final int nThreads;
 	final int dstSeries = 0;
+	/** Bypass the page cache for the final and the temporary files, see {@link FastOutput} */
+	final boolean directIO;
+	/** Move every IFD to the head of the file once written, see {@link BigTiffFile} */
+	final boolean cloudOptimizedLayout;
+	/** Where the tiles of a plane go in the file, see {@link TileOrder} */
+	final TileOrder tileOrder;
+	/** Compression level of the Zstandard codec, see {@link ZstdCodec} */
+	final int zstdLevel;
+	/** Applied by the workers before compressing, see {@link Predictor} */
+	final Predictor predictor;
+	/** Quality of the JPEG tiles, 1 to 100, or 0 for Bio-Formats' default */
+	final int jpegQuality;
+	/** Level and strategy of the zlib tiles, see {@link FastZlibCodec} */
+	final int zlibLevel, zlibStrategy;
+	/**
+	 * The background tiles, compressed once and stored once, or null: only
+	 * when the tiles are moved once the file is closed, which drops the repeats
+	 */
+	final ConstantTiles constantTiles;
+	/** Content hashes of the tiles, when deduplicating them, or null */
+	final TileIndex tileIndex;
+	/** Readers of the file the data comes from, or null if unknown */
+	final ResourcePool<IFormatReader> sourceReaders;
+	/** The series of the source file which is exported */
+	final int sourceSeries;
+	/** Whether to copy the compressed tiles of the source, see {@link PassthroughTiles} */
+	final boolean passthrough;
+	/** Reads level 0 from the source readers, or null to go through {@code ctToRAI} */
+	final DirectTiles directTiles;
+	/** Copies level 0 from the image the data comes from, or null, see {@link ImagePlusTiles} */
+	final ImagePlusTiles imagePlusTiles;
+	/** How many level 0 tiles to read ahead of the workers, see {@link TilePrefetcher} */
+	final int prefetchDistance;
 
 	// ----------- Information collected before the export
 	long totalTiles;
@@ -150,19 +206,43 @@ public class OMETiffExporter<T extends NumericType<T>> {
 	/** How each resolution level has to be compressed, see {@link #codecOptions} */
 	final Map<Integer, CodecOptions> resToCodecOptions = new HashMap<>();
 
+	/**
+	 * The compression of each resolution level: {@code compression}, unless
+	 * another one is set from some level on, see
+	 * {@code WriterOptionsBuilder#levelCompression}
+	 */
+	final Map<Integer, String> resToCompression = new HashMap<>();
+
+	/**
+	 * The codec the workers compress the tiles of each resolution level with, or
+	 * null to leave the compression of that level to the writer. Filled before
+	 * the workers are started, see {@link #precompressionCodec}
+	 */
+	final Map<Integer, Codec> resToTileCodec = new HashMap<>();
+
+	/**
+	 * The level 0 tiles copied from the source file, or null. Set before the
+	 * workers are started
+	 */
+	PassthroughTiles passthroughTiles;
+
+	/**
+	 * Reads level 0 ahead of the workers, or null. Set before the workers are
+	 * started
+	 */
+	TilePrefetcher prefetcher;
+
+	/** Stands for a tile in {@code computedBlocks} when only its compressed copy exists */
+	private static final byte[] COPIED_TILE = new byte[0];
+
 	// ------------ Fields updated live during the saving
 	final AtomicLong writtenTiles = new AtomicLong();
 	final Map<TileIterator.IntsKey, byte[]> computedBlocks;
 	/**
 	 * The same tiles as {@code computedBlocks}, compressed by the worker threads.
-	 * Empty when the writer compresses them itself, see {@link #tileCodec}
+	 * Empty when the writer compresses them itself, see {@link #resToTileCodec}
 	 */
 	final Map<TileIterator.IntsKey, byte[]> compressedBlocks;
-	/**
-	 * The codec the workers compress tiles with, or null to leave the
-	 * compression to the writer. Set once, before the workers are started
-	 */
-	volatile Codec tileCodec;
 	final TileIterator tileIterator;
 	final Task writerTask;
 	final Object tileLock = new Object();
@@ -176,6 +256,10 @@ public class OMETiffExporter<T extends NumericType<T>> {
 	protected OMETiffExporter(
 			// Image data
 			Map<Integer, Map<Integer, RandomAccessibleInterval<T>>> ctToRAI, // Image data
+			// Readers of the file the image data comes from, if any
+			ResourcePool<IFormatReader> sourceReaders, int sourceSeries,
+			// Image the image data comes from, if any
+			ImagePlus sourceImage,
 			// Image metadata
 			IMetadata originalOmeMeta, int originalSeries,
 			// Writing options, including czt optional subset
@@ -250,9 +334,36 @@ public class OMETiffExporter<T extends NumericType<T>> {
 		this.downsample = writerSettings.downSample;
 		this.nResolutionLevels = writerSettings.nResolutions;
 		this.file = new File(writerSettings.path);
-		this.compression = writerSettings.compression;
 		this.nThreads = writerSettings.nThreads;
-
+		this.directIO = writerSettings.directIO;
+		// The repeats only leave the file when it is rewritten, and the Predictor
+		// tag is inserted by the same rewrite
+		this.cloudOptimizedLayout = writerSettings.cloudOptimizedLayout ||
+			writerSettings.dedupIndexSize > 0 ||
+			writerSettings.predictor != Predictor.NONE;
+		this.tileOrder = writerSettings.tileOrder;
+		this.constantTiles = (cloudOptimizedLayout ||
+			tileOrder != TileOrder.ROW_MAJOR) && ConstantTiles.enabled()
+				? new ConstantTiles() : null;
+		this.zstdLevel = writerSettings.zstdLevel;
+		this.predictor = writerSettings.predictor;
+		this.jpegQuality = writerSettings.jpegQuality;
+		this.zlibLevel = writerSettings.zlibLevel;
+		this.zlibStrategy = writerSettings.zlibStrategy;
+		this.tileIndex = writerSettings.dedupIndexSize > 0
+				? new TileIndex(writerSettings.dedupIndexSize) : null;
+		this.sourceReaders = sourceReaders;
+		this.sourceSeries = sourceSeries;
+		this.passthrough = writerSettings.passthrough;
+		if (passthrough && sourceReaders == null) {
+			throw new UnsupportedOperationException("Copying the source tiles " +
+					"needs the readers of the source file, see setReaderPool");
+		}
+		this.directTiles = sourceReaders != null && DirectTiles.enabled()
+				? DirectTiles.create(sourceReaders, sourceSeries, bytesPerPixel,
+						samplesPerPixel, isFloat, width, height, iniSizeC, range.getRangeC())
+				: null;
+		this.prefetchDistance = writerSettings.prefetchDistance;
 
 		// A tile size which is not strictly positive means that the user does not
 		// want any tiling: a whole plane is then written at once, and the export
@@ -260,6 +371,9 @@ public class OMETiffExporter<T extends NumericType<T>> {
 		// https://github.com/BIOP/ijp-kheops/issues/31
 		this.tiled = writerSettings.tileX > 0 && writerSettings.tileY > 0;
 
+		// The tiles of the source file, if known: level 0 is read from them
+		int[] sourceTile = tiled ? sourceTileSize() : null;
+
 		// The tile size is adapted to each resolution level, and the number of
 		// tiles is counted along the way
 		// some assertion : same dimensions for all nr and c and t
@@ -267,21 +381,106 @@ public class OMETiffExporter<T extends NumericType<T>> {
 			int maxX = mapResToWidth.get(r);
 			int maxY = mapResToHeight.get(r);
 			// Without tiling, the single block covers the whole resolution level
-			int tileSizeX = tiled ? adjustTileSize(writerSettings.tileX, maxX)
-					: Math.max(maxX, 1);
-			int tileSizeY = tiled ? adjustTileSize(writerSettings.tileY, maxY)
-					: Math.max(maxY, 1);
+			int tileSizeX = !tiled ? Math.max(maxX, 1) : r == 0 && sourceTile != null
+					? alignTileSize(writerSettings.tileX, sourceTile[0], maxX)
+					: adjustTileSize(writerSettings.tileX, maxX);
+			int tileSizeY = !tiled ? Math.max(maxY, 1) : r == 0 && sourceTile != null
+					? alignTileSize(writerSettings.tileY, sourceTile[1], maxY)
+					: adjustTileSize(writerSettings.tileY, maxY);
 			resToTileX.put(r, tileSizeX);
 			resToTileY.put(r, tileSizeY);
 			resToNX.put(r, (int) Math.ceil(maxX / (double) tileSizeX));
 			resToNY.put(r, (int) Math.ceil(maxY / (double) tileSizeY));
 		}
+		this.imagePlusTiles = sourceImage != null && ImagePlusTiles.enabled()
+				? ImagePlusTiles.create(sourceImage, bytesPerPixel, isFloat, isRGB,
+						width, height, stackIndexes(sourceImage), resToNX.get(0) * resToNY
+								.get(0), nThreads, file.getName()) : null;
+		if (sourceTile != null) {
+			logger.info(String.format(Locale.ROOT, "%s level 0 tiles %dx%d over " +
+					"source tiles %dx%d: each source tile is decoded x%.2f", file
+							.getName(), resToTileX.get(0), resToTileY.get(0), sourceTile[0],
+					sourceTile[1], decodeAmplification(width, resToTileX.get(0),
+							sourceTile[0]) * decodeAmplification(height, resToTileY.get(0),
+									sourceTile[1])));
+		}
 
 		// Every resolution level compresses with its own tile size
 		for (int r = 0; r < writerSettings.nResolutions; r++) {
 			resToCodecOptions.put(r, codecOptions(r));
 		}
 
+		// Sampling the tiles reads the data, which is the job of export()
+		this.autoCompression = AutoCompression.COMPRESSION.equals(
+				writerSettings.compression);
+		this.autoTimeBudget = writerSettings.autoTimeBudget;
+		this.compression = autoCompression ? CompressionType.LZW.getCompression()
+				: writerSettings.compression;
+		this.levelCompressions = writerSettings.levelCompressions;
+		setLevelCompressions();
+		if (!writerSettings.levelCompressions.isEmpty() &&
+				(!writerCompatibleTiles() || writerSettings.levelCompressions
+						.containsValue(ZstdCodec.COMPRESSION))) {
+			// Both are declared in the file once it is closed, for all its IFDs
+			throw new UnsupportedOperationException("A per level compression " +
+					"cannot be combined with Zstd compression or a predictor");
+		}
+		for (int r = 0; r < writerSettings.nResolutions; r++) {
+			if (resToCompression.get(r).equals(CompressionType.JPEG
+					.getCompression()) && bytesPerPixel != 1) {
+				throw new UnsupportedOperationException("JPEG compression needs 8 " +
+						"bit pixels, resolution level " + r + " has " + (8 *
+								bytesPerPixel) + " bit pixels");
+			}
+		}
+
+		if (predictor != Predictor.NONE && !isZstd() &&
+				!compression.equals(CompressionType.LZW.getCompression()) &&
+				!compression.equals(CompressionType.ZLIB.getCompression())) {
+			throw new UnsupportedOperationException("A predictor needs LZW, zlib or " +
+					"Zstd compression, not " + compression);
+		}
+		if (predictor == Predictor.FLOATING_POINT && !isFloat) {
+			throw new UnsupportedOperationException(
+					"The floating point predictor needs float pixels");
+		}
+		// Zstandard and predicted tiles can only reach the file compressed by the
+		// workers, see precompressionCodec: the writer cannot do it itself
+		if (!writerCompatibleTiles()) {
+			String what = isZstd() ? "Zstd compression" : "A predictor";
+			if (!tiled) {
+				throw new UnsupportedOperationException(what +
+						" needs a tiled export");
+			}
+			for (int r = 0; r < nResolutionLevels; r++) {
+				if (!precompressible(r)) {
+					throw new UnsupportedOperationException(what +
+							" is not supported for planar RGB levels");
+				}
+			}
+		}
+
+		// Only the workers compress at a given JPEG quality, see
+		// precompressionCodec: the writer's JPEGCodec has none
+		if (jpegQuality > 0) {
+			for (int r = 0; r < nResolutionLevels; r++) {
+				if (!resToCompression.get(r).equals(CompressionType.JPEG
+						.getCompression())) continue;
+				if (!tiled) {
+					throw new UnsupportedOperationException(
+							"A JPEG quality needs a tiled export");
+				}
+				if (!precompressible(r)) {
+					throw new UnsupportedOperationException("A JPEG quality is not " +
+							"supported for planar RGB levels");
+				}
+			}
+			if (System.getProperty("kheops.precompress", "true").equals("false")) {
+				logger.warn(file.getName() + " JPEG quality " + jpegQuality +
+						" ignored: pre-compression disabled by property");
+			}
+		}
+
 		// Initialise transient variables for exporting
 		writtenTiles.set(0);
 		tileIterator = new TileIterator(nResolutionLevels, sizeT, sizeC, sizeZ,
@@ -291,6 +490,71 @@ public class OMETiffExporter<T extends NumericType<T>> {
 
 	}
 
+	/** A level is compressed as the closest level given at or before it */
+	private void setLevelCompressions() {
+		for (int r = 0; r < nResolutionLevels; r++) {
+			Map.Entry<Integer, String> levelCompression = levelCompressions
+					.floorEntry(r);
+			resToCompression.put(r, levelCompression == null ? compression
+					: levelCompression.getValue());
+		}
+	}
+
+	/**
+	 * Measures the candidate compressions on a sample of level 0 tiles, spread
+	 * over the planes and the positions of the export, and picks one, see
+	 * {@link AutoCompression}.
+	 */
+	private void chooseCompression() throws Exception {
+		double timeBudget = autoTimeBudget;
+		long nTiles = (long) resToNX.get(0) * resToNY.get(0);
+		long nPlanes = (long) sizeT * sizeC * sizeZ;
+		int nSamples = (int) Math.min(AutoCompression.SAMPLE_TILES, nTiles *
+				nPlanes);
+		List<byte[]> sample = new ArrayList<>(nSamples);
+		for (int i = 0; i < nSamples; i++) {
+			long index = i * nTiles * nPlanes / nSamples;
+			int plane = (int) (index / nTiles);
+			int tile = (int) (index % nTiles);
+			int x = tile % resToNX.get(0);
+			int y = tile / resToNX.get(0);
+			byte[] bytes = sampleTile(new TileIterator.IntsKey(new int[] { 0,
+					plane / (sizeZ * sizeC), plane / sizeZ % sizeC, plane % sizeZ, y,
+					x }));
+			if (predictor != Predictor.NONE) {
+				predictor.apply(bytes, Math.min(resToTileX.get(0), width - x * resToTileX
+						.get(0)), Math.min(resToTileY.get(0), height - y * resToTileY.get(
+								0)), bytesPerPixel, samplesPerPixel, isLittleEndian);
+			}
+			sample.add(bytes);
+		}
+
+		List<AutoCompression.Estimate> estimates = new ArrayList<>();
+		for (String candidate : AutoCompression.candidates(
+				predictor != Predictor.NONE)) {
+			estimates.add(AutoCompression.measure(candidate, AutoCompression.codec(
+					candidate, zlibCodec()), sample, resToCodecOptions.get(0)));
+		}
+		File directory = file.getAbsoluteFile().getParentFile();
+		double bandwidth = AutoCompression.writeBandwidth(directory);
+
+		long rawBytes = 0;
+		for (int r = 0; r < nResolutionLevels; r++) {
+			rawBytes += (long) mapResToWidth.get(r) * mapResToHeight.get(r);
+		}
+		rawBytes *= nPlanes * bytesPerPixel * samplesPerPixel;
+		// Only tiled exports are compressed on the workers, see
+		// precompressionCodec
+		AutoCompression.Estimate chosen = AutoCompression.choose(estimates,
+				rawBytes, bandwidth, tiled ? nThreads : 0, timeBudget);
+		logger.info(file.getName() + " automatic compression: " + estimates +
+				String.format(Locale.ROOT, ", disk at %.0f MB/s", bandwidth / 1e6) +
+				" -> " + chosen.compression + (timeBudget > 0 ? " (smallest within " +
+						timeBudget + " s)" : " (fastest)"));
+		compression = chosen.compression;
+		setLevelCompressions();
+	}
+
 	/**
 	 * The options a tile of this resolution level has to be compressed with, to
 	 * be accepted by {@link OMETiffWriter#saveCompressedBytes}.
@@ -348,6 +612,79 @@ public class OMETiffExporter<T extends NumericType<T>> {
 		return Math.min(Math.max(tileSize, TILE_GRANULARITY), maxTileSize);
 	}
 
+	/**
+	 * The tile size of level 0 when the tiles of the source are known: a
+	 * multiple of the source tile, so that each source tile is decoded for a
+	 * single export tile, see {@link KheopsHelper#alignTileSize}. Unlike
+	 * {@link #adjustTileSize}, the tiles are not shrunk to spread the padding:
+	 * that would shift the grid. A source tile which is not a multiple of 16, or
+	 * bigger than the requested tile, cannot be aligned with, and the tile size
+	 * is adjusted as usual.
+	 *
+	 * @param requestedTileSize tile size requested by the user, along one axis
+	 * @param sourceTileSize tile size of the source, along the same axis
+	 * @param imageSize size of the image along the same axis
+	 * @return the tile size which is effectively used along this axis
+	 */
+	static int alignTileSize(int requestedTileSize, int sourceTileSize,
+			int imageSize) {
+		if (sourceTileSize <= 0 || sourceTileSize % TILE_GRANULARITY != 0 ||
+				sourceTileSize > requestedTileSize) {
+			return adjustTileSize(requestedTileSize, imageSize);
+		}
+		int aligned = KheopsHelper.alignTileSize(requestedTileSize, sourceTileSize);
+		// A single tile starts at 0, whatever its size: it can be shrunk
+		return imageSize <= aligned ? adjustTileSize(aligned, imageSize) : aligned;
+	}
+
+	/**
+	 * How many times each source tile is decoded along one axis, when every
+	 * export tile reads the source tiles it overlaps and nothing is kept in
+	 * between: 1 for aligned grids, up to 2 per axis otherwise.
+	 *
+	 * @param imageSize size of the image along the axis
+	 * @param tileSize tile size of the export
+	 * @param sourceTileSize tile size of the source
+	 * @return source tiles decoded per source tile
+	 */
+	static double decodeAmplification(int imageSize, int tileSize,
+			int sourceTileSize) {
+		long decoded = 0;
+		for (int start = 0; start < imageSize; start += tileSize) {
+			int end = Math.min(start + tileSize, imageSize) - 1;
+			decoded += end / sourceTileSize - start / sourceTileSize + 1;
+		}
+		return decoded / Math.ceil(imageSize / (double) sourceTileSize);
+	}
+
+	/**
+	 * @return the optimal tile size of the source readers at level 0, or null
+	 *         if there are no source readers or they do not describe this image
+	 */
+	private int[] sourceTileSize() {
+		if (sourceReaders == null) return null;
+		try {
+			IFormatReader reader = sourceReaders.acquire();
+			try {
+				reader.setSeries(sourceSeries);
+				reader.setResolution(0);
+				if (reader.getSizeX() != width || reader.getSizeY() != height) {
+					return null;
+				}
+				return new int[] { reader.getOptimalTileWidth(), reader
+						.getOptimalTileHeight() };
+			}
+			finally {
+				sourceReaders.recycle(reader);
+			}
+		}
+		catch (Exception e) {
+			logger.debug(file.getName() + " source tile size unknown: " + e
+					.getMessage());
+			return null;
+		}
+	}
+
 	public void cancelExport() {
 		isCanceled = true;
 		while (!writerTask.isDone()) {
@@ -358,6 +695,111 @@ public class OMETiffExporter<T extends NumericType<T>> {
 		}
 	}
 
+	/**
+	 * A tile of resolution level 0, read directly from the source file when
+	 * possible, see {@link DirectTiles}.
+	 */
+	private byte[] level0Tile(TileIterator.IntsKey key) {
+		if (imagePlusTiles != null) {
+			byte[] tile = imagePlusTile(key.array, false);
+			if (tile != null) return tile;
+		}
+		if (directTiles != null) {
+			byte[] tile = prefetcher != null ? prefetcher.take(level0Index(key.array))
+					: null;
+			if (tile == null) tile = directTile(key.array, false);
+			if (tile != null) return tile;
+		}
+		return getBytesFromRAIs(key);
+	}
+
+	/**
+	 * As {@link #level0Tile}, for a tile the export reads again later: nothing
+	 * read ahead is taken, and the planes of the image are not held.
+	 */
+	private byte[] sampleTile(TileIterator.IntsKey key) {
+		if (imagePlusTiles != null) {
+			byte[] tile = imagePlusTile(key.array, true);
+			if (tile != null) return tile;
+		}
+		if (directTiles != null) {
+			byte[] tile = directTile(key.array, true);
+			if (tile != null) return tile;
+		}
+		return getBytesFromRAIs(key);
+	}
+
+	/**
+	 * @param k the {@code {r, t, c, z, y, x}} of a level 0 tile
+	 * @param sample whether the tile is read again by the export, see
+	 *          {@link DirectTiles#sample}
+	 * @return the tile read by {@link #directTiles}, or null
+	 */
+	private byte[] directTile(int[] k, boolean sample) {
+		int z = range.getRangeZ().get(k[3]);
+		int c = range.getRangeC().get(k[2]);
+		int t = range.getRangeT().get(k[1]);
+		int startX = k[5] * resToTileX.get(0);
+		int startY = k[4] * resToTileY.get(0);
+		int w = Math.min(resToTileX.get(0), width - startX);
+		int h = Math.min(resToTileY.get(0), height - startY);
+		return sample ? directTiles.sample(z, c, t, startX, startY, w, h)
+				: directTiles.tile(z, c, t, startX, startY, w, h);
+	}
+
+	/**
+	 * @param k the {@code {r, t, c, z, y, x}} of a level 0 tile
+	 * @param sample whether the tile is read again by the export, see
+	 *          {@link ImagePlusTiles#sample}
+	 * @return the tile copied by {@link #imagePlusTiles}, or null
+	 */
+	private byte[] imagePlusTile(int[] k, boolean sample) {
+		int plane = (k[1] * sizeC + k[2]) * sizeZ + k[3];
+		int startX = k[5] * resToTileX.get(0);
+		int startY = k[4] * resToTileY.get(0);
+		int w = Math.min(resToTileX.get(0), width - startX);
+		int h = Math.min(resToTileY.get(0), height - startY);
+		return sample ? imagePlusTiles.sample(plane, startX, startY, w, h)
+				: imagePlusTiles.tile(plane, startX, startY, w, h);
+	}
+
+	/**
+	 * @return the stack index of each exported plane of the image, in the
+	 *         order {@link TileIterator} hands the planes out
+	 */
+	private int[] stackIndexes(ImagePlus image) {
+		int[] stackIndexes = new int[sizeT * sizeC * sizeZ];
+		int plane = 0;
+		for (int t : range.getRangeT()) {
+			for (int c : range.getRangeC()) {
+				for (int z : range.getRangeZ()) {
+					stackIndexes[plane++] = image.getStackIndex(c + 1, z + 1, t + 1);
+				}
+			}
+		}
+		return stackIndexes;
+	}
+
+	/**
+	 * @return the position of a level 0 tile in the order {@link TileIterator}
+	 *         hands the tiles out
+	 */
+	private long level0Index(int[] k) {
+		long plane = ((long) k[1] * sizeC + k[2]) * sizeZ + k[3];
+		return (plane * resToNY.get(0) + k[4]) * resToNX.get(0) + k[5];
+	}
+
+	/** @return the {@code {r, t, c, z, y, x}} of the level 0 tile at this index */
+	private int[] level0Key(long index) {
+		int nX = resToNX.get(0);
+		int nY = resToNY.get(0);
+		int x = (int) (index % nX);
+		int y = (int) (index / nX % nY);
+		long plane = index / nX / nY;
+		return new int[] { 0, (int) (plane / sizeZ / sizeC), (int) (plane /
+				sizeZ % sizeC), (int) (plane % sizeZ), y, x };
+	}
+
 	private byte[] getBytesFromRAIs(TileIterator.IntsKey key) {
 		int r = key.array[0];
 		int t = key.array[1];
@@ -385,6 +827,14 @@ public class OMETiffExporter<T extends NumericType<T>> {
 				ctToRAI.get(range.getRangeC()
 						.get(c)).get(range.getRangeT().get(t));
 
+		// Images kept in primitive arrays are copied row by row
+		if (SourceToByteArray.bulkCopies()) {
+			byte[] tile = SourceToByteArray.tileToByteArray(rai, range.getRangeZ().get(
+					z), (int) startX, (int) startY, (int) (endX - startX), (int) (endY -
+							startY), pixelInstance);
+			if (tile != null) return tile;
+		}
+
 		RandomAccessibleInterval<T> slice = Views.hyperSlice(rai, 2,
 				range.getRangeZ().get(z));
 
@@ -407,17 +857,39 @@ public class OMETiffExporter<T extends NumericType<T>> {
 	 * silently, so {@code -Dkheops.precompress=false} switches the whole thing
 	 * off and gives the compression back to the writer.
 	 *
+	 * @param writer the writer, set to the compression of this level
+	 * @param r the resolution level
 	 * @return the codec, or null to leave the compression to the writer
 	 */
-	private Codec precompressionCodec(OMETiffWriter writer) {
+	private Codec precompressionCodec(OMETiffWriter writer, int r) {
 		// A pre-compressed tile has to be aligned on the tile grid, and
 		// saveCompressedBytes computes x % tileSizeX: an untiled export, where a
 		// tile is a whole plane and the tile size is 0, is out
 		if (!tiled) return null;
-		if (System.getProperty("kheops.precompress", "true").equals("false")) {
+		// Not the writer's to choose: it does not know this compression at all
+		if (isZstd()) return new ZstdCodec(zstdLevel);
+		// Predicted tiles have to be compressed here whatever the property says
+		if (writerCompatibleTiles() &&
+				System.getProperty("kheops.precompress", "true").equals("false")) {
 			logger.debug(file.getName() + " pre-compression disabled by property");
 			return null;
 		}
+		String levelCompression = resToCompression.get(r);
+		// Same bytes as the writer's LZWCodec, about twice as fast
+		if (levelCompression.equals(CompressionType.LZW.getCompression()) &&
+				FastLZWCodec.enabled()) {
+			return new FastLZWCodec();
+		}
+		// Level and strategy, and no Deflater per tile
+		if (levelCompression.equals(CompressionType.ZLIB.getCompression()) &&
+				FastZlibCodec.enabled()) {
+			return new FastZlibCodec(zlibLevel, zlibStrategy);
+		}
+		// The writer's JPEGCodec has no quality setting
+		if (levelCompression.equals(CompressionType.JPEG.getCompression()) &&
+				jpegQuality > 0) {
+			return new JpegCodec(jpegQuality);
+		}
 		try {
 			// Null for a compression this version of bio-formats has no codec for
 			return writer.getCodec();
@@ -430,6 +902,44 @@ public class OMETiffExporter<T extends NumericType<T>> {
 		}
 	}
 
+	/**
+	 * The codec the workers compress zlib tiles with, as
+	 * {@link #precompressionCodec} would pick it.
+	 */
+	private Codec zlibCodec() {
+		return FastZlibCodec.enabled() ? new FastZlibCodec(zlibLevel, zlibStrategy)
+				: new ZlibCodec();
+	}
+
+	/**
+	 * The compression the writer declares for the tiles of this resolution
+	 * level: none for Zstandard, which the writer does not know.
+	 */
+	private String writerCompression(int r) {
+		return isZstd() ? CompressionType.UNCOMPRESSED.getCompression()
+				: resToCompression.get(r);
+	}
+
+	/**
+	 * Whether the tiles are compressed with Zstandard. Bio-Formats cannot write
+	 * it: the writer is told the tiles are uncompressed, receives them
+	 * compressed by {@link ZstdCodec}, and the Compression tag is fixed once the
+	 * file is closed.
+	 */
+	private boolean isZstd() {
+		return ZstdCodec.COMPRESSION.equals(compression);
+	}
+
+	/**
+	 * Whether the compressed tiles are what the writer would have produced,
+	 * and can be read back by Bio-Formats as the writer declares them. Not so
+	 * with Zstandard, and not with a predictor: the writer declares neither,
+	 * both are fixed in the file once it is closed.
+	 */
+	private boolean writerCompatibleTiles() {
+		return !isZstd() && predictor == Predictor.NONE;
+	}
+
 	/**
 	 * Publishes a tile computed by a worker thread. The compressed copy is
 	 * stored first, so that a tile visible in {@code computedBlocks} - which is
@@ -437,29 +947,134 @@ public class OMETiffExporter<T extends NumericType<T>> {
 	 */
 	private void publishTile(TileIterator.IntsKey key, byte[] tile)
 			throws Exception {
-		Codec codec = tileCodec;
-		if (codec != null && precompressible(key.array[0])) {
-			compressedBlocks.put(key, compressTile(key, tile, codec));
+		int[] k = key.array;
+		int r = k[0];
+		Codec codec = resToTileCodec.get(r);
+		boolean compress = codec != null && precompressible(r);
+		byte[] pixel = constantTiles == null ? null
+				: ConstantTiles.constantPixel(tile, bytesPerPixel * samplesPerPixel);
+		if (pixel == null && tileIndex == null) {
+			if (compress) compressedBlocks.put(key, compressTile(key, tile, codec));
+			computedBlocks.put(key, tile);
+			return;
+		}
+
+		int plane = k[1] * sizeZ * sizeC + k[2] * sizeZ + k[3];
+		int tileNumber = k[4] * resToNX.get(r) + k[5];
+		int tileWidth = Math.min(resToTileX.get(r), mapResToWidth.get(r) - k[5] *
+				resToTileX.get(r));
+		int tileHeight = Math.min(resToTileY.get(r), mapResToHeight.get(r) - k[4] *
+				resToTileY.get(r));
+		byte[] compressed;
+		if (pixel != null) {
+			compressed = constantTiles.add(r, plane, tileNumber, tileWidth,
+					tileHeight, pixel, compress ? () -> compressTile(key, tile, codec)
+							: null);
+		}
+		else {
+			compressed = compress ? compressTile(key, tile, codec) : null;
+			// What the writer is handed: equal for equal tiles of a level, whether
+			// compressed here or by the writer
+			tileIndex.add(r, plane, tileNumber, tileWidth, tileHeight,
+					compressed != null ? compressed : tile);
 		}
+		if (compressed != null) compressedBlocks.put(key, compressed);
 		computedBlocks.put(key, tile);
 	}
 
+	/**
+	 * Publishes a tile copied compressed from the source file: there are no raw
+	 * pixels, and none are needed, since only tiles which the final and the
+	 * temporary file both take compressed are copied, see
+	 * {@link #passthroughTiles}.
+	 */
+	private void publishCopiedTile(TileIterator.IntsKey key, byte[] compressed) {
+		if (tileIndex != null) {
+			int[] k = key.array;
+			int plane = k[1] * sizeZ * sizeC + k[2] * sizeZ + k[3];
+			tileIndex.add(0, plane, k[4] * resToNX.get(0) + k[5], Math.min(resToTileX
+					.get(0), width - k[5] * resToTileX.get(0)), Math.min(resToTileY.get(
+							0), height - k[4] * resToTileY.get(0)), compressed);
+		}
+		compressedBlocks.put(key, compressed);
+		computedBlocks.put(key, COPIED_TILE);
+	}
+
+	/**
+	 * The copier of the compressed level 0 tiles of the source file, or null
+	 * if this export cannot take them as they are. A copied tile has no raw
+	 * pixels, so level 0 must reach the final file and the temporary file
+	 * compressed: no Zstandard, no predictor, an interleaved RGB source.
+	 * JPEG tiles are copied at the quality of the source, whatever
+	 * {@code jpegQuality} says.
+	 */
+	private PassthroughTiles passthroughTiles(OMETiffWriter writer) {
+		if (!sharedWithLevelFile(0)) {
+			logger.debug(file.getName() + " source tiles not copied: level 0 is " +
+					"not compressed by the workers");
+			return null;
+		}
+		Codec codec;
+		try {
+			writer.setCompression(writerCompression(0));
+			codec = writer.getCodec();
+		}
+		catch (Exception e) {
+			logger.debug(file.getName() + " source tiles not copied: " + e
+					.getMessage());
+			return null;
+		}
+		if (codec == null) return null;
+		PassthroughTiles tiles = new PassthroughTiles(sourceReaders, sourceSeries,
+				codec, resToTileX.get(0), resToTileY.get(0), resToNX.get(0), resToNY
+						.get(0));
+		int tileLength = resToTileX.get(0) * resToTileY.get(0) * bytesPerPixel *
+				samplesPerPixel;
+		if (!tiles.decodes(range.getRangeZ().get(0), range.getRangeC().get(0),
+				range.getRangeT().get(0), resToCodecOptions.get(0), tileLength)) {
+			logger.warn(file.getName() + " the compressed tiles of the source do " +
+					"not decode on their own, they are not copied");
+			return null;
+		}
+		return tiles;
+	}
+
 	/**
 	 * Whether a tile of this resolution level may be handed over compressed.
 	 * <p>
 	 * {@code saveCompressedBytes} takes a single {@code byte[]}, and writes it as
 	 * a single TIFF strip. A tile is one strip, except when the writer stores the
 	 * samples of an RGB tile as three separate planes - planar configuration 2,
-	 * one strip per sample. That is what happens above resolution level 0, where
-	 * this exporter turns interleaving off, and at level 0 too if the source is
-	 * not interleaved. Written as a single strip, such a tile produces an IFD
-	 * claiming three tiles at offsets 0, which is silently corrupt.
+	 * one strip per sample. Written as a single strip, such a tile produces an
+	 * IFD claiming three tiles at offsets 0, which is silently corrupt.
 	 * <p>
-	 * Those levels keep compressing on the writing thread. For an RGB pyramid
-	 * that still leaves level 0, which is ~75 % of the pixels.
+	 * Above level 0 the downsampled tiles are planar, so the workers interleave
+	 * them before compressing, see {@link #interleavedOnWorkers}, and the writer
+	 * stores these levels interleaved. At level 0 an RGB tile is interleaved
+	 * already; the only level left out is level 0 of a source declared not
+	 * interleaved, which keeps compressing on the writing thread.
 	 */
 	private boolean precompressible(int r) {
-		return samplesPerPixel == 1 || (r == 0 && isInterleaved);
+		return samplesPerPixel == 1 || r > 0 || isInterleaved;
+	}
+
+	/**
+	 * Whether the tiles of this resolution level are computed planar
+	 * (RR...GG...BB...) and interleaved by the worker which compresses them.
+	 * That is the case of every downsampled RGB level.
+	 */
+	private boolean interleavedOnWorkers(int r) {
+		return samplesPerPixel > 1 && r > 0;
+	}
+
+	/**
+	 * Whether the temporary file of this resolution level can take the tiles
+	 * compressed for the final file. Not a tile interleaved by a worker: the
+	 * temporary file of a downsampled level is planar, and gets the raw tile.
+	 */
+	private boolean sharedWithLevelFile(int r) {
+		return resToTileCodec.get(r) != null && precompressible(r) &&
+				writerCompatibleTiles() && !interleavedOnWorkers(r);
 	}
 
 	/**
@@ -480,8 +1095,29 @@ public class OMETiffExporter<T extends NumericType<T>> {
 		// A fresh copy per call: a codec is free to write into the options it is
 		// given, and several workers compress at the same time
 		CodecOptions options = new CodecOptions(resToCodecOptions.get(r));
-		return codec.compress(pad(tile, tileWidth, tileHeight, fullTileX,
-				fullTileY), options);
+		if (interleavedOnWorkers(r)) {
+			tile = interleave(tile, tileWidth * tileHeight);
+		}
+		byte[] padded = pad(tile, tileWidth, tileHeight, fullTileX, fullTileY);
+		if (predictor != Predictor.NONE) {
+			// A full tile is not copied by pad, and the temporary file still needs
+			// it as it is
+			if (padded == tile) padded = tile.clone();
+			predictor.apply(padded, fullTileX, fullTileY, bytesPerPixel,
+					samplesPerPixel, isLittleEndian);
+		}
+		return codec.compress(padded, options);
+	}
+
+	/**
+	 * Turns a planar tile of {@code nPixels} pixels, one sample after the other,
+	 * into an interleaved one: RR...GG...BB... becomes RGBRGB...
+	 */
+	private byte[] interleave(byte[] tile, int nPixels) {
+		byte[] interleaved = new byte[tile.length];
+		DirectTiles.interleave(tile, interleaved, nPixels, bytesPerPixel,
+				samplesPerPixel);
+		return interleaved;
 	}
 
 	/**
@@ -520,7 +1156,15 @@ public class OMETiffExporter<T extends NumericType<T>> {
 
 		if (r == 0) {
 			localResolution.set(r);
-			publishTile(key, getBytesFromRAIs(key));
+			byte[] copied = passthroughTiles == null ? null : passthroughTiles.tile(
+					range.getRangeZ().get(z), range.getRangeC().get(c), range.getRangeT()
+							.get(t), x, y);
+			if (copied != null) {
+				publishCopiedTile(key, copied);
+			}
+			else {
+				publishTile(key, level0Tile(key));
+			}
 		}
 		else {
 			// Wait for the previous resolution level to be written !
@@ -615,15 +1259,22 @@ public class OMETiffExporter<T extends NumericType<T>> {
 	}
 
 	public void export() throws Exception {
+		if (autoCompression) chooseCompression();
 		// Routes the output through a handle that does not ask the OS to extend the
 		// file on every write. Temporary, see ch.epfl.biop.kheops.ometiff.omecommon.
-		try (ch.epfl.biop.kheops.ometiff.omecommon.FastOutput fastOutput =
-				new ch.epfl.biop.kheops.ometiff.omecommon.FastOutput(file)) {
+		try (FastOutput fastOutput = new FastOutput(file, directIO)) {
 		// Writes the temporary file in parallel with the final one, see #12. Only
 		// a pyramid has a temporary file at all
 		AsyncTileWriter tempTileWriter = nResolutionLevels > 1
 				? new AsyncTileWriter(file.getName(), tiled ? TEMP_WRITE_QUEUE_DEPTH : 1)
 				: null;
+		// The temporary files only go through FastOutput for direct I/O: they are
+		// written once and read once, the purest page cache pollution there is
+		FastOutput levelOutput = null;
+		// The Plane elements, kept out of the writer's metadata when they are
+		// streamed once the file is closed, see OmeXmlPlanes
+		final boolean streamPlanes = OmeXmlPlanes.enabled();
+		IMetadata planeMeta = null;
 		try { // try... finally statement -> makes sure to finish the task in case of errors
 			if (writerTask != null) writerTask.setStatusMessage("Exporting " + file
 					.getName() + " with " + nThreads + " threads.");
@@ -649,7 +1300,8 @@ public class OMETiffExporter<T extends NumericType<T>> {
 
 			MetadataTools.verifyMinimumPopulated(currentLevelOmeMeta, dstSeries);
 
-			KheopsHelper.transferSeriesMeta(oriMetadata, this.oriMetaDataSeries, omeMeta, this.dstSeries);
+			planeMeta = streamPlanes ? MetadataTools.createOMEXMLMetadata() : omeMeta;
+			KheopsHelper.transferSeriesMeta(oriMetadata, this.oriMetaDataSeries, omeMeta, this.dstSeries, planeMeta);
 			MetadataConverter.convertMetadata(omeMeta, currentLevelOmeMeta);
 
 			copyChannelsMeta(omeMeta, this.dstSeries, oriMetadata, this.oriMetaDataSeries);
@@ -677,11 +1329,22 @@ public class OMETiffExporter<T extends NumericType<T>> {
 			writer.setBigTiff(true);
 			writer.setId(file.getAbsolutePath());
 			writer.setSeries(dstSeries);
-			writer.setCompression(compression);
 			writer.setInterleaved(omeMeta.getPixelsInterleaved(dstSeries));
 			// Compressing a tile is ~40 % of a writer bound export and does not
 			// have to happen on the writing thread. Set before the workers start
-			tileCodec = precompressionCodec(writer);
+			for (int r = 0; r < nResolutionLevels; r++) {
+				writer.setCompression(writerCompression(r));
+				resToTileCodec.put(r, precompressionCodec(writer, r));
+			}
+			if (passthrough) passthroughTiles = passthroughTiles(writer);
+			// Copied tiles are not read at all: nothing to read ahead
+			if (directTiles != null && prefetchDistance > 0 &&
+					passthroughTiles == null) {
+				prefetcher = new TilePrefetcher(prefetchDistance, Math.max(1, Math.min(
+						prefetchDistance, nThreads)), (long) resToNX.get(0) * resToNY.get(
+								0) * sizeT * sizeC * sizeZ, index -> directTile(level0Key(
+										index), false), file.getName());
+			}
 			totalTiles = 0;
 
 			// Count total number of tiles
@@ -771,14 +1434,17 @@ public class OMETiffExporter<T extends NumericType<T>> {
 					currentLevelOmeMeta.setPixelsDimensionOrder(DimensionOrder.XYCZT, 0);
 					currentLevelWriter.setMetadataRetrieve(currentLevelOmeMeta);
 					currentLevelWriter.setBigTiff(true);
+					if (directIO) levelOutput = new FastOutput(new File(getFileName(r)), true);
 					currentLevelWriter.setId(getFileName(r));
 					currentLevelWriter.setSeries(dstSeries);
-					if (tileCodec != null && precompressible(r)) {
+					if (sharedWithLevelFile(r)) {
 						// This level's tiles reach the temporary writer already compressed
 						// for the final file, so the temporary file has to declare the same
 						// compression. It costs nothing: the tile is compressed once and
-						// written to both files
-						currentLevelWriter.setCompression(compression);
+						// written to both files. Not for Zstandard or a predictor, which
+						// the reader of the temporary file would not know about: it gets
+						// the raw tiles
+						currentLevelWriter.setCompression(resToCompression.get(r));
 					}
 					currentLevelWriter.setTileSizeX(writerTileX);
 					currentLevelWriter.setTileSizeY(writerTileY);
@@ -786,9 +1452,14 @@ public class OMETiffExporter<T extends NumericType<T>> {
                     currentLevelWriter.setInterleaved(r == 0);
 				}
 
-				if (r > 0) writer.setInterleaved(false); // But why the heck ???
+				// Planar, as the downsampled tiles are computed, unless the workers
+				// interleave them to hand them over compressed
+				if (r > 0) writer.setInterleaved(resToTileCodec.get(r) != null);
 				logger.debug("Saving resolution size " + r);
 				writer.setResolution(r);
+				// Read by the writer for each tile: a level can differ from the
+				// previous one, see levelCompression
+				writer.setCompression(writerCompression(r));
 				// The tile size can differ between resolution levels: it is reduced
 				// when a resolution level is smaller than the requested tile size
 				writer.setTileSizeX(writerTileX);
@@ -811,10 +1482,10 @@ public class OMETiffExporter<T extends NumericType<T>> {
 								int oriZ = range.getRangeZ().get(z);
 								int oriT = range.getRangeT().get(t);
 								int oriPlane = getOriginalPlaneIndex(oriC, oriZ, oriT);
-								omeMeta.setPlaneTheC(new NonNegativeInteger(c), dstSeries, plane);
-								omeMeta.setPlaneTheZ(new NonNegativeInteger(z), dstSeries, plane);
-								omeMeta.setPlaneTheT(new NonNegativeInteger(t), dstSeries, plane);
-								KheopsHelper.transferPlaneMeta(oriMetadata, oriMetaDataSeries, oriPlane, omeMeta, dstSeries, plane);
+								planeMeta.setPlaneTheC(new NonNegativeInteger(c), dstSeries, plane);
+								planeMeta.setPlaneTheZ(new NonNegativeInteger(z), dstSeries, plane);
+								planeMeta.setPlaneTheT(new NonNegativeInteger(t), dstSeries, plane);
+								KheopsHelper.transferPlaneMeta(oriMetadata, oriMetaDataSeries, oriPlane, planeMeta, dstSeries, plane);
 							}
 							for (int y = 0; y < nYTiles; y++) {
 								for (int x = 0; x < nXTiles; x++) {
@@ -856,7 +1527,7 @@ public class OMETiffExporter<T extends NumericType<T>> {
 										// from computedBlocks below is safe
 										final OMETiffWriter levelWriter = currentLevelWriter;
 										final int tilePlane = plane;
-										if (compressed != null) {
+										if (compressed != null && sharedWithLevelFile(r)) {
 											// The very same bytes the final file gets: the tile is
 											// serialized once and written to two files
 											tempTileWriter.submit(() -> levelWriter.saveCompressedBytes(
@@ -892,6 +1563,10 @@ public class OMETiffExporter<T extends NumericType<T>> {
 					// it before it is closed
 					tempTileWriter.awaitDrain();
 					currentLevelWriter.close();
+					if (levelOutput != null) {
+						levelOutput.close();
+						levelOutput = null;
+					}
 				}
 			}
 			// Proper clean-up and handling of cancelation
@@ -947,10 +1622,81 @@ public class OMETiffExporter<T extends NumericType<T>> {
 				}
 			}
 		} finally {
+			if (prefetcher != null) prefetcher.shutdown();
+			if (imagePlusTiles != null) imagePlusTiles.shutdown();
 			if (tempTileWriter != null) tempTileWriter.close();
+			if (levelOutput != null) levelOutput.close();
 			if (writerTask != null) writerTask.finish();
 		}
 		}
+		if (constantTiles != null && !isCanceled) {
+			// First: the other rewrites may move the directories this patches in
+			// place
+			int shared = BigTiffFile.shareTiles(file, constantTiles.repeats(), false);
+			logger.debug(file.getName() + " " + shared +
+					" constant tiles point at an earlier copy");
+		}
+		if (tileIndex != null && !isCanceled) {
+			List<int[]> repeats = tileIndex.repeats();
+			int shared = BigTiffFile.shareTiles(file, repeats, true);
+			long lookups = tileIndex.lookups();
+			logger.info(file.getName() + " tile deduplication: " + tileIndex.size() +
+					" contents indexed, " + repeats.size() + " of " + lookups +
+					" tiles repeated an earlier one (" + (lookups == 0 ? 0 : 100 *
+							repeats.size() / lookups) + " %), " + shared + " repointed");
+		}
+		if (passthroughTiles != null) {
+			logger.info(file.getName() + " " + passthroughTiles.copied() + " of " +
+					(passthroughTiles.copied() + passthroughTiles.missed()) +
+					" level 0 tiles copied compressed from the source");
+		}
+		if (directTiles != null) {
+			logger.debug(file.getName() + " " + directTiles.direct() + " of " +
+					(directTiles.direct() + directTiles.missed()) +
+					" level 0 tiles read directly from the source, in " + directTiles
+							.reads() + " reads");
+		}
+		if (imagePlusTiles != null) {
+			logger.debug(file.getName() + " " + imagePlusTiles.copied() + " of " +
+					(imagePlusTiles.copied() + imagePlusTiles.missed()) +
+					" level 0 tiles copied from the image, " + imagePlusTiles
+							.planeReads() + " planes read from its virtual stack");
+		}
+		if (prefetcher != null) {
+			logger.debug(file.getName() + " " + prefetcher.hits() + " of " +
+					(prefetcher.hits() + prefetcher.misses()) +
+					" level 0 tiles read ahead of the workers");
+		}
+		if (isZstd() && !isCanceled) {
+			// Before anything else rewrites the file: the writer declared the tiles
+			// uncompressed, see isZstd
+			BigTiffFile.setCompression(file, ZstdCodec.TIFF_CODE);
+		}
+		if (streamPlanes && planeMeta != null && !isCanceled) {
+			long start = System.currentTimeMillis();
+			OmeXmlPlanes.append(file, planeMeta, dstSeries, sizeT * sizeC * sizeZ);
+			logger.debug(file.getName() + " Plane elements streamed in " + (System
+				.currentTimeMillis() - start) + " ms");
+		}
+		if ((cloudOptimizedLayout || tileOrder != TileOrder.ROW_MAJOR) &&
+			!isCanceled)
+		{
+			// Only once the file is closed: the OME-XML is appended by the writer's
+			// close, and FastOutput trims the preallocated tail on its own. The tiles
+			// are reordered here too rather than written in that order: TiffSaver
+			// lays a plane out as it receives it, and the workers, the writer and
+			// the temporary files all walk the planes row by row
+			long start = System.currentTimeMillis();
+			// The writer knows nothing of the predictor and writes no Predictor tag.
+			// Inserted on its own, it would append a copy of every IFD and of the
+			// OME-XML to the file
+			Map<Integer, Integer> shortTags = predictor == Predictor.NONE
+					? Collections.emptyMap()
+					: Collections.singletonMap(BigTiffFile.PREDICTOR, predictor.code);
+			BigTiffFile.moveDirectoriesFirst(file, tileOrder, shortTags);
+			logger.debug(file.getName() + " IFDs moved to the head of the file in " +
+				(System.currentTimeMillis() - start) + " ms");
+		}
 	}
 
 	private int getOriginalPlaneIndex(int oriC, int oriZ, int oriT) {
@@ -1124,6 +1870,10 @@ public class OMETiffExporter<T extends NumericType<T>> {
 
 			protected final T pixelInstance;
 
+			protected final ResourcePool<IFormatReader> readerPool;
+			protected final int readerPoolSeries;
+			protected final ImagePlus image;
+
 			private Data(DataBuilder<T> builder) {
 				this.pixelsSizeX = builder.nPixelX;
 				this.pixelsSizeY = builder.nPixelY;
@@ -1132,6 +1882,9 @@ public class OMETiffExporter<T extends NumericType<T>> {
 				this.pixelsSizeT = builder.nTimePoints;
 				this.ctToRAI = builder.ctToRAI;
 				this.pixelInstance = builder.pixelInstance;
+				this.readerPool = builder.readerPool;
+				this.readerPoolSeries = builder.readerPoolSeries;
+				this.image = builder.image;
 			}
 
 			/**
@@ -1145,6 +1898,9 @@ public class OMETiffExporter<T extends NumericType<T>> {
 				private int nChannels = -1, nTimePoints = -1;
 				final private Map<Integer, Map<Integer, RandomAccessibleInterval<T>>> ctToRAI = new HashMap<>();
 				T pixelInstance;
+				ResourcePool<IFormatReader> readerPool = null;
+				int readerPoolSeries = 0;
+				ImagePlus image = null;
 
 				/**
 				 * Adds a {@link Source} in the data. A Source contains a single channel and all
@@ -1246,6 +2002,37 @@ public class OMETiffExporter<T extends NumericType<T>> {
 					return this;
 				}
 
+				/**
+				 * Tells where the data comes from, when it is a series of a file read
+				 * as it is: the exporter can then read the file through these readers
+				 * instead of through the data. Level 0 is read with {@code openBytes},
+				 * without the cell cache, see {@code DirectTiles}, and its compressed
+				 * tiles can be copied, see
+				 * {@link WriterOptions.WriterOptionsBuilder#passthrough()}.
+				 * @param readerPool readers of the source file, such as
+				 *                   {@link KheopsHelper.SourcesInfo#readerPool}
+				 * @param series the series of the source file which is exported
+				 * @return data builder
+				 */
+				public DataBuilder<T> setReaderPool(ResourcePool<IFormatReader> readerPool, int series) {
+					this.readerPool = readerPool;
+					this.readerPoolSeries = series;
+					return this;
+				}
+
+				/**
+				 * Tells where the data comes from, when it is an {@link ImagePlus} put
+				 * as it is, through {@link KheopsHelper#getSourcesFromImage}: level 0
+				 * is then copied from the pixel arrays of its stack, without the cell
+				 * cache, see {@code ImagePlusTiles}.
+				 * @param image the exported image
+				 * @return data builder
+				 */
+				public DataBuilder<T> setImagePlus(ImagePlus image) {
+					this.image = image;
+					return this;
+				}
+
 				/**
 				 * To be called to start the definition of the associated metadata
 				 * @param imageName a name for the image, compulsory
@@ -1598,6 +2385,19 @@ public class OMETiffExporter<T extends NumericType<T>> {
 			final public TaskService taskService;
 			final public int nResolutions;
 			final public int downSample;
+			final public boolean directIO;
+			final public boolean cloudOptimizedLayout;
+			final public TileOrder tileOrder;
+			final public int zstdLevel;
+			final public Predictor predictor;
+			final public int dedupIndexSize;
+			final public NavigableMap<Integer, String> levelCompressions;
+			final public int jpegQuality;
+			final public boolean passthrough;
+			final public double autoTimeBudget;
+			final public int zlibLevel;
+			final public int zlibStrategy;
+			final public int prefetchDistance;
 
 			private WriterOptions(WriterOptionsBuilder builder) {
 				this.nThreads = builder.nThreads;
@@ -1612,6 +2412,19 @@ public class OMETiffExporter<T extends NumericType<T>> {
 				this.taskService = builder.taskService;
 				this.nResolutions = builder.nResolutions;
 				this.downSample = builder.downSample;
+				this.directIO = builder.directIO;
+				this.cloudOptimizedLayout = builder.cloudOptimizedLayout;
+				this.tileOrder = builder.tileOrder;
+				this.zstdLevel = builder.zstdLevel;
+				this.predictor = builder.predictor;
+				this.dedupIndexSize = builder.dedupIndexSize;
+				this.levelCompressions = new TreeMap<>(builder.levelCompressions);
+				this.jpegQuality = builder.jpegQuality;
+				this.passthrough = builder.passthrough;
+				this.autoTimeBudget = builder.autoTimeBudget;
+				this.zlibLevel = builder.zlibLevel;
+				this.zlibStrategy = builder.zlibStrategy;
+				this.prefetchDistance = builder.prefetchDistance;
 			}
 
 			public static class WriterOptionsBuilder {
@@ -1631,6 +2444,19 @@ public class OMETiffExporter<T extends NumericType<T>> {
 				TaskService taskService = null;
 				int nResolutions = 1;
 				int downSample = 2;
+				boolean directIO = false;
+				boolean cloudOptimizedLayout = false;
+				TileOrder tileOrder = TileOrder.ROW_MAJOR;
+				int zstdLevel = ZstdCodec.DEFAULT_LEVEL;
+				Predictor predictor = Predictor.NONE;
+				int dedupIndexSize = 0;
+				final NavigableMap<Integer, String> levelCompressions = new TreeMap<>();
+				int jpegQuality = 0;
+				boolean passthrough = false;
+				double autoTimeBudget = 0;
+				int zlibLevel = FastZlibCodec.DEFAULT_LEVEL;
+				int zlibStrategy = Deflater.DEFAULT_STRATEGY;
+				int prefetchDistance = 0;
 				public WriterOptionsBuilder(MetaData metaData, Data data) {
 					this.data = data;
 					this.metaData = metaData;
@@ -1719,6 +2545,139 @@ public class OMETiffExporter<T extends NumericType<T>> {
 					return this;
 				}
 
+				/**
+				 * Compresses the tiles with zlib - TIFF's Deflate - at the given level.
+				 * Level 6 is what Bio-Formats writes; levels 1 to 3 are faster and
+				 * usually still smaller than LZW.
+				 *
+				 * @param level Deflate level, 1 (fastest) to 9 (smallest)
+				 * @return write options builder
+				 */
+				public WriterOptionsBuilder zlib(int level) {
+					return zlib(level, Deflater.DEFAULT_STRATEGY);
+				}
+
+				/**
+				 * As {@link #zlib(int)}, with a Deflate strategy as well:
+				 * {@link Deflater#FILTERED} suits data which has been through a
+				 * predictor, {@link Deflater#HUFFMAN_ONLY} is the fastest of all.
+				 * Applies to tiled exports, unless pre-compression is disabled with
+				 * {@code -Dkheops.precompress=false}: the writer then compresses at
+				 * level 6.
+				 *
+				 * @param level Deflate level, 1 (fastest) to 9 (smallest)
+				 * @param strategy {@link Deflater#DEFAULT_STRATEGY},
+				 *          {@link Deflater#FILTERED} or {@link Deflater#HUFFMAN_ONLY}
+				 * @return write options builder
+				 */
+				public WriterOptionsBuilder zlib(int level, int strategy) {
+					// Checks the arguments now rather than on a worker thread
+					new FastZlibCodec(level, strategy);
+					this.compression = CompressionType.ZLIB.getCompression();
+					this.zlibLevel = level;
+					this.zlibStrategy = strategy;
+					return this;
+				}
+
+				/**
+				 * Compresses the tiles with Zstandard, stored under the TIFF
+				 * compression code 50000 as libtiff does. Lossless, faster than LZW and
+				 * usually smaller, but Bio-Formats cannot read such a file back: use it
+				 * for files meant for libtiff based readers. Needs a tiled export and,
+				 * for an RGB image, an interleaved source.
+				 *
+				 * @param level Zstandard compression level, 1 (fastest) to 22 (smallest),
+				 *          3 is Zstandard's default
+				 * @return write options builder
+				 */
+				public WriterOptionsBuilder zstd(int level) {
+					this.compression = ZstdCodec.COMPRESSION;
+					this.zstdLevel = level;
+					return this;
+				}
+
+				/**
+				 * Picks the compression which makes the export fastest, among the
+				 * lossless ones Bio-Formats reads: no compression, LZW and zlib. A
+				 * sample of tiles is compressed with each, and the bandwidth of the
+				 * disk is measured next to the output file; the decision is logged.
+				 * Also chosen with {@code compression("Auto")}.
+				 *
+				 * @return write options builder
+				 */
+				public WriterOptionsBuilder autoCompression() {
+					return autoCompression(0);
+				}
+
+				/**
+				 * As {@link #autoCompression()}, but picks the compression which gives
+				 * the smallest file among those whose export is estimated to take at
+				 * most {@code timeBudgetInS}, or the fastest if none does.
+				 *
+				 * @param timeBudgetInS time the export may take, in seconds
+				 * @return write options builder
+				 */
+				public WriterOptionsBuilder autoCompression(double timeBudgetInS) {
+					this.compression = AutoCompression.COMPRESSION;
+					this.autoTimeBudget = timeBudgetInS;
+					return this;
+				}
+
+				/**
+				 * Applies a TIFF predictor to the tiles before compressing them, which
+				 * makes LZW, zlib and Zstd files of smooth images much smaller:
+				 * {@link Predictor#HORIZONTAL} for integer pixels,
+				 * {@link Predictor#FLOATING_POINT} for float ones. Readers undo it
+				 * after decompressing, but Bio-Formats only knows the horizontal one:
+				 * it cannot read back a file with the floating point predictor, which
+				 * is for libtiff based readers. Like {@link #zstd(int)}, it needs a
+				 * tiled export and, for an RGB image, an interleaved source. This
+				 * implies {@link #cloudOptimizedLayout()}, whose rewrite of the file
+				 * inserts the Predictor tag.
+				 *
+				 * @param predictor the predictor, {@link Predictor#NONE} by default
+				 * @return write options builder
+				 */
+				public WriterOptionsBuilder predictor(Predictor predictor) {
+					this.predictor = predictor;
+					return this;
+				}
+
+				/**
+				 * Stores tiles which are byte for byte the same only once: each tile is
+				 * hashed on the worker which computes it, and once the file is closed,
+				 * every repeat is pointed at the first copy - after comparing the bytes.
+				 * Meant for stitched mosaics, padded acquisitions and duplicated
+				 * timepoints. Bio-Formats still writes the repeats, so this implies
+				 * {@link #cloudOptimizedLayout()}, whose rewrite of the file leaves the
+				 * unreferenced copies behind. The hit rate is logged at the end of the
+				 * export.
+				 *
+				 * @param indexSize how many distinct tiles to remember, the least
+				 *          recently seen being forgotten first - about 100 bytes each
+				 * @return write options builder
+				 */
+				public WriterOptionsBuilder deduplicateTiles(int indexSize) {
+					this.dedupIndexSize = indexSize;
+					return this;
+				}
+
+				/**
+				 * Reads the source tiles of level 0 ahead of the worker threads, in the
+				 * background, so that decoding them overlaps with compressing the
+				 * previous ones. Only applies when level 0 is read from the readers of
+				 * the source file, see {@code DataBuilder#setReaderPool}, and not to
+				 * tiles copied with {@link #passthrough()}.
+				 *
+				 * @param nTiles how many tiles to read ahead - each is held in memory
+				 *          until a worker takes it - 0 to disable
+				 * @return write options builder
+				 */
+				public WriterOptionsBuilder prefetch(int nTiles) {
+					this.prefetchDistance = nTiles;
+					return this;
+				}
+
 				/**
 				 * If a taskService is provided, the export timing can be monitored or even canceled
 				 * @param taskService a service that creates task
@@ -1741,6 +2700,108 @@ public class OMETiffExporter<T extends NumericType<T>> {
 					return this;
 				}
 
+				/**
+				 * Writes the tiles of the final file and of the temporary pyramid levels
+				 * with direct I/O, bypassing the page cache. Meant for exports of
+				 * hundreds of GB on shared machines, which would otherwise evict
+				 * everything else from the cache. Falls back to normal writes, with a
+				 * warning in the log, where the file system does not support it.
+				 *
+				 * @return write options builder
+				 */
+				public WriterOptionsBuilder directIO() {
+					this.directIO = true;
+					return this;
+				}
+
+				/**
+				 * Rewrites the file once exported so that every IFD, and the OME-XML,
+				 * sits at its head, and the tiles follow from the lowest resolution
+				 * level to the highest. A reader fetching the file over HTTP range
+				 * requests - or from a slow network share - then gets the whole
+				 * structure of the image and an overview in a couple of reads, instead
+				 * of one seek per IFD scattered over the whole file.
+				 * <p>
+				 * This costs one more sequential copy of the file, and as much free
+				 * space again as the file size while it runs.
+				 *
+				 * @return write options builder
+				 */
+				public WriterOptionsBuilder cloudOptimizedLayout() {
+					this.cloudOptimizedLayout = true;
+					return this;
+				}
+
+				/**
+				 * Stores the tiles of each plane along a space-filling curve instead of
+				 * row by row, so that a region of the image maps to a few contiguous
+				 * byte ranges. Readers are not affected: TIFF lists the tiles by
+				 * position, wherever they are stored. Any order but
+				 * {@link TileOrder#ROW_MAJOR} implies {@link #cloudOptimizedLayout()}:
+				 * both are done by the same rewrite of the file once exported.
+				 *
+				 * @param tileOrder order of the tiles within a plane
+				 * @return write options builder
+				 */
+				public WriterOptionsBuilder tileOrder(TileOrder tileOrder) {
+					this.tileOrder = tileOrder;
+					return this;
+				}
+
+				/**
+				 * Compresses the resolution levels from {@code fromLevel} on
+				 * differently: level 0 can stay lossless for the analysis while the
+				 * levels which are only there to navigate the image are stored as
+				 * JPEG, for instance. The levels before {@code fromLevel} keep the
+				 * compression of the whole image, or the one set from a smaller level.
+				 * Cannot be combined with Zstd compression or a predictor.
+				 *
+				 * @param fromLevel the first resolution level to compress this way
+				 * @param compression see CompressionTypes
+				 * @return write options builder
+				 */
+				public WriterOptionsBuilder levelCompression(int fromLevel,
+						String compression) {
+					this.levelCompressions.put(fromLevel, compression);
+					return this;
+				}
+
+				/**
+				 * Sets the quality of the JPEG tiles, whether the whole image or only
+				 * some levels are JPEG compressed, see
+				 * {@link #levelCompression(int, String)}. Without it Bio-Formats
+				 * compresses at its default quality, 75. Applies to tiled exports
+				 * only, and not to a planar RGB level; ignored, with a warning, when
+				 * pre-compression is disabled with {@code -Dkheops.precompress=false}.
+				 *
+				 * @param quality JPEG quality, 1 (smallest) to 100 (best)
+				 * @return write options builder
+				 */
+				public WriterOptionsBuilder jpegQuality(int quality) {
+					if (quality < 1 || quality > 100) {
+						throw new IllegalArgumentException("JPEG quality " + quality +
+								" is not between 1 and 100");
+					}
+					this.jpegQuality = quality;
+					return this;
+				}
+
+				/**
+				 * Copies the compressed tiles of the full resolution level from the
+				 * source file as they are, without decoding them, wherever the source
+				 * is tiled and compressed like the export: a JPEG tiled slide exported
+				 * as JPEG with the same tile size, for instance. The other tiles are
+				 * computed as usual. Needs the readers of the source file, see
+				 * {@code DataBuilder#setReaderPool}, and a reader which gives access to
+				 * its compressed tiles.
+				 *
+				 * @return write options builder
+				 */
+				public WriterOptionsBuilder passthrough() {
+					this.passthrough = true;
+					return this;
+				}
+
 				public WriterOptionsBuilder compression(String compression) {
 					this.compression = compression;
 					return this;
@@ -1777,7 +2838,8 @@ public class OMETiffExporter<T extends NumericType<T>> {
 					}
 
 					WriterOptions wOpts = new WriterOptions(this);
-					return new OMETiffExporter(data.ctToRAI, metaData.omeMeta, metaData.series, wOpts);
+					return new OMETiffExporter(data.ctToRAI, data.readerPool, data.readerPoolSeries,
+							data.image, metaData.omeMeta, metaData.series, wOpts);
 				}
 			}
 		}
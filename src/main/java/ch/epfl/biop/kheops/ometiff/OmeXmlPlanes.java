@@ -0,0 +1,188 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.kheops.ometiff;
+
+import loci.formats.meta.MetadataRetrieve;
+import ome.units.quantity.Length;
+import ome.units.quantity.Time;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Writes the Plane elements of the OME-XML of an exported file without going
+ * through the writer's DOM.
+ * <p>
+ * {@code OMETiffWriter.close()} turns the whole metadata store into a DOM,
+ * serializes it to a string and writes that string as the ImageDescription of
+ * the first IFD. Every plane carries a Plane element - its C, Z and T, and
+ * whatever {@code KheopsHelper.transferPlaneMeta} found: exposure time, time
+ * stamp, stage position - on top of the TiffData element the writer adds for
+ * it. With tens of thousands of planes, building and serializing that DOM is
+ * what closing the file spends its time and memory on.
+ * <p>
+ * The exporter therefore keeps the Plane elements out of the store it hands
+ * the writer. Once the writer is closed, they are streamed with StAX, straight
+ * from the store that holds them, into a new copy of the description appended
+ * at the end of the file, and the ImageDescription entry of the first IFD is
+ * pointed at it - which is what {@code TiffSaver.overwriteComment} does too
+ * whenever a comment grows. The TiffData elements stay the writer's business.
+ * <p>
+ * {@code -Dkheops.streamOmeXml=false} gives the Plane elements back to the
+ * writer.
+ */
+final class OmeXmlPlanes {
+
+	/** The end of the only Pixels element of an exported file, any prefix */
+	private static final Pattern END_OF_PIXELS = Pattern.compile(
+		"</((?:[\\w.-]+:)?)Pixels\\s*>");
+
+	private OmeXmlPlanes() {}
+
+	/** @return whether the Plane elements should be streamed, see the class doc */
+	static boolean enabled() {
+		return !System.getProperty("kheops.streamOmeXml", "true").equals("false");
+	}
+
+	/**
+	 * Appends a copy of the OME-XML of a closed OME-TIFF file with the Plane
+	 * elements of {@code planes} inserted, and points the first IFD at it.
+	 *
+	 * @param file an OME-TIFF file written by the exporter, closed
+	 * @param planes the store holding the Plane elements
+	 * @param series the image of {@code planes} to take them from
+	 * @param planeCount how many planes, from 0 on
+	 * @throws IOException if the file cannot be rewritten, or does not hold the
+	 *           OME-XML the exporter writes
+	 */
+	static void append(File file, MetadataRetrieve planes, int series,
+		int planeCount) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(),
+			StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			BigTiffFile tiff = BigTiffFile.read(channel);
+			BigTiffFile.Directory first = tiff.mainDirectories.get(0);
+			int index = first.entries.indexOf(first.get(
+				BigTiffFile.IMAGE_DESCRIPTION));
+			if (index < 0) throw new IOException(file + " has no OME-XML");
+			String xml = new String(first.entries.get(index).value,
+				StandardCharsets.UTF_8);
+			int end = xml.indexOf('\0');
+			if (end >= 0) xml = xml.substring(0, end);
+			Matcher matcher = END_OF_PIXELS.matcher(xml);
+			if (!matcher.find()) {
+				throw new IOException("No Pixels element in the OME-XML of " + file);
+			}
+
+			// TIFF wants the value on a word boundary
+			channel.position(channel.size());
+			if ((channel.size() & 1) != 0) channel.write(ByteBuffer.allocate(1));
+			long start = channel.position();
+			// Not closed: that would close the channel
+			OutputStream out = new BufferedOutputStream(Channels.newOutputStream(
+				channel), 1 << 16);
+			out.write(xml.substring(0, matcher.start()).getBytes(
+				StandardCharsets.UTF_8));
+			writePlanes(out, matcher.group(1), planes, series, planeCount);
+			out.write(xml.substring(matcher.start()).getBytes(
+				StandardCharsets.UTF_8));
+			out.write(0);
+			out.flush();
+			long length = channel.position() - start;
+
+			// The count and the offset of the entry: 8 bytes each, after the tag
+			// and the type
+			ByteBuffer entry = ByteBuffer.allocate(16).order(tiff.order);
+			entry.putLong(length).putLong(start).flip();
+			long at = first.offset + 8 + 20L * index + 4;
+			while (entry.hasRemaining()) {
+				at += channel.write(entry, at);
+			}
+		}
+	}
+
+	private static void writePlanes(OutputStream out, String prefix,
+		MetadataRetrieve planes, int series, int planeCount) throws IOException
+	{
+		try {
+			XMLStreamWriter xml = XMLOutputFactory.newFactory().createXMLStreamWriter(
+				out, "UTF-8");
+			int available = planes.getImageCount() > series ? planes.getPlaneCount(
+				series) : 0;
+			for (int p = 0; p < Math.min(planeCount, available); p++) {
+				xml.writeEmptyElement(prefix + "Plane");
+				// Same attributes, same formatting as the writer's Plane.asXMLElement
+				writeTime(xml, "DeltaT", planes.getPlaneDeltaT(series, p));
+				writeTime(xml, "ExposureTime", planes.getPlaneExposureTime(series, p));
+				writeLength(xml, "PositionX", planes.getPlanePositionX(series, p));
+				writeLength(xml, "PositionY", planes.getPlanePositionY(series, p));
+				writeLength(xml, "PositionZ", planes.getPlanePositionZ(series, p));
+				writeValue(xml, "TheC", planes.getPlaneTheC(series, p));
+				writeValue(xml, "TheT", planes.getPlaneTheT(series, p));
+				writeValue(xml, "TheZ", planes.getPlaneTheZ(series, p));
+			}
+			// Ends the last empty element, which StAX only does lazily. Not closed:
+			// that would close the stream
+			xml.writeEndDocument();
+			xml.flush();
+		}
+		catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private static void writeTime(XMLStreamWriter xml, String name, Time time)
+		throws XMLStreamException
+	{
+		if (time == null) return;
+		xml.writeAttribute(name, time.value().toString());
+		xml.writeAttribute(name + "Unit", time.unit().getSymbol());
+	}
+
+	private static void writeLength(XMLStreamWriter xml, String name,
+		Length length) throws XMLStreamException
+	{
+		if (length == null) return;
+		xml.writeAttribute(name, length.value().toString());
+		xml.writeAttribute(name + "Unit", length.unit().getSymbol());
+	}
+
+	private static void writeValue(XMLStreamWriter xml, String name,
+		Object value) throws XMLStreamException
+	{
+		if (value != null) xml.writeAttribute(name, value.toString());
+	}
+}
@@ -0,0 +1,173 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.kheops.ometiff;
+
+import ch.epfl.biop.bdv.img.ResourcePool;
+import loci.formats.FormatException;
+import loci.formats.ICompressedTileReader;
+import loci.formats.IFormatReader;
+import loci.formats.codec.Codec;
+import loci.formats.codec.CodecOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The compressed tiles of resolution level 0, copied as they are from the
+ * source file instead of being decoded and compressed again.
+ * <p>
+ * A JPEG or JPEG-2000 tiled slide exported with the same compression and the
+ * same tile grid used to have each tile decoded by Bio-Formats and encoded
+ * again into the very same format. Where the reader of the source exposes its
+ * compressed tiles, through {@link ICompressedTileReader}, a tile is fetched
+ * as it is stored and handed over to the writer with
+ * {@code saveCompressedBytes}.
+ * <p>
+ * This is decided per tile: a tile is copied only if the source tile has the
+ * size and the position of the exported one, and is compressed with the codec
+ * the writer would use. Anything else - another grid, another codec, a reader
+ * which cannot do it - returns null, and the tile is computed as usual.
+ */
+final class PassthroughTiles {
+
+	private static final Logger logger = LoggerFactory.getLogger(
+		PassthroughTiles.class);
+
+	final ResourcePool<IFormatReader> readerPool;
+	final int series;
+	/** What the writer compresses level 0 with */
+	final Codec codec;
+	final int tileWidth, tileHeight, nX, nY;
+	private final AtomicLong copied = new AtomicLong();
+	private final AtomicLong missed = new AtomicLong();
+
+	/**
+	 * @param readerPool readers of the source file
+	 * @param series the series of the source file which is exported
+	 * @param codec the codec of the exported level 0
+	 * @param tileWidth width of the exported level 0 tiles
+	 * @param tileHeight height of the exported level 0 tiles
+	 * @param nX number of tiles along x
+	 * @param nY number of tiles along y
+	 */
+	PassthroughTiles(ResourcePool<IFormatReader> readerPool, int series,
+		Codec codec, int tileWidth, int tileHeight, int nX, int nY)
+	{
+		this.readerPool = readerPool;
+		this.series = series;
+		this.codec = codec;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.nX = nX;
+		this.nY = nY;
+	}
+
+	/**
+	 * @return the compressed bytes of a level 0 tile of the source, or null if
+	 *         it has to be computed
+	 */
+	byte[] tile(int z, int c, int t, int x, int y) {
+		byte[] tile = fetch(z, c, t, x, y);
+		(tile == null ? missed : copied).incrementAndGet();
+		return tile;
+	}
+
+	private byte[] fetch(int z, int c, int t, int x, int y) {
+		byte[] tile = null;
+		try {
+			IFormatReader reader = readerPool.acquire();
+			try {
+				tile = compressedTile(reader, z, c, t, x, y);
+			}
+			finally {
+				readerPool.recycle(reader);
+			}
+		}
+		catch (Exception e) {
+			// The default methods of ICompressedTileReader throw
+			// UnsupportedOperationException
+			if (missed.get() == 0) {
+				logger.debug("Source tiles cannot be copied: " + e.getMessage());
+			}
+		}
+		return tile;
+	}
+
+	private byte[] compressedTile(IFormatReader reader, int z, int c, int t,
+		int x, int y) throws FormatException, IOException
+	{
+		if (!(reader instanceof ICompressedTileReader)) return null;
+		ICompressedTileReader tiles = (ICompressedTileReader) reader;
+		reader.setSeries(series);
+		reader.setResolution(0);
+		int no = reader.getIndex(z, c, t);
+		if (reader.getOptimalTileWidth() != tileWidth || reader
+			.getOptimalTileHeight() != tileHeight || tiles.getTileColumns(no) != nX ||
+			tiles.getTileRows(no) != nY)
+		{
+			return null;
+		}
+		Codec sourceCodec = tiles.getTileCodec(no);
+		if (sourceCodec == null || sourceCodec.getClass() != codec.getClass()) {
+			return null;
+		}
+		return tiles.openCompressedBytes(no, x, y);
+	}
+
+	/**
+	 * Whether a copied tile can be read back from the exported file. A source
+	 * tile may depend on something stored elsewhere in the source - the
+	 * JPEGTables tag of a TIFF, for instance - which the exported file does not
+	 * have: the first tile of a plane is decoded the way a reader of the
+	 * exported file will, from its own bytes only. A tile which decodes to the
+	 * wrong size, or not at all, rules the whole export out.
+	 *
+	 * @param options the options the tiles of level 0 are compressed with
+	 * @param length the size of a decoded tile, in bytes
+	 * @return false if copied tiles would not decode
+	 */
+	boolean decodes(int z, int c, int t, CodecOptions options, int length) {
+		byte[] tile = fetch(z, c, t, 0, 0);
+		if (tile == null) return true; // Nothing to copy, nothing to check
+		try {
+			byte[] pixels = codec.decompress(tile, new CodecOptions(options));
+			return pixels != null && pixels.length == length;
+		}
+		catch (Exception e) {
+			logger.debug("A copied source tile does not decode: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/** @return how many level 0 tiles were copied from the source */
+	long copied() {
+		return copied.get();
+	}
+
+	/** @return how many level 0 tiles had to be computed */
+	long missed() {
+		return missed.get();
+	}
+}
@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.kheops.ometiff;
+
+/**
+ * The TIFF predictor applied to the tiles before they are compressed.
+ * <p>
+ * A predictor replaces each sample with its difference to the previous one
+ * along the row, which a reader undoes after decompressing. On a smooth image
+ * those differences are small numbers that repeat, which LZW, Deflate and
+ * Zstandard compress much better than the samples themselves. Only the codecs
+ * that work on bytes benefit: JPEG and JPEG-2000 have their own transforms.
+ */
+public enum Predictor {
+
+	/** The samples as they are */
+	NONE(1),
+
+	/**
+	 * Horizontal differencing, for integer samples: each sample minus the same
+	 * sample of the previous pixel, modulo its bit depth
+	 */
+	HORIZONTAL(2),
+
+	/**
+	 * Floating point predictor, for float samples: the bytes of a row are
+	 * regrouped by significance, most significant first, then differenced
+	 * byte by byte. Differencing the floats themselves would not help: their
+	 * exponent and mantissa do not subtract
+	 */
+	FLOATING_POINT(3);
+
+	/** The value of the Predictor tag */
+	public final int code;
+
+	Predictor(int code) {
+		this.code = code;
+	}
+
+	/**
+	 * Applies the predictor, in place, to a tile as it is stored: full size,
+	 * samples interleaved.
+	 *
+	 * @param tile the samples, row after row
+	 * @param width tile width, in pixels
+	 * @param height tile height, in pixels
+	 * @param bytesPerSample 1, 2, 4 or 8
+	 * @param samplesPerPixel 1, or 3 for RGB
+	 * @param littleEndian byte order of the samples
+	 */
+	void apply(byte[] tile, int width, int height, int bytesPerSample,
+		int samplesPerPixel, boolean littleEndian)
+	{
+		int rowLength = width * samplesPerPixel * bytesPerSample;
+		if (this == HORIZONTAL) {
+			for (int y = 0; y < height; y++) {
+				horizontal(tile, y * rowLength, width * samplesPerPixel,
+					samplesPerPixel, bytesPerSample, littleEndian);
+			}
+		}
+		else if (this == FLOATING_POINT) {
+			byte[] row = new byte[rowLength];
+			for (int y = 0; y < height; y++) {
+				floatingPoint(tile, y * rowLength, row, width * samplesPerPixel,
+					samplesPerPixel, bytesPerSample, littleEndian);
+			}
+		}
+	}
+
+	/**
+	 * From the end of the row backwards, so that each sample still sees its
+	 * predecessor unchanged
+	 */
+	private static void horizontal(byte[] tile, int start, int nSamples,
+		int stride, int bytesPerSample, boolean littleEndian)
+	{
+		for (int s = nSamples - 1; s >= stride; s--) {
+			int at = start + s * bytesPerSample;
+			int before = at - stride * bytesPerSample;
+			if (bytesPerSample == 1) {
+				tile[at] -= tile[before];
+				continue;
+			}
+			// Multi-byte samples subtract as integers, with the borrow carried
+			// from the least significant byte up
+			int borrow = 0;
+			for (int b = 0; b < bytesPerSample; b++) {
+				int i = littleEndian ? b : bytesPerSample - 1 - b;
+				int d = (tile[at + i] & 0xFF) - (tile[before + i] & 0xFF) - borrow;
+				borrow = d < 0 ? 1 : 0;
+				tile[at + i] = (byte) d;
+			}
+		}
+	}
+
+	/** Same as libtiff's fpDiff, on one row */
+	private static void floatingPoint(byte[] tile, int start, byte[] row,
+		int nSamples, int stride, int bytesPerSample, boolean littleEndian)
+	{
+		// Byte plane k holds byte k of every sample, most significant first
+		for (int s = 0; s < nSamples; s++) {
+			for (int k = 0; k < bytesPerSample; k++) {
+				int i = littleEndian ? bytesPerSample - 1 - k : k;
+				row[k * nSamples + s] = tile[start + s * bytesPerSample + i];
+			}
+		}
+		for (int i = row.length - 1; i >= stride; i--) {
+			row[i] -= row[i - stride];
+		}
+		System.arraycopy(row, 0, tile, start, row.length);
+	}
+}
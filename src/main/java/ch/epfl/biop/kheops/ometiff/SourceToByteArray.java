@@ -23,7 +23,14 @@
 package ch.epfl.biop.kheops.ometiff;
 
 import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.AbstractCellImg;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.type.Type;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
@@ -31,6 +38,9 @@ import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
 
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.ShortBuffer;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -145,4 +155,171 @@ public class SourceToByteArray {
 					.getName());
 		}
 	}
+
+	/**
+	 * @return whether tiles of images stored in primitive arrays are copied
+	 *         row by row, see {@link #tileToByteArray}
+	 */
+	static boolean bulkCopies() {
+		return !System.getProperty("kheops.bulkCopies", "true").equals("false");
+	}
+
+	/**
+	 * Copies a tile of a plane of a 3D image row by row, without a cursor, when
+	 * the image keeps its pixels in primitive arrays: an {@link ArrayImg}, a
+	 * {@link PlanarImg}, or a cell image, cached or not, whose cells are arrays.
+	 * Bytes are copied with {@link System#arraycopy}, shorts and floats through
+	 * a big endian {@link ByteBuffer} view of the tile, and RGB is split into
+	 * its three bytes.
+	 * @param rai the 3D image
+	 * @param z the plane of the tile
+	 * @param minX left of the tile
+	 * @param minY top of the tile
+	 * @param width width of the tile
+	 * @param height height of the tile
+	 * @param pixelInstance pixel type of the image
+	 * @return the bytes {@link #raiToByteArray} gives for the same tile, or
+	 *         null if the image is a view, or holds its pixels otherwise, and has
+	 *         to go through a cursor
+	 */
+	public static <T> byte[] tileToByteArray(RandomAccessibleInterval<T> rai,
+		int z, int minX, int minY, int width, int height, T pixelInstance)
+	{
+		int pixelSize = pixelSize(pixelInstance);
+		if (pixelSize == 0 || rai.numDimensions() != 3) return null;
+		byte[] tile = new byte[width * height * pixelSize];
+		if (rai instanceof ArrayImg) {
+			Object access = ((ArrayImg<?, ?>) rai).update(null);
+			long sizeX = rai.dimension(0);
+			long offset = (z * rai.dimension(1) + minY) * sizeX + minX;
+			if (offset + (height - 1) * sizeX + width > Integer.MAX_VALUE) {
+				return null;
+			}
+			return copy(access, (int) offset, (int) sizeX, tile, 0, width, width,
+				height, pixelSize) ? tile : null;
+		}
+		if (rai instanceof PlanarImg) {
+			Object access = ((PlanarImg<?, ?>) rai).getPlane(z);
+			int sizeX = (int) rai.dimension(0);
+			return copy(access, minY * sizeX + minX, sizeX, tile, 0, width, width,
+				height, pixelSize) ? tile : null;
+		}
+		if (rai instanceof AbstractCellImg) {
+			return copyCells((AbstractCellImg<?, ?, ?, ?>) rai, z, minX, minY, width,
+				height, pixelSize, tile) ? tile : null;
+		}
+		return null;
+	}
+
+	/** Copies the part of each cell the tile covers */
+	@SuppressWarnings({ "rawtypes" })
+	private static boolean copyCells(AbstractCellImg<?, ?, ?, ?> img, int z,
+		int minX, int minY, int width, int height, int pixelSize, byte[] tile)
+	{
+		CellGrid grid = img.getCellGrid();
+		RandomAccess cells = img.getCells().randomAccess();
+		long[] gridPosition = new long[3];
+		long[] cellMin = new long[3];
+		int[] cellDims = new int[3];
+		gridPosition[2] = z / grid.cellDimension(2);
+		for (long gy = minY / grid.cellDimension(1); gy <= (minY + height - 1) /
+			grid.cellDimension(1); gy++)
+		{
+			for (long gx = minX / grid.cellDimension(0); gx <= (minX + width - 1) /
+				grid.cellDimension(0); gx++)
+			{
+				gridPosition[0] = gx;
+				gridPosition[1] = gy;
+				grid.getCellDimensions(gridPosition, cellMin, cellDims);
+				cells.setPosition(gridPosition);
+				Object access = ((Cell<?>) cells.get()).getData();
+				int x0 = (int) Math.max(minX, cellMin[0]);
+				int x1 = (int) Math.min(minX + width, cellMin[0] + cellDims[0]);
+				int y0 = (int) Math.max(minY, cellMin[1]);
+				int y1 = (int) Math.min(minY + height, cellMin[1] + cellDims[1]);
+				int offset = (int) (((z - cellMin[2]) * cellDims[1] + y0 - cellMin[1]) *
+					cellDims[0] + x0 - cellMin[0]);
+				if (!copy(access, offset, cellDims[0], tile, (y0 - minY) * width + x0 -
+					minX, width, x1 - x0, y1 - y0, pixelSize)) return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * As {@link #copyRows}, from the storage array of an
+	 * {@link ArrayDataAccess}
+	 */
+	private static boolean copy(Object access, int offset, int stride,
+		byte[] tile, int tileOffset, int tileStride, int width, int height,
+		int pixelSize)
+	{
+		if (!(access instanceof ArrayDataAccess)) return false;
+		return copyRows(((ArrayDataAccess<?>) access).getCurrentStorageArray(),
+			offset, stride, tile, tileOffset, tileStride, width, height, pixelSize);
+	}
+
+	/**
+	 * Copies {@code height} rows of {@code width} pixels from a primitive array
+	 * to big endian bytes, ARGB ints to their three RGB bytes
+	 * @param array the pixels: {@code byte[]}, {@code short[]}, {@code float[]}
+	 *          or {@code int[]} for RGB
+	 * @param offset index of the first pixel in the array
+	 * @param stride pixels from a row to the next one in the array
+	 * @param tile where to copy
+	 * @param tileOffset index of the first pixel in the tile
+	 * @param tileStride pixels from a row to the next one in the tile
+	 * @param pixelSize bytes per pixel in the tile, 3 for RGB
+	 * @return false if the pixels are not in the expected kind of array
+	 */
+	static boolean copyRows(Object array, int offset, int stride, byte[] tile,
+		int tileOffset, int tileStride, int width, int height, int pixelSize)
+	{
+		if (array instanceof byte[] && pixelSize == 1) {
+			for (int row = 0; row < height; row++) {
+				System.arraycopy(array, offset + row * stride, tile, tileOffset + row *
+					tileStride, width);
+			}
+		}
+		else if (array instanceof short[] && pixelSize == 2) {
+			ShortBuffer buffer = ByteBuffer.wrap(tile).asShortBuffer();
+			for (int row = 0; row < height; row++) {
+				buffer.position(tileOffset + row * tileStride);
+				buffer.put((short[]) array, offset + row * stride, width);
+			}
+		}
+		else if (array instanceof float[] && pixelSize == 4) {
+			FloatBuffer buffer = ByteBuffer.wrap(tile).asFloatBuffer();
+			for (int row = 0; row < height; row++) {
+				buffer.position(tileOffset + row * tileStride);
+				buffer.put((float[]) array, offset + row * stride, width);
+			}
+		}
+		else if (array instanceof int[] && pixelSize == 3) {
+			int[] argb = (int[]) array;
+			for (int row = 0; row < height; row++) {
+				int src = offset + row * stride;
+				int dst = 3 * (tileOffset + row * tileStride);
+				for (int col = 0; col < width; col++) {
+					int value = argb[src++];
+					tile[dst++] = (byte) (value >>> 16);
+					tile[dst++] = (byte) (value >>> 8);
+					tile[dst++] = (byte) value;
+				}
+			}
+		}
+		else {
+			return false;
+		}
+		return true;
+	}
+
+	/** @return bytes per pixel in a tile, 0 if the type is not supported */
+	private static int pixelSize(Object pixelInstance) {
+		if (pixelInstance instanceof UnsignedByteType) return 1;
+		if (pixelInstance instanceof UnsignedShortType) return 2;
+		if (pixelInstance instanceof ARGBType) return 3;
+		if (pixelInstance instanceof FloatType) return 4;
+		return 0;
+	}
 }
@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.kheops.ometiff;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The index behind tile deduplication: which tile of the file first held
+ * a given content, by hash.
+ * <p>
+ * Stitched mosaics, padded acquisitions and duplicated timepoints hold many
+ * tiles which are byte for byte the same. Each tile is hashed on the worker
+ * that compresses it, with {@link XxHash64}; a tile whose hash, length and
+ * geometry were seen before is recorded as a repeat of the first one, and
+ * pointed at it once the file is closed, see {@link BigTiffFile#shareTiles}.
+ * That pass compares the bytes before repointing anything, so a hash
+ * collision costs nothing but the comparison.
+ * <p>
+ * The index is bounded and forgets the least recently seen contents first:
+ * duplicates tend to be close to each other - the next timepoint, the next
+ * row of a mosaic.
+ */
+final class TileIndex {
+
+	/** Hash, length and geometry of a tile */
+	private static final class Key {
+
+		final long hash;
+		final int length, level, width, height;
+
+		Key(long hash, int length, int level, int width, int height) {
+			this.hash = hash;
+			this.length = length;
+			this.level = level;
+			this.width = width;
+			this.height = height;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return hash == k.hash && length == k.length && level == k.level &&
+				width == k.width && height == k.height;
+		}
+
+		@Override
+		public int hashCode() {
+			return Long.hashCode(hash);
+		}
+	}
+
+	private final int maxSize;
+	/** Where each content was first seen: level, plane, tile */
+	private final LinkedHashMap<Key, int[]> first;
+	/** One {@code {level, plane, tile, level, plane, tile}} per repeat */
+	private final List<int[]> repeats = new ArrayList<>();
+	private long lookups;
+
+	TileIndex(int maxSize) {
+		this.maxSize = maxSize;
+		this.first = new LinkedHashMap<Key, int[]>(16, 0.75f, true) {
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, int[]> eldest) {
+				return size() > TileIndex.this.maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Records a tile, as it will be written - compressed when the workers
+	 * compress it.
+	 *
+	 * @param level resolution level
+	 * @param plane plane index, as written
+	 * @param tile tile index within the plane, row by row
+	 * @param width tile width, in pixels, padding excluded
+	 * @param height tile height, in pixels, padding excluded
+	 * @param bytes what the writer is handed for this tile
+	 */
+	void add(int level, int plane, int tile, int width, int height,
+		byte[] bytes)
+	{
+		// Hashed outside the lock: this is the part that costs
+		Key key = new Key(XxHash64.hash(bytes), bytes.length, level, width,
+			height);
+		synchronized (this) {
+			lookups++;
+			int[] earlier = first.get(key);
+			if (earlier == null) {
+				first.put(key, new int[] { level, plane, tile });
+			}
+			else {
+				repeats.add(new int[] { level, plane, tile, earlier[0], earlier[1],
+					earlier[2] });
+			}
+		}
+	}
+
+	/** @return the repeats, to be given to {@link BigTiffFile#shareTiles} */
+	synchronized List<int[]> repeats() {
+		return new ArrayList<>(repeats);
+	}
+
+	/** @return how many contents the index holds */
+	synchronized int size() {
+		return first.size();
+	}
+
+	/** @return how many tiles were looked up */
+	synchronized long lookups() {
+		return lookups;
+	}
+}
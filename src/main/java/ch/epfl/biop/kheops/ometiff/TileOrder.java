@@ -0,0 +1,124 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.kheops.ometiff;
+
+import java.util.Arrays;
+
+/**
+ * The order in which the tiles of one plane are stored in the file.
+ * <p>
+ * This is about the bytes on disk only: the TileOffsets tag of a TIFF always
+ * lists the tiles row by row, wherever they are, so every reader reads every
+ * order. What changes is how many separate byte ranges a region of the image
+ * maps to. In row-major order, a viewport a few tiles high touches one range
+ * per row of tiles, each a whole image width apart; along a space-filling
+ * curve, the tiles close to each other in the image are mostly close to each
+ * other in the file too, which is what an HDD or a network share rewards.
+ */
+public enum TileOrder {
+
+	/** Row after row, as Bio-Formats writes them */
+	ROW_MAJOR,
+
+	/** Morton order: the bits of x and y interleaved */
+	Z_ORDER,
+
+	/**
+	 * Hilbert curve: a bit more local than the Z-order, and without its long
+	 * jumps between quadrants
+	 */
+	HILBERT;
+
+	/**
+	 * The row-major indexes ({@code y * nX + x}) of the tiles of an nX by nY
+	 * grid, in the order they should be stored.
+	 *
+	 * @param nX number of tiles along x
+	 * @param nY number of tiles along y
+	 * @return a permutation of 0 .. nX * nY - 1
+	 */
+	public int[] order(int nX, int nY) {
+		int n = Math.multiplyExact(nX, nY);
+		int[] order = new int[n];
+		if (this == ROW_MAJOR) {
+			for (int i = 0; i < n; i++) {
+				order[i] = i;
+			}
+			return order;
+		}
+		// The curves are defined on a 2^k square: the grid is laid on the
+		// smallest one that covers it, and the positions outside are skipped by
+		// sorting on the curve distance
+		int side = Integer.highestOneBit(Math.max(1, Math.max(nX, nY) - 1)) << 1;
+		long[] keys = new long[n];
+		for (int y = 0; y < nY; y++) {
+			for (int x = 0; x < nX; x++) {
+				keys[y * nX + x] = this == Z_ORDER ? morton(x, y) : hilbert(side, x,
+					y);
+			}
+		}
+		long[] sorted = keys.clone();
+		Arrays.sort(sorted);
+		// Distances are unique on the curve, so a binary search gives the rank
+		for (int i = 0; i < n; i++) {
+			order[Arrays.binarySearch(sorted, keys[i])] = i;
+		}
+		return order;
+	}
+
+	private static long morton(int x, int y) {
+		return spread(x) | (spread(y) << 1);
+	}
+
+	/** Puts a 0 between each of the 32 bits of v */
+	private static long spread(int v) {
+		long x = v & 0xFFFFFFFFL;
+		x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+		x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+		x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+		x = (x | (x << 2)) & 0x3333333333333333L;
+		x = (x | (x << 1)) & 0x5555555555555555L;
+		return x;
+	}
+
+	/** Distance of (x, y) along the Hilbert curve of a side by side square */
+	private static long hilbert(int side, int x, int y) {
+		long d = 0;
+		for (int s = side / 2; s > 0; s /= 2) {
+			int rx = (x & s) > 0 ? 1 : 0;
+			int ry = (y & s) > 0 ? 1 : 0;
+			d += (long) s * s * ((3 * rx) ^ ry);
+			// Rotates the quadrant so that the curve stays continuous
+			if (ry == 0) {
+				if (rx == 1) {
+					x = side - 1 - x;
+					y = side - 1 - y;
+				}
+				int t = x;
+				x = y;
+				y = t;
+			}
+		}
+		return d;
+	}
+}
@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+
+package ch.epfl.biop.kheops.ometiff;
+
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongFunction;
+
+/**
+ * Reads the level 0 tiles a fixed number of tiles ahead of the workers.
+ * <p>
+ * A worker reads the source tile of the tile it computes when it gets there,
+ * and waits for the decoding - the bulk of the time of a VSI or JPEG slide
+ * export - before it can compress anything. The tiles of level 0 are handed
+ * out in a fixed order, see {@link TileIterator}: whenever a worker takes the
+ * tile at some index, the tiles up to {@code distance} further are read in the
+ * background, through the same readers, and the worker which reaches one of
+ * them finds it decoded already. Decoding and compressing then overlap, and the
+ * reader pool can be kept busy with fewer workers.
+ * <p>
+ * At most {@code distance} tiles wait in memory, on top of the ones queued for
+ * the writer. A tile which is not prefetched, or failed to be, is read by the
+ * worker itself.
+ */
+final class TilePrefetcher {
+
+	final int distance;
+	final long nTiles;
+	private final LongFunction<byte[]> reader;
+	private final ExecutorService executor;
+	private final Map<Long, Future<byte[]>> prefetched =
+		new ConcurrentHashMap<>();
+	/** The last index sent to the executor, guarded by this */
+	private long scheduled = -1;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param distance how many tiles to read ahead
+	 * @param nThreads how many tiles may be read at the same time
+	 * @param nTiles number of tiles, indexed in the order they are computed
+	 * @param reader reads the tile at an index, null if it cannot
+	 * @param name name of the export, for the threads
+	 */
+	TilePrefetcher(int distance, int nThreads, long nTiles,
+		LongFunction<byte[]> reader, String name)
+	{
+		this.distance = distance;
+		this.nTiles = nTiles;
+		this.reader = reader;
+		this.executor = Executors.newFixedThreadPool(nThreads, runnable -> {
+			Thread thread = new Thread(runnable, "Kheops prefetch " + name);
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Reads ahead of a tile, and returns it if it was read ahead itself.
+	 *
+	 * @param index index of the tile a worker is about to compute
+	 * @return the tile, or null if the worker has to read it
+	 */
+	byte[] take(long index) {
+		schedule(index);
+		Future<byte[]> tile = prefetched.remove(index);
+		if (tile == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		try {
+			return tile.get();
+		}
+		catch (ExecutionException | CancellationException e) {
+			return null;
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	private synchronized void schedule(long index) {
+		if (executor.isShutdown()) return;
+		long last = Math.min(index + distance, nTiles - 1);
+		for (long i = Math.max(scheduled, index) + 1; i <= last; i++) {
+			long next = i;
+			prefetched.put(next, executor.submit(() -> reader.apply(next)));
+		}
+		scheduled = Math.max(scheduled, last);
+	}
+
+	/**
+	 * Stops reading ahead, and drops the tiles read for nothing. The reads
+	 * under way are left to finish: interrupted, a reader would be closed by
+	 * its channel and go back to the shared pool unusable
+	 */
+	synchronized void shutdown() {
+		executor.shutdown();
+		for (Future<byte[]> tile : prefetched.values()) {
+			tile.cancel(false);
+		}
+		prefetched.clear();
+	}
+
+	/** @return how many tiles were found read ahead */
+	long hits() {
+		return hits.get();
+	}
+
+	/** @return how many tiles the workers had to read */
+	long misses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,95 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+package ch.epfl.biop.kheops.ometiff;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdException;
+import loci.common.RandomAccessInputStream;
+import loci.formats.FormatException;
+import loci.formats.codec.BaseCodec;
+import loci.formats.codec.CodecOptions;
+
+import java.io.IOException;
+
+/**
+ * Zstandard, as libtiff stores it: each tile is one Zstandard frame, under the
+ * compression code 50000.
+ * <p>
+ * Bio-Formats has no Zstandard writer. The exporter compresses the tiles with
+ * this codec on its worker threads, hands them over to a writer that believes
+ * they are uncompressed, and fixes the Compression tag once the file is closed,
+ * see {@link BigTiffFile#setCompression}. Reading such a file back needs a
+ * reader that knows the code, such as libtiff or tifffile.
+ * <p>
+ * The frames are produced by zstd-jni, which pom-scijava manages and Fiji
+ * ships.
+ */
+final class ZstdCodec extends BaseCodec {
+
+	/** The name the exporter and the commands know this compression by */
+	static final String COMPRESSION = "Zstd";
+
+	/** The TIFF compression code libtiff uses for Zstandard */
+	static final int TIFF_CODE = 50000;
+
+	/** Zstandard's own default: about LZW's speed, a good deal smaller */
+	static final int DEFAULT_LEVEL = 3;
+
+	final int level;
+
+	ZstdCodec(int level) {
+		this.level = level;
+	}
+
+	@Override
+	public byte[] compress(byte[] data, CodecOptions options)
+		throws FormatException
+	{
+		try {
+			return Zstd.compress(data, level);
+		}
+		catch (ZstdException e) {
+			throw new FormatException(e);
+		}
+	}
+
+	@Override
+	public byte[] decompress(RandomAccessInputStream in, CodecOptions options)
+		throws FormatException, IOException
+	{
+		byte[] frame = new byte[(int) (in.length() - in.getFilePointer())];
+		in.readFully(frame);
+		// The frame says how large it decompresses to: Zstd.compress writes it
+		long size = options != null && options.maxBytes > 0 ? options.maxBytes
+			: Zstd.getFrameContentSize(frame);
+		if (size < 0 || size > Integer.MAX_VALUE) {
+			throw new FormatException("Zstandard frame of unknown size");
+		}
+		try {
+			return Zstd.decompress(frame, (int) size);
+		}
+		catch (ZstdException e) {
+			throw new FormatException(e);
+		}
+	}
+}
@@ -67,6 +67,12 @@ import java.io.IOException;
  * {@link AutoCloseable}. A leaked entry would hand a later, unrelated task on
  * the same pooled thread a closed handle for that path.</li>
  * </ul>
+ * <h2>Direct I/O</h2>
+ *
+ * Opt-in, see {@link PreallocatingFileHandle#enableDirectIO()}: the tiles then
+ * bypass the page cache, which keeps a very large export from evicting
+ * everything else the machine had cached. The phase on stock handles - the
+ * OME-XML - is unaffected, and so is anything that reads the file afterwards.
  */
 public class FastOutput implements AutoCloseable {
 
@@ -88,12 +94,26 @@ public class FastOutput implements AutoCloseable {
 	 * @throws IOException if the file cannot be created
 	 */
 	public FastOutput(File file) throws IOException {
+		this(file, false);
+	}
+
+	/**
+	 * Same as {@link #FastOutput(File)}, optionally writing the tiles with direct
+	 * I/O. If the JVM or the file system does not support it, the handle says so
+	 * in the log and writes through the page cache.
+	 *
+	 * @param file the output the writer is about to create
+	 * @param directIO whether the bulk writes should bypass the page cache
+	 * @throws IOException if the file cannot be created
+	 */
+	public FastOutput(File file, boolean directIO) throws IOException {
 		this.id = file.getAbsolutePath();
 		if (Location.getMappedFile(id) != null) {
 			this.handle = null;
 			return;
 		}
 		this.handle = new Handle(file);
+		if (directIO) handle.enableDirectIO();
 		Location.mapFile(id, handle);
 	}
 
@@ -44,6 +44,9 @@ import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.StandardOpenOption;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,7 +63,7 @@ import org.slf4j.LoggerFactory;
  *
  * Verbatim copy of {@code loci.common.NIOFileHandle} from ome-common 6.2.1,
  * extending the local {@link AbstractNIOHandle} rather than the library one,
- * with four changes, all marked {@code KHEOPS:} below:
+ * with six changes, all marked {@code KHEOPS:} below:
  * <ol>
  * <li>a {@code logicalLength} field, the end of the content;</li>
  * <li>{@link #setLength(long)} grows the file on disk in {@link #GROWTH}
@@ -69,7 +72,11 @@ import org.slf4j.LoggerFactory;
  * size on disk;</li>
  * <li>{@link #doWrite(int)} and the bulk {@link #write(java.nio.ByteBuffer, int, int)}
  * path record how far the file was really written, and {@link #close()}
- * truncates the padding away.</li>
+ * truncates the padding away;</li>
+ * <li>an opt-in direct I/O mode, see {@link #enableDirectIO()}, which sends
+ * the bulk writes around the page cache;</li>
+ * <li>small consecutive writes are gathered in memory and written with one
+ * system call, see {@link #coalesce(int)}.</li>
  * </ol>
  * Everything else is untouched, so this file can be diffed against the original
  * to check that nothing else drifted.
@@ -143,6 +150,45 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
   /** KHEOPS: current length of the file on disk, always >= logicalLength */
   private long allocatedLength;
 
+  // KHEOPS: size of the staging buffer of the direct I/O mode. The bulk writes
+  // it batches are tiles, so this holds a few of them.
+  public static final int DIRECT_BATCH = 8 * 1024 * 1024;
+
+  /** KHEOPS: the file this handle writes to, needed to open it a second time */
+  private File file;
+
+  /** KHEOPS: the file opened with O_DIRECT, or null if direct I/O is off */
+  private FileChannel directChannel;
+
+  /** KHEOPS: what O_DIRECT wants offsets, lengths and memory aligned on */
+  private int directAlignment;
+
+  /**
+   * KHEOPS: bulk writes waiting to go through {@link #directChannel}, from file
+   * offset {@link #directStart} on. Aligned in memory, and its capacity is a
+   * multiple of {@link #directAlignment}.
+   */
+  private ByteBuffer directBuffer;
+
+  /** KHEOPS: file offset of the first staged byte, -1 when nothing is staged */
+  private long directStart = -1;
+
+  // KHEOPS: size of the buffer small writes are gathered in. An IFD with its
+  // values is a few hundred bytes to a few kB; the OME-XML goes elsewhere.
+  public static final int COALESCE_BUFFER = 64 * 1024;
+
+  /** KHEOPS: whether small writes are gathered, see {@link #coalesce(int)} */
+  private final boolean coalesceWrites;
+
+  /**
+   * KHEOPS: small writes not written yet, from file offset
+   * {@link #pendingStart} on. Allocated once, on the first small write.
+   */
+  private ByteBuffer pending;
+
+  /** KHEOPS: file offset of the first pending byte, -1 when nothing is pending */
+  private long pendingStart = -1;
+
   /**
    * KHEOPS: puts the handle back in the state a freshly opened one would be in,
    * without touching the file.
@@ -184,6 +230,10 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
     }
     raf = new RandomAccessFile(file, mode);
     channel = raf.getChannel();
+    this.file = file; // KHEOPS: see enableDirectIO
+    // KHEOPS: see coalesce, -Dkheops.coalesceWrites=false is the escape hatch
+    coalesceWrites = isReadWrite &&
+      !"false".equals(System.getProperty("kheops.coalesceWrites", "true"));
     byteBufferProvider = new NIOByteBufferProvider(channel, mapMode);
     // KHEOPS: before buffer(), which reads length()
     logicalLength = allocatedLength = raf.length();
@@ -248,6 +298,207 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
     defaultRWBufferSize = size;
   }
 
+  /**
+   * KHEOPS: sends the bulk writes - the tiles - around the page cache from now
+   * on. The small writes, the IFDs, still go through the buffered channel.
+   * <p>
+   * An export writes far more than it will ever read back, and the temporary
+   * files of a pyramid are read once and deleted: through the page cache, a
+   * 100 GB export evicts everything else the machine had cached. With
+   * {@code O_DIRECT} the data goes straight to the disk instead.
+   * <p>
+   * {@code O_DIRECT} wants the file offset, the length and the memory address
+   * of every write aligned on the block size of the file system, which a TIFF
+   * tile never is. The bulk writes are therefore copied into an aligned staging
+   * buffer, and only whole blocks are written directly: the bytes up to the
+   * first block boundary and the bytes after the last one go through the
+   * buffered channel, the way every write used to.
+   * <p>
+   * Nothing here is guaranteed to exist: {@code ExtendedOpenOption.DIRECT} is a
+   * JDK internal, looked up reflectively, and a file system is free to refuse
+   * {@code O_DIRECT} (tmpfs does, some network file systems too). In all these
+   * cases, and if a direct write ever fails, the handle logs it and goes on
+   * with buffered writes.
+   *
+   * @return true if direct I/O is on
+   */
+  boolean enableDirectIO() {
+    if (!isReadWrite || directChannel != null) return directChannel != null;
+    OpenOption direct = directOpenOption();
+    if (direct == null) {
+      LOGGER.warn("Direct I/O is not available in this JVM, writing {} through " +
+        "the page cache", file.getName());
+      return false;
+    }
+    try {
+      long blockSize = Files.getFileStore(file.toPath()).getBlockSize();
+      int alignment = blockSize > 0 && blockSize <= DIRECT_BATCH / 4 ?
+        (int) blockSize : 4096;
+      ByteBuffer staging = ByteBuffer.allocateDirect(DIRECT_BATCH + alignment)
+        .alignedSlice(alignment);
+      staging.limit(DIRECT_BATCH);
+      directChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+        direct);
+      directAlignment = alignment;
+      directBuffer = staging.slice();
+      return true;
+    }
+    catch (IOException | RuntimeException e) {
+      LOGGER.warn("The file system refuses direct I/O for {}, writing it " +
+        "through the page cache: {}", file.getName(), e.toString());
+      return false;
+    }
+  }
+
+  /** KHEOPS: {@code com.sun.nio.file.ExtendedOpenOption.DIRECT}, or null */
+  private static OpenOption directOpenOption() {
+    try {
+      Class<?> options = Class.forName("com.sun.nio.file.ExtendedOpenOption");
+      for (Object option : options.getEnumConstants()) {
+        if (((Enum<?>) option).name().equals("DIRECT")) {
+          return (OpenOption) option;
+        }
+      }
+    }
+    catch (ClassNotFoundException | LinkageError e) {
+      // not an OpenJDK derived JVM
+    }
+    return null;
+  }
+
+  /**
+   * KHEOPS: the bulk write of the direct I/O mode. Appends to the staging
+   * buffer if the write continues the staged bytes, so that consecutive tiles
+   * become one large aligned write.
+   */
+  private void writeDirect(ByteBuffer buf) throws IOException {
+    if (directStart >= 0 && directStart + directBuffer.position() != position) {
+      flushDirect();
+    }
+    while (buf.hasRemaining()) {
+      if (directChannel == null) {
+        // direct I/O was given up while flushing
+        while (buf.hasRemaining()) position += channel.write(buf, position);
+        return;
+      }
+      if (directStart < 0) {
+        int head = (int) ((directAlignment - position % directAlignment) %
+          directAlignment);
+        if (head > 0) {
+          // up to the next block boundary, O_DIRECT cannot write it
+          int limit = buf.limit();
+          buf.limit(buf.position() + Math.min(head, buf.remaining()));
+          while (buf.hasRemaining()) position += channel.write(buf, position);
+          buf.limit(limit);
+          continue;
+        }
+        directStart = position;
+      }
+      int n = Math.min(buf.remaining(), directBuffer.remaining());
+      int limit = buf.limit();
+      buf.limit(buf.position() + n);
+      directBuffer.put(buf);
+      buf.limit(limit);
+      position += n;
+      if (!directBuffer.hasRemaining()) flushDirect();
+    }
+  }
+
+  /**
+   * KHEOPS: writes the staged bytes out: the whole blocks through
+   * {@link #directChannel}, the unaligned tail through the buffered channel.
+   * Called before anything that reads the file or writes to it otherwise,
+   * since the staged bytes are already counted in {@link #length()}.
+   */
+  private void flushDirect() throws IOException {
+    if (directStart < 0) return;
+    ByteBuffer staged = directBuffer;
+    int end = staged.position();
+    long at = directStart;
+    staged.flip();
+    staged.limit(end - end % directAlignment);
+    try {
+      while (staged.hasRemaining()) at += directChannel.write(staged, at);
+    }
+    catch (IOException e) {
+      LOGGER.warn("Direct write refused for {}, going on through the page " +
+        "cache: {}", file.getName(), e.toString());
+      closeDirect();
+    }
+    staged.limit(end);
+    while (staged.hasRemaining()) at += channel.write(staged, at);
+    staged.clear();
+    directStart = -1;
+    if (directChannel == null) directBuffer = null;
+  }
+
+  /** KHEOPS: gives up direct I/O, the staged bytes have to be written first */
+  private void closeDirect() {
+    if (directChannel == null) return;
+    try {
+      directChannel.close();
+    }
+    catch (IOException e) {
+      LOGGER.warn("Could not close the direct channel of " + file.getName(), e);
+    }
+    directChannel = null;
+  }
+
+  /**
+   * KHEOPS: whether a small write of {@code length} bytes at the current
+   * position should go to {@link #pending} rather than to the file. If so, the
+   * caller puts the bytes there and calls {@link #coalesced(int)}.
+   * <p>
+   * {@code TiffSaver} writes an IFD entry by entry and field by field - a short
+   * for the tag, a short for the type, a long for the count, a long for the
+   * value - so one directory is about a hundred writes of 2 to 8 bytes, and the
+   * original turns each of them into a {@code pwrite}, plus a read of the
+   * buffer around it whenever the write extends the file. Exporting many small
+   * planes is dominated by that, not by the pixels. Gathered here, one IFD
+   * costs one system call.
+   * <p>
+   * Only writes that continue the pending ones are gathered; anything else -
+   * a seek somewhere else, a read, a large write - writes the pending bytes
+   * out first, so the file is always up to date whenever it is looked at.
+   */
+  private boolean coalesce(int length) throws IOException {
+    if (!coalesceWrites || length > COALESCE_BUFFER / 4) return false;
+    if (pendingStart >= 0 && (pendingStart + pending.position() != position ||
+      pending.remaining() < length))
+    {
+      flushPending();
+    }
+    if (pendingStart < 0) {
+      if (pending == null) pending = ByteBuffer.allocate(COALESCE_BUFFER);
+      pendingStart = position;
+    }
+    ByteOrder byteOrder = getOrder();
+    pending.order(byteOrder == null ? ByteOrder.BIG_ENDIAN : byteOrder);
+    // Whatever the read buffer holds around here is stale from now on
+    buffer = null;
+    return true;
+  }
+
+  /** KHEOPS: accounts for {@code length} bytes just put in {@link #pending} */
+  private void coalesced(int length) {
+    position += length;
+    if (position > logicalLength) logicalLength = position;
+  }
+
+  /** KHEOPS: writes the pending small writes out, with one system call */
+  private void flushPending() throws IOException {
+    if (pendingStart < 0) return;
+    long end = pendingStart + pending.position();
+    // The pending bytes are already counted in logicalLength; keep the file on
+    // disk growing by GROWTH steps rather than by each batch
+    if (end > allocatedLength) setLength(end);
+    pending.flip();
+    long at = pendingStart;
+    while (pending.hasRemaining()) at += channel.write(pending, at);
+    pending.clear();
+    pendingStart = -1;
+  }
+
   // -- FileHandle and Channel API methods --
 
   /**
@@ -262,6 +513,9 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
    */
   public FileChannel getFileChannel() {
     try {
+      // KHEOPS: the caller may read through the channel
+      flushPending();
+      flushDirect();
       channel.position(position);
     }
     catch (IOException e) {
@@ -313,6 +567,12 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
   /* @see IRandomAccess.close() */
   @Override
   public void close() throws IOException {
+    // KHEOPS: the pending and the staged bytes are part of the content
+    if (raf.getChannel().isOpen()) {
+      flushPending();
+      flushDirect();
+    }
+    closeDirect();
     // KHEOPS: give the padding back, so the file ends where its content ends
     if (isReadWrite && raf.getChannel().isOpen() && raf.length() != logicalLength) {
       buffer = null; // a mapping would keep the file from shrinking
@@ -398,6 +658,18 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
   /* @see IRandomAccess.seek(long) */
   @Override
   public void seek(long pos) throws IOException {
+    // KHEOPS: TiffSaver seeks to the end before every tile. When that is where
+    // the staged direct writes end, the batch can stay open
+    if (directStart >= 0 && pos == directStart + directBuffer.position()) {
+      position = pos;
+      buffer = null;
+      return;
+    }
+    // KHEOPS: likewise, it seeks to the end between the fields it writes
+    if (pendingStart >= 0 && pos == pendingStart + pending.position()) {
+      position = pos;
+      return;
+    }
     if (mapMode == FileChannel.MapMode.READ_WRITE && pos > length()) {
       setLength(pos);
     }
@@ -495,6 +767,9 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
   /* @see java.io.DataInput.readLine() */
   @Override
   public String readLine() throws IOException {
+    // KHEOPS: reads through raf
+    flushPending();
+    flushDirect();
     raf.seek(position);
     String line = raf.readLine();
     buffer(raf.getFilePointer(), 0);
@@ -544,6 +819,9 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
   /* @see java.io.DataInput.readUTF() */
   @Override
   public String readUTF() throws IOException {
+    // KHEOPS: reads through raf
+    flushPending();
+    flushDirect();
     raf.seek(position);
     String utf8 = raf.readUTF();
     buffer(raf.getFilePointer(), 0);
@@ -596,7 +874,20 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
     // Also, the channel.write() will handle resizing the file as needed.
     buf.limit(off + len);
     buf.position(off);
-    position += channel.write(buf, position);
+    // KHEOPS: the small ones are gathered, see coalesce. Not with direct I/O,
+    // where a small compressed tile is still a tile
+    if (directChannel == null && coalesce(len)) {
+      pending.put(buf);
+      coalesced(len);
+      return;
+    }
+    flushPending();
+    if (directChannel != null) {
+      writeDirect(buf); // KHEOPS: direct I/O, see enableDirectIO
+    }
+    else {
+      position += channel.write(buf, position);
+    }
     // KHEOPS: this is the bulk path - it deliberately skips validateLength and
     // lets channel.write extend the file itself, so it is the one write that
     // never goes through setLength. The content end has to be picked up here or
@@ -624,6 +915,11 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
   /* @see java.io.DataOutput.writeByte(int) */
   @Override
   public void writeByte(int v) throws IOException {
+    if (coalesce(1)) { // KHEOPS
+      pending.put((byte) v);
+      coalesced(1);
+      return;
+    }
     writeSetup(1);
     buffer.put((byte) v);
     doWrite(1);
@@ -638,6 +934,11 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
   /* @see java.io.DataOutput.writeChar(int) */
   @Override
   public void writeChar(int v) throws IOException {
+    if (coalesce(2)) { // KHEOPS
+      pending.putChar((char) v);
+      coalesced(2);
+      return;
+    }
     writeSetup(2);
     buffer.putChar((char) v);
     doWrite(2);
@@ -652,6 +953,11 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
   /* @see java.io.DataOutput.writeDouble(double) */
   @Override
   public void writeDouble(double v) throws IOException {
+    if (coalesce(8)) { // KHEOPS
+      pending.putDouble(v);
+      coalesced(8);
+      return;
+    }
     writeSetup(8);
     buffer.putDouble(v);
     doWrite(8);
@@ -660,6 +966,11 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
   /* @see java.io.DataOutput.writeFloat(float) */
   @Override
   public void writeFloat(float v) throws IOException {
+    if (coalesce(4)) { // KHEOPS
+      pending.putFloat(v);
+      coalesced(4);
+      return;
+    }
     writeSetup(4);
     buffer.putFloat(v);
     doWrite(4);
@@ -668,6 +979,11 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
   /* @see java.io.DataOutput.writeInt(int) */
   @Override
   public void writeInt(int v) throws IOException {
+    if (coalesce(4)) { // KHEOPS
+      pending.putInt(v);
+      coalesced(4);
+      return;
+    }
     writeSetup(4);
     buffer.putInt(v);
     doWrite(4);
@@ -676,6 +992,11 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
   /* @see java.io.DataOutput.writeLong(long) */
   @Override
   public void writeLong(long v) throws IOException {
+    if (coalesce(8)) { // KHEOPS
+      pending.putLong(v);
+      coalesced(8);
+      return;
+    }
     writeSetup(8);
     buffer.putLong(v);
     doWrite(8);
@@ -684,6 +1005,11 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
   /* @see java.io.DataOutput.writeShort(int) */
   @Override
   public void writeShort(int v) throws IOException {
+    if (coalesce(2)) { // KHEOPS
+      pending.putShort((short) v);
+      coalesced(2);
+      return;
+    }
     writeSetup(2);
     buffer.putShort((short) v);
     doWrite(2);
@@ -712,6 +1038,9 @@ public class PreallocatingFileHandle extends AbstractNIOHandle {
    * the buffer.
    */
   private void buffer(long offset, int size) throws IOException {
+    // KHEOPS: the buffer is filled from the file, which has to be up to date
+    flushPending();
+    flushDirect();
     position = offset;
     long newPosition = offset + size;
     if (newPosition < bufferStartPosition ||
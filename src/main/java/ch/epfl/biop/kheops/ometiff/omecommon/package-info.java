@@ -75,10 +75,26 @@
  * are listed in {@code license.excludes} in the POM to prevent that; drop those
  * entries when this package goes away.
  *
+ * <h2>Direct I/O</h2>
+ *
+ * The handle also carries an opt-in direct I/O mode
+ * ({@code WriterOptionsBuilder.directIO()}), which has no equivalent upstream.
+ * It only makes sense for very large exports on shared machines, where the
+ * output - and the temporary pyramid levels, which are read once and deleted -
+ * would otherwise push everything else out of the page cache.
+ *
+ * <h2>Gathered writes</h2>
+ *
+ * The handle also gathers consecutive small writes - the fields of an IFD - in
+ * memory and writes them out with one system call. Removing the
+ * {@code setLength} calls left the writes themselves, still about a hundred
+ * per IFD; {@code -Dkheops.coalesceWrites=false} writes them one by one again.
+ *
  * <h2>How to remove it</h2>
  *
  * When a released ome-common buffers its small writes or allows a growth
  * increment, delete this package and the {@code FastOutput} try-with-resources
- * in {@code OMETiffExporter.export()}. Nothing else refers to it.
+ * in {@code OMETiffExporter.export()}; the direct I/O option goes with it.
+ * Nothing else refers to it.
  */
 package ch.epfl.biop.kheops.ometiff.omecommon;
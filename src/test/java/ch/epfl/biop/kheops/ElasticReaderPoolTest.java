@@ -0,0 +1,159 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.kheops;
+
+import loci.common.DebugTools;
+import loci.formats.IFormatReader;
+import loci.formats.in.FakeReader;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link ElasticReaderPool}: it grows while threads wait for readers,
+ * never beyond its maximal size, and shrinks back once they are idle.
+ */
+public class ElasticReaderPoolTest {
+
+    @BeforeClass
+    public static void silenceBioFormats() {
+        DebugTools.setRootLevel("OFF");
+    }
+
+    private static IFormatReader fake() {
+        try {
+            IFormatReader reader = new FakeReader();
+            reader.setId("pool&sizeX=64&sizeY=64.fake");
+            return reader;
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Every thread holds its reader for a while, as a decoding would */
+    private static void contend(ElasticReaderPool pool, int nThreads, int nTasks) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int i = 0; i < nTasks; i++) {
+                tasks.add(executor.submit(() -> {
+                    IFormatReader reader = pool.acquire();
+                    try {
+                        reader.openBytes(0);
+                        Thread.sleep(20);
+                    } finally {
+                        pool.recycle(reader);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) task.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void growsUnderContentionUpToItsMaximalSize() throws Exception {
+        ElasticReaderPool pool = new ElasticReaderPool(ElasticReaderPoolTest::fake, 3, 5, 60000);
+        try {
+            contend(pool, 8, 100);
+            assertEquals(100, pool.getAcquisitions());
+            assertTrue("waits: " + pool.getWaits(), pool.getWaits() > 0);
+            assertEquals(3, pool.getOpened());
+            assertEquals(3, pool.getPeakReaders());
+            assertEquals(3, pool.getOpenReaders());
+        } finally {
+            pool.shutDown(reader -> {});
+        }
+        assertEquals(0, pool.getOpenReaders());
+    }
+
+    @Test
+    public void aSingleThreadNeedsASingleReader() throws Exception {
+        ElasticReaderPool pool = new ElasticReaderPool(ElasticReaderPoolTest::fake, 8, 5, 60000);
+        try {
+            contend(pool, 1, 20);
+            assertEquals(1, pool.getOpened());
+            assertEquals(0, pool.getWaits());
+        } finally {
+            pool.shutDown(reader -> {});
+        }
+    }
+
+    @Test
+    public void idleReadersAreClosed() throws Exception {
+        ElasticReaderPool pool = new ElasticReaderPool(ElasticReaderPoolTest::fake, 4, 5, 100);
+        try {
+            contend(pool, 8, 40);
+            assertTrue(pool.getOpenReaders() > 1);
+            Thread.sleep(200);
+            // Recycling is when the pool looks for idle readers
+            pool.recycle(pool.acquire());
+            assertEquals(1, pool.getOpenReaders());
+            assertEquals(pool.getOpened() - 1, pool.getClosed());
+        } finally {
+            pool.shutDown(reader -> {});
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void noReaderOnceShutDown() {
+        ElasticReaderPool pool = new ElasticReaderPool(ElasticReaderPoolTest::fake, 4, 5, 60000);
+        pool.recycle(pool.acquire());
+        pool.shutDown(reader -> {});
+        pool.acquire();
+    }
+
+    @Test
+    public void waitingThreadsFailOnShutDown() throws Exception {
+        ElasticReaderPool pool = new ElasticReaderPool(ElasticReaderPoolTest::fake, 1, 5, 60000);
+        IFormatReader held = pool.acquire();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<IFormatReader> waiting = executor.submit(pool::acquire);
+            Thread.sleep(50);
+            pool.shutDown(reader -> {});
+            try {
+                waiting.get(5, TimeUnit.SECONDS);
+                fail("a reader was given after the shut down");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+            pool.recycle(held);
+            assertEquals(0, pool.getOpenReaders());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
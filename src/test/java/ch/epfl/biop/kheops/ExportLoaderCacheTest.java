@@ -0,0 +1,138 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.kheops;
+
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.basictypeaccess.array.ShortArray;
+import net.imglib2.img.cell.Cell;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link ExportLoaderCache}: a byte budget, least recently used
+ * blocks evicted first, and a single load per key.
+ */
+public class ExportLoaderCacheTest {
+
+    private static ExportLoaderCache<Integer, byte[]> cache(long maxBytes) {
+        return new ExportLoaderCache<>(maxBytes, value -> value.length);
+    }
+
+    @Test
+    public void leastRecentlyUsedBlocksAreEvictedBeyondTheBudget() throws Exception {
+        ExportLoaderCache<Integer, byte[]> cache = cache(30);
+        for (int key = 0; key < 3; key++) {
+            cache.get(key, k -> new byte[10]);
+        }
+        // Key 0 is used again, as a block straddling two tiles would be
+        cache.get(0, k -> { throw new AssertionError("Already cached"); });
+        cache.get(3, k -> new byte[10]);
+        assertNotNull(cache.getIfPresent(0));
+        assertNull(cache.getIfPresent(1));
+        assertNotNull(cache.getIfPresent(2));
+        assertNotNull(cache.getIfPresent(3));
+        assertEquals(30, cache.getBytes());
+
+        cache.invalidate(0);
+        assertEquals(20, cache.getBytes());
+        cache.invalidateIf(key -> key == 2);
+        assertEquals(10, cache.getBytes());
+        cache.invalidateAll();
+        assertEquals(0, cache.getBytes());
+        assertNull(cache.getIfPresent(3));
+    }
+
+    @Test
+    public void aValueBiggerThanTheBudgetIsStillReturned() throws Exception {
+        ExportLoaderCache<Integer, byte[]> cache = cache(10);
+        cache.get(0, k -> new byte[5]);
+        byte[] big = cache.get(1, k -> new byte[100]);
+        assertEquals(100, big.length);
+        assertNull(cache.getIfPresent(0));
+        assertSame(big, cache.getIfPresent(1));
+    }
+
+    @Test
+    public void concurrentRequestsLoadOnce() throws Exception {
+        ExportLoaderCache<Integer, byte[]> cache = cache(1000);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return cache.get(7, k -> {
+                        loads.incrementAndGet();
+                        Thread.sleep(50);
+                        return new byte[10];
+                    });
+                }));
+            }
+            start.countDown();
+            byte[] first = results.get(0).get();
+            for (Future<byte[]> result : results) {
+                assertSame(first, result.get());
+            }
+            assertEquals(1, loads.get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void aFailedLoadIsNotCached() throws Exception {
+        ExportLoaderCache<Integer, byte[]> cache = cache(100);
+        try {
+            cache.get(0, k -> { throw new IllegalStateException("decoding failed"); });
+            fail("The failure of the loader should be reported");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertNull(cache.getIfPresent(0));
+        assertEquals(4, cache.get(0, k -> new byte[4]).length);
+    }
+
+    @Test
+    public void cellsAreWeighedByTheirPixelType() {
+        assertEquals(64 * 64 * 2, ExportLoaderCache.cellBytes(new Cell<>(new int[] { 64, 64 },
+                new long[] { 0, 0 }, new ShortArray(64 * 64))));
+        assertEquals(64 * 64 * 4, ExportLoaderCache.cellBytes(new Cell<>(new int[] { 64, 64 },
+                new long[] { 0, 0 }, new FloatArray(64 * 64))));
+    }
+}
@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.kheops;
+
+import loci.common.DebugTools;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.scijava.Context;
+import org.scijava.task.TaskService;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests of {@link KheopsHelper#getSourcesFromFile}: a subset of the series of
+ * a file is opened alone, and its sources are keyed by the series indexes of
+ * the file, not by the order they were opened in.
+ */
+public class KheopsHelperTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void silenceBioFormats() {
+        DebugTools.setRootLevel("OFF");
+    }
+
+    /** Five series of two channels, as a plate with a few wells would be */
+    private File fakeFile() throws Exception {
+        File file = new File(folder.getRoot(), "plate&series=5&sizeC=2&sizeX=64&sizeY=64.fake");
+        if (!file.createNewFile()) throw new IllegalStateException("Could not create " + file);
+        return file;
+    }
+
+    @Test
+    public void aSubsetIsKeyedBySeriesOfTheFile() throws Exception {
+        File file = fakeFile();
+        // The opener ignores the context, which needs no more than the task service
+        Context context = new Context(TaskService.class);
+        KheopsHelper.SourcesInfo info = null;
+        try {
+            info = KheopsHelper.getSourcesFromFile(file.getAbsolutePath(), "1,3", 64, 64,
+                    1, 1, false, "CORNER", context);
+            assertEquals(Arrays.asList(1, 3), info.series);
+            assertEquals(new HashSet<>(Arrays.asList(1, 3)), info.idToSources.keySet());
+            assertEquals(2, info.idToSources.get(1).size());
+            assertEquals(2, info.idToSources.get(3).size());
+            assertEquals(new HashSet<>(Arrays.asList(1, 3)), info.seriesToId.keySet());
+            // The series index of a source counts the openers: 0 for series 1, 1 for series 3
+            assertEquals(0, info.idToSeriesIndex.get(info.seriesToId.get(1)).getId());
+            assertEquals(1, info.idToSeriesIndex.get(info.seriesToId.get(3)).getId());
+        } finally {
+            if (info != null) info.closeReaders();
+            context.dispose();
+        }
+    }
+
+    @Test
+    public void aSeriesListedTwiceIsOpenedOnce() throws Exception {
+        File file = fakeFile();
+        Context context = new Context(TaskService.class);
+        KheopsHelper.SourcesInfo info = null;
+        try {
+            info = KheopsHelper.getSourcesFromFile(file.getAbsolutePath(), "3,1,3", 64, 64,
+                    1, 1, false, "CORNER", context);
+            assertEquals(Arrays.asList(3, 1, 3), info.series);
+            assertEquals(new HashSet<>(Arrays.asList(1, 3)), info.idToSources.keySet());
+            assertEquals(2, info.idToSources.get(3).size());
+            assertEquals(0, info.idToSeriesIndex.get(info.seriesToId.get(3)).getId());
+            assertEquals(1, info.idToSeriesIndex.get(info.seriesToId.get(1)).getId());
+        } finally {
+            if (info != null) info.closeReaders();
+            context.dispose();
+        }
+    }
+}
@@ -30,7 +30,6 @@ import org.scijava.Context;
 import org.scijava.task.TaskService;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -57,8 +56,12 @@ public class CompressionBenchmark {
 	private static final int THREADS = Math.max(1, Runtime.getRuntime()
 		.availableProcessors() - 1);
 
-	/** Codecs which make sense for lossless microscopy data */
-	private static final String[] CODECS = { "LZW", "zlib", "Uncompressed" };
+	/**
+	 * Codecs which make sense for lossless microscopy data, "zlib-N" for zlib at
+	 * level N
+	 */
+	private static final String[] CODECS = { "LZW", "zlib", "zlib-1", "Zstd",
+		"Uncompressed" };
 
 	private static final File OUTPUT_DIR = new File(System.getProperty(
 		"java.io.tmpdir"), "kheops-bench-output");
@@ -113,7 +116,8 @@ public class CompressionBenchmark {
 		Context context) throws Exception
 	{
 		KheopsHelper.SourcesInfo info = KheopsHelper.getSourcesFromFile(input
-			.getAbsolutePath(), TILE, TILE, 64, READER_POOL, false, "CORNER", context);
+			.getAbsolutePath(), String.valueOf(series), TILE, TILE, 64, READER_POOL,
+			false, "CORNER", context);
 		try {
 			SourceAndConverter[] sources = info.idToSources.get(series).toArray(
 				new SourceAndConverter[0]);
@@ -125,21 +129,21 @@ public class CompressionBenchmark {
 				size /= 2;
 				levels++;
 			}
-			OMETiffExporter.builder().put(sources).defineMetaData("Image")
-				.defineWriteOptions().tileSize(TILE, TILE).nResolutionLevels(levels)
-				.downsample(2).compression(codec)
-				.maxTilesInQueue(64).nThreads(THREADS).savePath(output.getAbsolutePath())
-				.create().export();
+			OMETiffExporter.OMETiffExporterBuilder.WriterOptions.WriterOptionsBuilder options =
+				OMETiffExporter.builder().put(sources).defineMetaData("Image")
+					.defineWriteOptions().tileSize(TILE, TILE).nResolutionLevels(levels)
+					.downsample(2).maxTilesInQueue(64).nThreads(THREADS).savePath(output
+						.getAbsolutePath());
+			if (codec.startsWith("zlib-")) {
+				options.zlib(Integer.parseInt(codec.substring("zlib-".length())));
+			}
+			else {
+				options.compression(codec);
+			}
+			options.create().export();
 		}
 		finally {
-			info.readerPool.shutDown(reader -> {
-				try {
-					reader.close();
-				}
-				catch (IOException e) {
-					e.printStackTrace();
-				}
-			});
+			info.closeReaders();
 		}
 	}
 }
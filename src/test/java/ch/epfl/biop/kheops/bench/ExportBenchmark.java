@@ -30,7 +30,6 @@ import org.scijava.Context;
 import org.scijava.task.TaskService;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
@@ -519,14 +518,7 @@ public class ExportBenchmark {
 	}
 
 	private static void shutDown(KheopsHelper.SourcesInfo info) {
-		info.readerPool.shutDown(reader -> {
-			try {
-				reader.close();
-			}
-			catch (IOException e) {
-				e.printStackTrace();
-			}
-		});
+		info.closeReaders();
 	}
 
 	/** Prints the series a file holds, with the indices this benchmark uses */
@@ -0,0 +1,127 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.kheops.bench;
+
+import ch.epfl.biop.kheops.ometiff.FastLZWCodec;
+import loci.formats.codec.Codec;
+import loci.formats.codec.LZWCodec;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares Bio-Formats' {@link LZWCodec} with {@link FastLZWCodec}, which the
+ * worker threads use to compress LZW tiles.
+ * <p>
+ * The measured call is the one the exporter makes: one 1024x1024 uint16 tile
+ * at a time, on one thread and then on as many threads as the exporter would
+ * start. A smooth image with some noise stands for fluorescence, random bytes
+ * for the worst case, where the dictionary is cleared every few kB.
+ * <p>
+ * Run with:
+ *
+ * <pre>
+ * mvn -Denforcer.skip=true test-compile
+ * java -cp &lt;test classpath&gt; ch.epfl.biop.kheops.bench.LZWBenchmark
+ * </pre>
+ */
+public class LZWBenchmark {
+
+	private static final int TILE = 1024;
+	private static final int WARMUP = 3;
+	private static final int REPEATS = 7;
+	/** Number of tiles compressed per measured run */
+	private static final int TILES_PER_RUN = 32;
+	private static final int THREADS = Math.max(1, Runtime.getRuntime()
+		.availableProcessors() - 1);
+
+	public static void main(String... args) throws Exception {
+		Bench.printEnvironment();
+		System.out.println("Compressing " + TILES_PER_RUN + " tiles of " + TILE +
+			"x" + TILE + " uint16\n");
+
+		byte[][] tiles = { smooth(1), smooth(2), random(3), random(4) };
+		double runMB = TILES_PER_RUN * (double) tiles[0].length / (1024 * 1024);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		try {
+			List<Bench.Result> results = Bench.results();
+			results.add(measure("LZWCodec, 1 thread", new LZWCodec(), tiles, null,
+				runMB));
+			results.add(measure("FastLZWCodec, 1 thread", new FastLZWCodec(), tiles,
+				null, runMB));
+			results.add(measure("LZWCodec, " + THREADS + " threads", new LZWCodec(),
+				tiles, executor, runMB));
+			results.add(measure("FastLZWCodec, " + THREADS + " threads",
+				new FastLZWCodec(), tiles, executor, runMB));
+			Bench.report("LZW, tile " + TILE, results);
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	private static Bench.Result measure(String name, Codec codec, byte[][] tiles,
+		ExecutorService executor, double runMB) throws Exception
+	{
+		return Bench.measure(name, WARMUP, REPEATS, runMB, () -> {
+			if (executor == null) {
+				for (int i = 0; i < TILES_PER_RUN; i++) {
+					Bench.consume(codec.compress(tiles[i % tiles.length], null));
+				}
+				return;
+			}
+			List<Future<byte[]>> compressed = new ArrayList<>();
+			for (int i = 0; i < TILES_PER_RUN; i++) {
+				byte[] tile = tiles[i % tiles.length];
+				compressed.add(executor.submit(() -> codec.compress(tile, null)));
+			}
+			for (Future<byte[]> tile : compressed) {
+				Bench.consume(tile.get());
+			}
+		});
+	}
+
+	/** Little endian samples of a smooth image with some noise */
+	private static byte[] smooth(long seed) {
+		Random random = new Random(seed);
+		byte[] tile = new byte[TILE * TILE * 2];
+		for (int y = 0; y < TILE; y++) {
+			for (int x = 0; x < TILE; x++) {
+				int v = (int) (1000 + 300 * Math.sin(x / 40.0) * Math.cos(y / 25.0) +
+					random.nextGaussian() * 4);
+				tile[2 * (y * TILE + x)] = (byte) v;
+				tile[2 * (y * TILE + x) + 1] = (byte) (v >> 8);
+			}
+		}
+		return tile;
+	}
+
+	private static byte[] random(long seed) {
+		byte[] tile = new byte[TILE * TILE * 2];
+		new Random(seed).nextBytes(tile);
+		return tile;
+	}
+}
@@ -0,0 +1,122 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.kheops.bench;
+
+import ch.epfl.biop.kheops.ometiff.OMETiffExporter;
+import loci.common.DebugTools;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Export of an image made of many small planes, where the IFDs rather than the
+ * pixels are what the writing thread spends its time on.
+ * <p>
+ * The shape follows the case that motivated the local copy of the ome-common
+ * file handle - 84 series x 90 z x 2 channels, 15 120 IFDs - as a single image
+ * of 84 timepoints, all in memory so that nothing but the writing is measured.
+ * {@code TiffSaver} writes each IFD field by field, about a hundred writes of a
+ * few bytes per directory. The two rows compare writing each of them to the
+ * file, as ome-common does, with gathering them in memory first
+ * ({@code -Dkheops.coalesceWrites}, on by default).
+ * <p>
+ * Run with:
+ *
+ * <pre>
+ * java -Xmx4g -cp &lt;test classpath&gt; ch.epfl.biop.kheops.bench.ManyPlanesBenchmark
+ * </pre>
+ */
+public class ManyPlanesBenchmark {
+
+	private static final int SIZE_XY = 64;
+	private static final int SIZE_Z = 90;
+	private static final int SIZE_C = 2;
+	private static final int SIZE_T = 84;
+	private static final int WARMUP = 1;
+	private static final int REPEATS = 3;
+	private static final int THREADS = Math.max(1, Runtime.getRuntime()
+		.availableProcessors() - 1);
+
+	private static final File OUTPUT_DIR = new File(System.getProperty(
+		"java.io.tmpdir"), "kheops-bench-output");
+
+	public static void main(String... args) throws Exception {
+		DebugTools.setRootLevel("OFF");
+		Bench.printEnvironment();
+		if (!OUTPUT_DIR.exists() && !OUTPUT_DIR.mkdirs()) {
+			throw new IllegalStateException("Could not create " + OUTPUT_DIR);
+		}
+		System.out.println("\n### " + SIZE_C * SIZE_Z * SIZE_T + " planes of " +
+			SIZE_XY + "x" + SIZE_XY + " uint16");
+
+		List<Bench.Result> results = Bench.results();
+		results.add(measure("writes gathered per IFD", true));
+		results.add(measure("one write per field", false));
+		// Gathering is the default: put the property back as it was found
+		System.clearProperty("kheops.coalesceWrites");
+		Bench.report("Many small planes", results);
+	}
+
+	private static Bench.Result measure(String label, boolean coalesce)
+		throws Exception
+	{
+		System.setProperty("kheops.coalesceWrites", String.valueOf(coalesce));
+		return Bench.measure(label, WARMUP, REPEATS, 0, () -> {
+			File output = new File(OUTPUT_DIR, "manyplanes.ome.tiff");
+			if (output.exists() && !output.delete()) {
+				throw new IllegalStateException("Could not delete " + output);
+			}
+			export(output);
+			if (!output.delete()) {
+				System.err.println("Could not delete " + output);
+			}
+		});
+	}
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private static void export(File output) throws Exception {
+		OMETiffExporter.OMETiffExporterBuilder.Data.DataBuilder data =
+			OMETiffExporter.builder();
+		for (int c = 0; c < SIZE_C; c++) {
+			for (int t = 0; t < SIZE_T; t++) {
+				data.putXYZRAI(c, t, (RandomAccessibleInterval) stack(c, t));
+			}
+		}
+		data.defineMetaData("Image").defineWriteOptions().tileSize(SIZE_XY, SIZE_XY)
+			.nResolutionLevels(1).lzw().nThreads(THREADS).savePath(output
+				.getAbsolutePath()).create().export();
+	}
+
+	/** One z stack, with a pattern that changes from plane to plane */
+	private static RandomAccessibleInterval<UnsignedShortType> stack(int c,
+		int t)
+	{
+		short[] pixels = new short[SIZE_XY * SIZE_XY * SIZE_Z];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) ((i * 7 + c * 1024 + t * 13) & 0xFFF);
+		}
+		return ArrayImgs.unsignedShorts(pixels, SIZE_XY, SIZE_XY, SIZE_Z);
+	}
+}
@@ -0,0 +1,209 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.kheops.ometiff;
+
+import ch.epfl.biop.kheops.ElasticReaderPool;
+import loci.common.DebugTools;
+import loci.formats.IFormatReader;
+import loci.formats.in.FakeReader;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link DirectTiles}: whatever the byte order and the layout of the
+ * source, a tile has to come out big endian and interleaved, as
+ * {@link SourceToByteArray} writes it. The sources are Bio-Formats fake images,
+ * whose pixels do not depend on either.
+ */
+public class DirectTilesTest {
+
+	@BeforeClass
+	public static void silenceBioFormats() {
+		DebugTools.setRootLevel("OFF");
+	}
+
+	private static IFormatReader fake(String options) throws Exception {
+		IFormatReader reader = new FakeReader();
+		reader.setId("direct&sizeX=300&sizeY=200&" + options + ".fake");
+		return reader;
+	}
+
+	/**
+	 * Checks that tiles of the source read by {@link DirectTiles} are the tiles
+	 * {@code openBytes} reads from the expected reader.
+	 */
+	private static void assertSameTile(IFormatReader source, int bytesPerPixel,
+		int samplesPerPixel, boolean isFloat, IFormatReader expected)
+		throws Exception
+	{
+		try {
+			assertTrue(DirectTiles.compatible(source, bytesPerPixel,
+				samplesPerPixel, isFloat, 300, 200));
+			DirectTiles tiles = new DirectTiles(null, 0, bytesPerPixel,
+				samplesPerPixel);
+			// A partial tile at the edge, then a full one
+			assertArrayEquals(expected.openBytes(0, 256, 128, 44, 72), tiles.read(
+				source, 0, 256, 128, 44, 72));
+			assertArrayEquals(expected.openBytes(0, 64, 0, 64, 64), tiles.read(
+				source, 0, 64, 0, 64, 64));
+		}
+		finally {
+			source.close();
+			expected.close();
+		}
+	}
+
+	@Test
+	public void littleEndianShortsAreSwapped() throws Exception {
+		assertSameTile(fake("pixelType=uint16&little=true"), 2, 1, false, fake(
+			"pixelType=uint16&little=false"));
+	}
+
+	@Test
+	public void littleEndianFloatsAreSwapped() throws Exception {
+		assertSameTile(fake("pixelType=float&little=true"), 4, 1, true, fake(
+			"pixelType=float&little=false"));
+	}
+
+	@Test
+	public void bigEndianShortsAreReadAsTheyAre() throws Exception {
+		assertSameTile(fake("pixelType=uint16&little=false"), 2, 1, false, fake(
+			"pixelType=uint16&little=false"));
+	}
+
+	@Test
+	public void planarRgbIsInterleaved() throws Exception {
+		assertSameTile(fake("pixelType=uint8&rgb=3&sizeC=3&interleaved=false"), 1,
+			3, false, fake("pixelType=uint8&rgb=3&sizeC=3&interleaved=true"));
+	}
+
+	/** Two blocks of four 16 bit samples, little endian, as a multiplexed image */
+	private static final String MULTI_SAMPLE =
+		"pixelType=uint16&rgb=4&sizeC=8&little=true";
+
+	private static ElasticReaderPool multiSamplePool() {
+		return new ElasticReaderPool(() -> {
+			try {
+				return fake(MULTI_SAMPLE);
+			}
+			catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}, 1, 20, 30000);
+	}
+
+	/** @return channel {@code c} of a tile, big endian */
+	private static byte[] channel(IFormatReader planar, int c, int x, int y,
+		int w, int h) throws Exception
+	{
+		int channelBytes = w * h * 2;
+		byte[] block = planar.openBytes(c / 4, x, y, w, h);
+		return Arrays.copyOfRange(block, c % 4 * channelBytes, (c % 4 + 1) *
+			channelBytes);
+	}
+
+	@Test
+	public void channelsStoredTogetherAreReadFused() throws Exception {
+		ElasticReaderPool pool = multiSamplePool();
+		IFormatReader expected = fake(
+			"pixelType=uint16&rgb=4&sizeC=8&little=false&interleaved=false");
+		try {
+			DirectTiles tiles = DirectTiles.create(pool, 0, 2, 1, false, 300, 200,
+				8, Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7));
+			assertEquals(4, tiles.sourceSamples);
+			for (int c = 0; c < 8; c++) {
+				assertArrayEquals("channel " + c, channel(expected, c, 256, 128, 44,
+					72), tiles.tile(0, c, 0, 256, 128, 44, 72));
+			}
+			assertEquals("one read per block of four channels", 2, tiles.reads());
+			assertEquals(0, tiles.pendingFusedTiles());
+		}
+		finally {
+			pool.shutDown(reader -> {});
+			expected.close();
+		}
+	}
+
+	/**
+	 * A fused tile dropped for lack of room is read again for its next channel,
+	 * and still released once its last channel is taken
+	 */
+	@Test
+	public void droppedFusedTilesKeepTheirCount() throws Exception {
+		ElasticReaderPool pool = multiSamplePool();
+		IFormatReader expected = fake(
+			"pixelType=uint16&rgb=4&sizeC=8&little=false&interleaved=false");
+		try {
+			// Room for a single fused tile of 64x64 pixels of 4 samples of 2 bytes
+			DirectTiles tiles = new DirectTiles(pool, 0, 2, 1, 4, Arrays.asList(0,
+				1, 2, 3), 64 * 64 * 4 * 2);
+			for (int c = 0; c < 4; c++) {
+				// Tile b drops tile a, and the other way round, until the last channel
+				// of tile a releases it instead
+				assertArrayEquals(channel(expected, c, 0, 0, 64, 64), tiles.tile(0, c,
+					0, 0, 0, 64, 64));
+				assertArrayEquals(channel(expected, c, 64, 0, 64, 64), tiles.tile(0, c,
+					0, 64, 0, 64, 64));
+			}
+			assertEquals("each tile read again once dropped", 7, tiles.reads());
+			assertEquals(0, tiles.pendingFusedTiles());
+		}
+		finally {
+			pool.shutDown(reader -> {});
+			expected.close();
+		}
+	}
+
+	@Test
+	public void otherSourcesAreLeftToImglib2() throws Exception {
+		IFormatReader signed = fake("pixelType=int16");
+		IFormatReader rgb = fake("pixelType=uint8&rgb=3&sizeC=3");
+		IFormatReader indexed = fake("pixelType=uint8&indexed=true");
+		try {
+			assertFalse("signed pixels", DirectTiles.compatible(signed, 2, 1, false,
+				300, 200));
+			assertFalse("RGB channels split apart", DirectTiles.compatible(rgb, 1, 1,
+				false, 300, 200));
+			assertFalse("indexed colors", DirectTiles.compatible(indexed, 1, 1,
+				false, 300, 200));
+			assertTrue(DirectTiles.compatible(rgb, 1, 3, false, 300, 200));
+			assertTrue("RGB channels read fused", DirectTiles.fusable(rgb, 1, 1,
+				false, 300, 200, 3));
+			assertFalse("8 bit RGB as a single channel", DirectTiles.fusable(rgb, 1,
+				3, false, 300, 200, 1));
+			assertFalse("another size", DirectTiles.compatible(rgb, 1, 3, false, 300,
+				100));
+		}
+		finally {
+			signed.close();
+			rgb.close();
+			indexed.close();
+		}
+	}
+}
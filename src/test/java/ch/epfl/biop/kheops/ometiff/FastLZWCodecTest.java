@@ -0,0 +1,142 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.kheops.ometiff;
+
+import loci.formats.codec.CodecOptions;
+import loci.formats.codec.LZWCodec;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Tests of {@link FastLZWCodec}, which has to write exactly the bytes
+ * Bio-Formats' {@link LZWCodec} writes: the exporter hands its tiles to the
+ * writer as if the writer had compressed them.
+ * <p>
+ * The inputs cover what changes the stream: lengths around the code width
+ * changes and the CLEAR codes, incompressible data which fills the dictionary
+ * quickly, and very compressible data which barely does.
+ */
+public class FastLZWCodecTest {
+
+	private static void assertSameStream(byte[] data) throws Exception {
+		byte[] expected = new LZWCodec().compress(data, null);
+		byte[] actual = new FastLZWCodec().compress(data, null);
+		assertArrayEquals(data.length + " bytes", expected, actual);
+		assertArrayEquals(data, new LZWCodec().decompress(actual,
+			new CodecOptions()));
+	}
+
+	private static byte[] random(int length, int bound, long seed) {
+		Random random = new Random(seed);
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) random.nextInt(bound);
+		}
+		return data;
+	}
+
+	/** Little endian 16 bit samples of a smooth image, with some noise */
+	private static byte[] smooth16(int width, int height, long seed) {
+		Random random = new Random(seed);
+		byte[] data = new byte[width * height * 2];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int v = (int) (1000 + 300 * Math.sin(x / 40.0) * Math.cos(y / 25.0) +
+					random.nextGaussian() * 4);
+				data[2 * (y * width + x)] = (byte) v;
+				data[2 * (y * width + x) + 1] = (byte) (v >> 8);
+			}
+		}
+		return data;
+	}
+
+	@Test
+	public void shortInputs() throws Exception {
+		for (int length = 1; length < 1200; length++) {
+			assertSameStream(random(length, 256, length));
+			assertSameStream(random(length, 3, length));
+		}
+	}
+
+	@Test
+	public void incompressibleInputs() throws Exception {
+		// Many CLEAR codes, and every code width many times over
+		for (int length : new int[] { 4095, 4096, 4097, 65536, 1 << 20 }) {
+			assertSameStream(random(length, 256, length));
+		}
+	}
+
+	@Test
+	public void compressibleInputs() throws Exception {
+		assertSameStream(new byte[1 << 20]);
+		assertSameStream(random(1 << 20, 2, 7));
+		assertSameStream(smooth16(1024, 1024, 11));
+		assertSameStream(smooth16(613, 427, 13));
+	}
+
+	/** The state reused from tile to tile must not leak into the next tile */
+	@Test
+	public void successiveTiles() throws Exception {
+		FastLZWCodec codec = new FastLZWCodec();
+		LZWCodec reference = new LZWCodec();
+		for (int i = 0; i < 50; i++) {
+			byte[] data = i % 2 == 0 ? smooth16(256, 256, i) : random(50000 + i *
+				977, 1 + i * 5, i);
+			assertArrayEquals("tile " + i, reference.compress(data, null), codec
+				.compress(data, null));
+		}
+	}
+
+	/** One codec is shared by all the workers of an export */
+	@Test
+	public void concurrentTiles() throws Exception {
+		FastLZWCodec codec = new FastLZWCodec();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (int i = 0; i < 32; i++) {
+				long seed = i;
+				results.add(executor.submit(() -> {
+					byte[] data = seed % 2 == 0 ? smooth16(512, 512, seed) : random(
+						1 << 18, 64, seed);
+					assertArrayEquals(new LZWCodec().compress(data, null), codec
+						.compress(data, null));
+					return null;
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+}
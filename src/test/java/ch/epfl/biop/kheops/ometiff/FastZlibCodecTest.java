@@ -0,0 +1,155 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.kheops.ometiff;
+
+import loci.formats.codec.CodecOptions;
+import loci.formats.codec.ZlibCodec;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link FastZlibCodec}: at the default level it has to write the
+ * bytes Bio-Formats' {@link ZlibCodec} writes, and at any level and strategy,
+ * a stream {@link ZlibCodec} decompresses.
+ */
+public class FastZlibCodecTest {
+
+	private static final int[] STRATEGIES = { Deflater.DEFAULT_STRATEGY,
+		Deflater.FILTERED, Deflater.HUFFMAN_ONLY };
+
+	private static void assertRoundTrip(FastZlibCodec codec, byte[] data)
+		throws Exception
+	{
+		byte[] compressed = codec.compress(data, null);
+		assertArrayEquals("level " + codec.level + ", strategy " + codec.strategy +
+			", " + data.length + " bytes", data, new ZlibCodec().decompress(
+				compressed, new CodecOptions()));
+	}
+
+	private static byte[] random(int length, int bound, long seed) {
+		Random random = new Random(seed);
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) random.nextInt(bound);
+		}
+		return data;
+	}
+
+	/** Little endian 16 bit samples of a smooth image, with some noise */
+	private static byte[] smooth16(int width, int height, long seed) {
+		Random random = new Random(seed);
+		byte[] data = new byte[width * height * 2];
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int v = (int) (1000 + 300 * Math.sin(x / 40.0) * Math.cos(y / 25.0) +
+					random.nextGaussian() * 4);
+				data[2 * (y * width + x)] = (byte) v;
+				data[2 * (y * width + x) + 1] = (byte) (v >> 8);
+			}
+		}
+		return data;
+	}
+
+	@Test
+	public void defaultLevelWritesZlibCodecStream() throws Exception {
+		FastZlibCodec codec = new FastZlibCodec();
+		for (byte[] data : new byte[][] { random(1, 256, 1), random(5000, 3, 2),
+			random(1 << 20, 256, 3), new byte[1 << 20], smooth16(613, 427, 4) })
+		{
+			assertArrayEquals(data.length + " bytes", new ZlibCodec().compress(data,
+				null), codec.compress(data, null));
+		}
+	}
+
+	@Test
+	public void everyLevelAndStrategyRoundTrips() throws Exception {
+		byte[][] inputs = { random(1, 256, 1), random(4097, 256, 2), random(
+			1 << 20, 256, 3), new byte[1 << 20], smooth16(512, 512, 5) };
+		for (int level = 1; level <= 9; level++) {
+			for (int strategy : STRATEGIES) {
+				FastZlibCodec codec = new FastZlibCodec(level, strategy);
+				for (byte[] data : inputs) {
+					assertRoundTrip(codec, data);
+				}
+			}
+		}
+	}
+
+	/** A low level is the point: still smaller than the raw data */
+	@Test
+	public void lowLevelsCompress() throws Exception {
+		byte[] data = smooth16(1024, 1024, 6);
+		for (int level = 1; level <= 3; level++) {
+			assertTrue("level " + level, new FastZlibCodec(level,
+				Deflater.DEFAULT_STRATEGY).compress(data, null).length < data.length);
+		}
+	}
+
+	/** The state reused from tile to tile must not leak into the next tile */
+	@Test
+	public void successiveTiles() throws Exception {
+		FastZlibCodec codec = new FastZlibCodec();
+		ZlibCodec reference = new ZlibCodec();
+		for (int i = 0; i < 50; i++) {
+			byte[] data = i % 2 == 0 ? smooth16(256, 256, i) : random(50000 + i *
+				977, 1 + i * 5, i);
+			assertArrayEquals("tile " + i, reference.compress(data, null), codec
+				.compress(data, null));
+		}
+	}
+
+	/** One codec is shared by all the workers of an export */
+	@Test
+	public void concurrentTiles() throws Exception {
+		FastZlibCodec codec = new FastZlibCodec(2, Deflater.DEFAULT_STRATEGY);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (int i = 0; i < 32; i++) {
+				long seed = i;
+				results.add(executor.submit(() -> {
+					byte[] data = seed % 2 == 0 ? smooth16(512, 512, seed) : random(
+						1 << 18, 64, seed);
+					assertArrayEquals(data, new ZlibCodec().decompress(codec.compress(
+						data, null), new CodecOptions()));
+					return null;
+				}));
+			}
+			for (Future<?> result : results) {
+				result.get();
+			}
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,197 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.kheops.ometiff;
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests of {@link ImagePlusTiles}: a tile copied from the pixel arrays of an
+ * image has to be the bytes {@link SourceToByteArray} gives, big endian, and
+ * RGB split into its three bytes.
+ */
+public class ImagePlusTilesTest {
+
+	private static final int WIDTH = 300, HEIGHT = 200;
+
+	@Test
+	public void shortsAreCopiedBigEndian() {
+		short[] pixels = new short[WIDTH * HEIGHT];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = (short) (i * 7); // Above 32767 as well
+		}
+		ImagePlus image = new ImagePlus("shorts", new ShortProcessor(WIDTH, HEIGHT,
+			pixels, null));
+		ImagePlusTiles tiles = ImagePlusTiles.create(image, 2, false, false, WIDTH,
+			HEIGHT, new int[] { 1 }, 6, 1, "test");
+		// A partial tile at the edge
+		ByteBuffer expected = ByteBuffer.allocate(44 * 72 * 2);
+		for (int y = 128; y < 200; y++) {
+			for (int x = 256; x < 300; x++) {
+				expected.putShort(pixels[y * WIDTH + x]);
+			}
+		}
+		assertArrayEquals(expected.array(), tiles.tile(0, 256, 128, 44, 72));
+	}
+
+	@Test
+	public void rgbIsSplitIntoItsBytes() {
+		int[] pixels = new int[WIDTH * HEIGHT];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = 0xff000000 | i * 31;
+		}
+		ImagePlus image = new ImagePlus("rgb", new ColorProcessor(WIDTH, HEIGHT,
+			pixels));
+		ImagePlusTiles tiles = ImagePlusTiles.create(image, 1, false, true, WIDTH,
+			HEIGHT, new int[] { 1 }, 6, 1, "test");
+		byte[] expected = new byte[64 * 64 * 3];
+		int i = 0;
+		for (int y = 64; y < 128; y++) {
+			for (int x = 0; x < 64; x++) {
+				int value = pixels[y * WIDTH + x];
+				expected[i++] = (byte) (value >>> 16);
+				expected[i++] = (byte) (value >>> 8);
+				expected[i++] = (byte) value;
+			}
+		}
+		assertArrayEquals(expected, tiles.tile(0, 0, 64, 64, 64));
+	}
+
+	@Test
+	public void virtualStackPlanesAreReadOnce() {
+		int nPlanes = 5;
+		AtomicIntegerArray reads = new AtomicIntegerArray(nPlanes + 1);
+		VirtualStack stack = new VirtualStack(WIDTH, HEIGHT, null, null) {
+
+			@Override
+			public ImageProcessor getProcessor(int n) {
+				reads.incrementAndGet(n);
+				ByteProcessor plane = new ByteProcessor(WIDTH, HEIGHT);
+				plane.setValue(n);
+				plane.fill();
+				return plane;
+			}
+
+			@Override
+			public int getSize() {
+				return nPlanes;
+			}
+		};
+		ImagePlus image = new ImagePlus("virtual", stack);
+		for (int n = 1; n <= nPlanes; n++) {
+			reads.set(n, 0); // Opening the image reads a plane
+		}
+		// Exported backwards, 4 tiles of 150x100 per plane
+		int[] stackIndexes = { 5, 4, 3, 2, 1 };
+		ImagePlusTiles tiles = ImagePlusTiles.create(image, 1, false, false, WIDTH,
+			HEIGHT, stackIndexes, 4, 2, "test");
+		try {
+			for (int plane = 0; plane < nPlanes; plane++) {
+				for (int tile = 0; tile < 4; tile++) {
+					byte[] bytes = tiles.tile(plane, tile % 2 * 150, tile / 2 * 100, 150,
+						100);
+					assertEquals(stackIndexes[plane], bytes[0]);
+				}
+			}
+			for (int n = 1; n <= nPlanes; n++) {
+				assertEquals("reads of plane " + n, 1, reads.get(n));
+			}
+		}
+		finally {
+			tiles.shutdown();
+		}
+	}
+
+	/**
+	 * A sample taken before the export, as the automatic compression does,
+	 * leaves the planes to be read once each by the export
+	 */
+	@Test
+	public void samplesDoNotCountAsCopiedTiles() {
+		int nPlanes = 3;
+		AtomicIntegerArray reads = new AtomicIntegerArray(nPlanes + 1);
+		VirtualStack stack = new VirtualStack(WIDTH, HEIGHT, null, null) {
+
+			@Override
+			public ImageProcessor getProcessor(int n) {
+				reads.incrementAndGet(n);
+				ByteProcessor plane = new ByteProcessor(WIDTH, HEIGHT);
+				plane.setValue(n);
+				plane.fill();
+				return plane;
+			}
+
+			@Override
+			public int getSize() {
+				return nPlanes;
+			}
+		};
+		ImagePlus image = new ImagePlus("virtual", stack);
+		for (int n = 1; n <= nPlanes; n++) {
+			reads.set(n, 0);
+		}
+		ImagePlusTiles tiles = ImagePlusTiles.create(image, 1, false, false, WIDTH,
+			HEIGHT, new int[] { 1, 2, 3 }, 4, 1, "test");
+		try {
+			assertEquals(1, tiles.sample(0, 0, 0, 150, 100)[0]);
+			assertEquals(3, tiles.sample(2, 150, 100, 150, 100)[0]);
+			for (int plane = 0; plane < nPlanes; plane++) {
+				for (int tile = 0; tile < 4; tile++) {
+					tiles.tile(plane, tile % 2 * 150, tile / 2 * 100, 150, 100);
+				}
+			}
+			assertEquals(nPlanes * 4, tiles.copied());
+			assertEquals("reads of plane 1", 2, reads.get(1));
+			assertEquals("reads of plane 2", 1, reads.get(2));
+			assertEquals("reads of plane 3", 2, reads.get(3));
+		}
+		finally {
+			tiles.shutdown();
+		}
+	}
+
+	@Test
+	public void otherImagesAreLeftToImglib2() {
+		ImagePlus shorts = new ImagePlus("shorts", new ShortProcessor(WIDTH,
+			HEIGHT));
+		assertFalse("another pixel type", ImagePlusTiles.compatible(shorts, 1,
+			false, false, WIDTH, HEIGHT));
+		assertFalse("another size", ImagePlusTiles.compatible(shorts, 2, false,
+			false, WIDTH, 100));
+		assertNull(ImagePlusTiles.create(new ImagePlus("rgb", new ColorProcessor(
+			WIDTH, HEIGHT)), 1, false, false, WIDTH, HEIGHT, new int[] { 1 }, 6, 1,
+			"test"));
+	}
+}
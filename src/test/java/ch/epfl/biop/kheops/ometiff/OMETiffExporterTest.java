@@ -21,13 +21,19 @@
  */
 package ch.epfl.biop.kheops.ometiff;
 
+import ch.epfl.biop.kheops.ElasticReaderPool;
 import loci.common.DataTools;
 import loci.common.DebugTools;
 import loci.common.RandomAccessInputStream;
 import loci.formats.FormatTools;
 import loci.formats.ImageReader;
+import loci.formats.MetadataTools;
+import loci.formats.codec.CodecOptions;
+import loci.formats.codec.LZWCodec;
+import loci.formats.meta.IMetadata;
 import loci.formats.tiff.IFD;
 import loci.formats.tiff.TiffParser;
+import loci.formats.in.OMETiffReader;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.position.FunctionRandomAccessible;
@@ -42,7 +48,10 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -187,6 +196,30 @@ public class OMETiffExporterTest {
 		}
 	}
 
+	/**
+	 * Level 0 tiles which are a multiple of the source tiles decode each source
+	 * tile once, where the adjusted ones would straddle them.
+	 */
+	@Test
+	public void alignedTileSizeFollowsTheSourceTiles() {
+		// 10000 px in tiles of at most 1024: adjusted to 1008, across 512 px tiles
+		int adjusted = OMETiffExporter.adjustTileSize(1024, 10000);
+		assertTrue(OMETiffExporter.decodeAmplification(10000, adjusted, 512) > 1.4);
+		int aligned = OMETiffExporter.alignTileSize(1024, 512, 10000);
+		assertEquals(1024, aligned);
+		assertEquals(1, OMETiffExporter.decodeAmplification(10000, aligned, 512),
+			0);
+		// Below the requested size, the largest multiple of the source tile
+		assertEquals(960, OMETiffExporter.alignTileSize(1000, 240, 10000));
+		// A single tile is still shrunk to the image
+		assertEquals(OMETiffExporter.adjustTileSize(1024, 700), OMETiffExporter
+			.alignTileSize(1024, 512, 700));
+		// Source tiles which cannot be a TIFF tile size, or bigger than the
+		// requested ones: the usual adjustment
+		assertEquals(adjusted, OMETiffExporter.alignTileSize(1024, 500, 10000));
+		assertEquals(adjusted, OMETiffExporter.alignTileSize(1024, 2048, 10000));
+	}
+
 	/**
 	 * The size of an uncompressed file should be close to the size of the raw
 	 * pixel data, whatever the requested tile size - this is the issue #22.
@@ -506,6 +539,654 @@ public class OMETiffExporterTest {
 		}
 	}
 
+	/**
+	 * Direct I/O only changes how the bytes reach the disk: a pyramid written
+	 * with it, temporary levels included, should hold the same pixels. Where the
+	 * file system refuses direct I/O this runs the fallback path instead.
+	 */
+	@Test
+	public void directIOExportIsValid() throws Exception {
+		int sizeX = 613, sizeY = 227;
+		File file = new File(folder.getRoot(), "direct.ome.tiff");
+		OMETiffExporter.builder().putXYZRAI(gray16Image(sizeX, sizeY))
+			.defineMetaData("Image").defineWriteOptions().tileSize(128, 128)
+			.nResolutionLevels(3).directIO().savePath(file.getAbsolutePath()).create()
+			.export();
+		File[] files = folder.getRoot().listFiles();
+		assertEquals("Remaining files: " + java.util.Arrays.toString(files), 1,
+			files.length);
+		ImageReader reader = open(file, 0);
+		try {
+			double[] plane = readPlane(reader, 0);
+			for (int y = 0; y < sizeY; y++) {
+				for (int x = 0; x < sizeX; x++) {
+					assertEquals("pixel (" + x + ", " + y + ")", value16(x, y), plane[y *
+						sizeX + x], 0);
+				}
+			}
+			reader.setResolution(2);
+			assertEquals(sizeX / 4, reader.getSizeX());
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * With the cloud-optimised layout, every IFD should come before the first
+	 * tile, and the lowest resolution level before the highest - without a single
+	 * pixel changing.
+	 */
+	@Test
+	public void cloudOptimizedLayoutPutsDirectoriesFirst() throws Exception {
+		int sizeX = 613, sizeY = 227;
+		File file = new File(folder.getRoot(), "cog.ome.tiff");
+		OMETiffExporter.builder().putXYZRAI(gray16Image(sizeX, sizeY))
+			.defineMetaData("Image").defineWriteOptions().tileSize(128, 128)
+			.nResolutionLevels(3).cloudOptimizedLayout().savePath(file
+				.getAbsolutePath()).create().export();
+		assertEquals(1, folder.getRoot().listFiles().length);
+
+		try (FileChannel channel = FileChannel.open(file.toPath())) {
+			BigTiffFile tiff = BigTiffFile.read(channel);
+			assertEquals(3, tiff.directories.size());
+			long lastDirectory = 0;
+			for (BigTiffFile.Directory directory : tiff.directories) {
+				lastDirectory = Math.max(lastDirectory, directory.offset);
+			}
+			BigTiffFile.Directory level0 = tiff.mainDirectories.get(0);
+			long[] previousLevel = null;
+			for (int level = 2; level >= 0; level--) {
+				BigTiffFile.Directory directory = level == 0 ? level0
+					: level0.subDirectories.get(level - 1);
+				long[] offsets = tiff.longs(directory.offsetsEntry());
+				for (long offset : offsets) {
+					assertTrue("tile at " + offset + " before the IFDs",
+						offset > lastDirectory);
+					if (previousLevel != null) {
+						for (long lower : previousLevel) {
+							assertTrue("level " + level + " before a lower resolution",
+								offset > lower);
+						}
+					}
+				}
+				previousLevel = offsets;
+			}
+		}
+
+		ImageReader reader = open(file, 0);
+		try {
+			double[] plane = readPlane(reader, 0);
+			for (int y = 0; y < sizeY; y++) {
+				for (int x = 0; x < sizeX; x++) {
+					assertEquals("pixel (" + x + ", " + y + ")", value16(x, y), plane[y *
+						sizeX + x], 0);
+				}
+			}
+			reader.setResolution(2);
+			assertEquals(sizeX / 4, reader.getSizeX());
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * A Hilbert tile order should store the tiles of a plane along the curve,
+	 * while the TileOffsets still list them by position: every pixel reads back
+	 * the same.
+	 */
+	@Test
+	public void hilbertTileOrderKeepsPixels() throws Exception {
+		int sizeX = 613, sizeY = 427;
+		File file = new File(folder.getRoot(), "hilbert.ome.tiff");
+		OMETiffExporter.builder().putXYZRAI(gray16Image(sizeX, sizeY))
+			.defineMetaData("Image").defineWriteOptions().tileSize(64, 64)
+			.nResolutionLevels(2).uncompressed().tileOrder(TileOrder.HILBERT)
+			.savePath(file.getAbsolutePath()).create().export();
+
+		try (FileChannel channel = FileChannel.open(file.toPath())) {
+			BigTiffFile tiff = BigTiffFile.read(channel);
+			BigTiffFile.Directory level0 = tiff.mainDirectories.get(0);
+			long[] offsets = tiff.longs(level0.offsetsEntry());
+			int[] order = TileOrder.HILBERT.order(10, 7);
+			assertEquals(order.length, offsets.length);
+			for (int i = 1; i < order.length; i++) {
+				assertTrue("tile " + order[i] + " stored out of order",
+					offsets[order[i]] > offsets[order[i - 1]]);
+			}
+		}
+
+		ImageReader reader = open(file, 0);
+		try {
+			double[] plane = readPlane(reader, 0);
+			for (int y = 0; y < sizeY; y++) {
+				for (int x = 0; x < sizeX; x++) {
+					assertEquals("pixel (" + x + ", " + y + ")", value16(x, y), plane[y *
+						sizeX + x], 0);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Zstd tiles are declared under libtiff's code in every IFD, and decompress
+	 * to the pixels. Bio-Formats cannot read them, so the tile is read directly
+	 */
+	@Test
+	public void zstdTilesAreDeclaredAndDecompress() throws Exception {
+		int sizeX = 613, sizeY = 427;
+		File file = new File(folder.getRoot(), "zstd.ome.tiff");
+		OMETiffExporter.builder().putXYZRAI(gray16Image(sizeX, sizeY))
+			.defineMetaData("Image").defineWriteOptions().tileSize(64, 64)
+			.nResolutionLevels(2).zstd(3).savePath(file.getAbsolutePath()).create()
+			.export();
+
+		try (FileChannel channel = FileChannel.open(file.toPath())) {
+			BigTiffFile tiff = BigTiffFile.read(channel);
+			assertEquals(2, tiff.directories.size());
+			for (BigTiffFile.Directory directory : tiff.directories) {
+				assertEquals(ZstdCodec.TIFF_CODE, tiff.get(directory,
+					BigTiffFile.COMPRESSION, 1));
+			}
+			BigTiffFile.Directory level0 = tiff.mainDirectories.get(0);
+			long offset = tiff.longs(level0.offsetsEntry())[0];
+			long length = tiff.longs(level0.byteCountsEntry())[0];
+			ByteBuffer frame = ByteBuffer.allocate((int) length);
+			while (frame.hasRemaining()) {
+				channel.read(frame, offset + frame.position());
+			}
+			ByteBuffer tile = ByteBuffer.wrap(new ZstdCodec(3).decompress(frame
+				.array(), null)).order(tiff.order);
+			assertEquals(64 * 64 * 2, tile.capacity());
+			for (int y = 0; y < 64; y++) {
+				for (int x = 0; x < 64; x++) {
+					assertEquals("pixel (" + x + ", " + y + ")", value16(x, y), tile
+						.getShort() & 0xFFFF, 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Horizontal differencing is declared in every IFD and undone by
+	 * Bio-Formats, down to the last resolution level
+	 */
+	@Test
+	public void horizontalPredictorKeepsPixels() throws Exception {
+		int sizeX = 613, sizeY = 427;
+		File file = new File(folder.getRoot(), "predictor.ome.tiff");
+		OMETiffExporter.builder().putXYZRAI(gray16Image(sizeX, sizeY))
+			.defineMetaData("Image").defineWriteOptions().tileSize(64, 64)
+			.nResolutionLevels(2).lzw().predictor(Predictor.HORIZONTAL).savePath(file
+				.getAbsolutePath()).create().export();
+
+		try (FileChannel channel = FileChannel.open(file.toPath())) {
+			BigTiffFile tiff = BigTiffFile.read(channel);
+			assertEquals(2, tiff.directories.size());
+			for (BigTiffFile.Directory directory : tiff.directories) {
+				assertEquals(Predictor.HORIZONTAL.code, tiff.get(directory,
+					BigTiffFile.PREDICTOR, 1));
+			}
+			// Inserted by the relayout: no second copy of the IFDs at the end
+			assertEquals(BigTiffFile.HEADER_SIZE, tiff.mainDirectories.get(0).offset);
+		}
+
+		ImageReader reader = open(file, 0);
+		try {
+			double[] plane = readPlane(reader, 0);
+			for (int y = 0; y < sizeY; y++) {
+				for (int x = 0; x < sizeX; x++) {
+					assertEquals("pixel (" + x + ", " + y + ")", value16(x, y), plane[y *
+						sizeX + x], 0);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Bio-Formats does not undo the floating point predictor, so it is undone
+	 * here as libtiff does: bytes summed along the row, then put back together
+	 * by significance
+	 */
+	@Test
+	public void floatingPointPredictorKeepsPixels() throws Exception {
+		int sizeX = 200, sizeY = 150;
+		File file = new File(folder.getRoot(), "fpredictor.ome.tiff");
+		OMETiffExporter.builder().putXYZRAI(floatImage(sizeX, sizeY))
+			.defineMetaData("Image").defineWriteOptions().tileSize(64, 64)
+			.nResolutionLevels(1).lzw().predictor(Predictor.FLOATING_POINT).savePath(
+				file.getAbsolutePath()).create().export();
+
+		try (FileChannel channel = FileChannel.open(file.toPath())) {
+			BigTiffFile tiff = BigTiffFile.read(channel);
+			BigTiffFile.Directory level0 = tiff.mainDirectories.get(0);
+			assertEquals(Predictor.FLOATING_POINT.code, tiff.get(level0,
+				BigTiffFile.PREDICTOR, 1));
+			long offset = tiff.longs(level0.offsetsEntry())[0];
+			long length = tiff.longs(level0.byteCountsEntry())[0];
+			ByteBuffer compressed = ByteBuffer.allocate((int) length);
+			while (compressed.hasRemaining()) {
+				channel.read(compressed, offset + compressed.position());
+			}
+			byte[] tile = new LZWCodec().decompress(compressed.array(),
+				new CodecOptions());
+			int rowLength = 64 * 4;
+			for (int y = 0; y < 64; y++) {
+				byte[] row = new byte[rowLength];
+				System.arraycopy(tile, y * rowLength, row, 0, rowLength);
+				for (int i = 1; i < rowLength; i++) {
+					row[i] += row[i - 1];
+				}
+				for (int x = 0; x < 64; x++) {
+					int bits = 0;
+					for (int k = 0; k < 4; k++) {
+						bits = (bits << 8) | (row[k * 64 + x] & 0xFF);
+					}
+					assertEquals("pixel (" + x + ", " + y + ")", valueFloat(x, y), Float
+						.intBitsToFloat(bits), 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Level 0 stays lossless while the overview is stored as JPEG, at the
+	 * requested quality
+	 */
+	@Test
+	public void overviewLevelCanBeJpegCompressed() throws Exception {
+		int sizeX = 613, sizeY = 427;
+		File best = exportJpegOverview(sizeX, sizeY, 95);
+		File worst = exportJpegOverview(sizeX, sizeY, 10);
+
+		try (FileChannel channel = FileChannel.open(best.toPath());
+				FileChannel smaller = FileChannel.open(worst.toPath()))
+		{
+			BigTiffFile tiff = BigTiffFile.read(channel);
+			assertEquals(2, tiff.directories.size());
+			assertEquals(5, tiff.get(tiff.mainDirectories.get(0),
+				BigTiffFile.COMPRESSION, 1)); // LZW
+			assertEquals(7, tiff.get(level1(tiff), BigTiffFile.COMPRESSION, 1)); // JPEG
+			BigTiffFile lowQuality = BigTiffFile.read(smaller);
+			assertTrue("the quality should change the JPEG tiles", sum(lowQuality
+				.longs(level1(lowQuality).byteCountsEntry())) < sum(tiff.longs(level1(
+					tiff).byteCountsEntry())));
+		}
+
+		ImageReader reader = open(best, 0);
+		try {
+			double[] plane = readPlane(reader, 0);
+			for (int y = 0; y < sizeY; y++) {
+				for (int x = 0; x < sizeX; x++) {
+					assertEquals("pixel (" + x + ", " + y + ")", value(x, y), plane[y *
+						sizeX + x], 0);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+
+		reader = open(best, 1);
+		try {
+			int width = reader.getSizeX();
+			int height = reader.getSizeY();
+			double[] plane = readPlane(reader, 0);
+			double error = 0;
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					int sum = 0;
+					for (int dy = 0; dy < 2; dy++) {
+						for (int dx = 0; dx < 2; dx++) {
+							sum += value(2 * x + dx, 2 * y + dy);
+						}
+					}
+					error += Math.abs(plane[y * width + x] - sum / 4);
+				}
+			}
+			assertTrue("mean JPEG error " + error / (width * height), error /
+				(width * height) < 8);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private File exportJpegOverview(int sizeX, int sizeY, int quality)
+		throws Exception
+	{
+		File file = new File(folder.getRoot(), "jpeg" + quality + ".ome.tiff");
+		OMETiffExporter.builder().putXYZRAI(grayImage(sizeX, sizeY))
+			.defineMetaData("Image").defineWriteOptions().tileSize(64, 64)
+			.nResolutionLevels(2).lzw().levelCompression(1, "JPEG").jpegQuality(
+				quality).savePath(file.getAbsolutePath()).create().export();
+		return file;
+	}
+
+	/** An untiled export compresses on the writer, which has no JPEG quality */
+	@Test(expected = UnsupportedOperationException.class)
+	public void jpegQualityNeedsTiles() throws Exception {
+		File file = new File(folder.getRoot(), "jpeguntiled.ome.tiff");
+		OMETiffExporter.builder().putXYZRAI(grayImage(128, 96)).defineMetaData(
+			"Image").defineWriteOptions().tileSize(0, 0).nResolutionLevels(1)
+			.compression("JPEG").jpegQuality(50).savePath(file.getAbsolutePath())
+			.create();
+	}
+
+	/**
+	 * A JPEG tiled file exported again as JPEG, through its own readers, keeps
+	 * its tiles as they are: every tile is copied, none is decoded and
+	 * compressed again, which JPEG would not survive unchanged
+	 */
+	@Test
+	public void jpegTilesArePassedThrough() throws Exception {
+		int sizeX = 256, sizeY = 192;
+		File source = new File(folder.getRoot(), "jpegsource.ome.tiff");
+		OMETiffExporter.builder().putXYZRAI(grayImage(sizeX, sizeY))
+			.defineMetaData("Image").defineWriteOptions().tileSize(64, 64)
+			.nResolutionLevels(1).compression("JPEG").savePath(source
+				.getAbsolutePath()).create().export();
+		double[] sourcePlane;
+		ImageReader reader = open(source, 0);
+		try {
+			sourcePlane = readPlane(reader, 0);
+		}
+		finally {
+			reader.close();
+		}
+
+		// What the source decodes to, for the tiles which would not be copied
+		FunctionRandomAccessible<UnsignedByteType> decoded =
+			new FunctionRandomAccessible<>(2, (position, pixel) -> pixel.set(
+				(int) sourcePlane[position.getIntPosition(1) * sizeX + position
+					.getIntPosition(0)]), UnsignedByteType::new);
+		ElasticReaderPool readers = new ElasticReaderPool(() -> {
+			try {
+				OMETiffReader sourceReader = new OMETiffReader();
+				sourceReader.setFlattenedResolutions(false);
+				sourceReader.setId(source.getAbsolutePath());
+				return sourceReader;
+			}
+			catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+		}, 2, 100, 1000);
+		File file = new File(folder.getRoot(), "jpegcopy.ome.tiff");
+		OMETiffExporter exporter;
+		try {
+			exporter = OMETiffExporter.builder().putXYZRAI(Views.interval(decoded,
+				new FinalInterval(new long[] { 0, 0 }, new long[] { sizeX - 1, sizeY -
+					1 }))).setReaderPool(readers, 0).defineMetaData("Image")
+				.defineWriteOptions().tileSize(64, 64).nResolutionLevels(1)
+				.compression("JPEG").passthrough().savePath(file.getAbsolutePath())
+				.create();
+			exporter.export();
+		}
+		finally {
+			readers.shutDown(sourceReader -> {
+				try {
+					sourceReader.close();
+				}
+				catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+		}
+
+		assertEquals(4 * 3, exporter.passthroughTiles.copied());
+		assertEquals(0, exporter.passthroughTiles.missed());
+		reader = open(file, 0);
+		try {
+			double[] plane = readPlane(reader, 0);
+			for (int i = 0; i < plane.length; i++) {
+				assertEquals("pixel " + i, sourcePlane[i], plane[i], 0);
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/** @return the directory of resolution level 1 of a single plane file */
+	private static BigTiffFile.Directory level1(BigTiffFile tiff) {
+		for (BigTiffFile.Directory directory : tiff.directories) {
+			if (!tiff.mainDirectories.contains(directory)) return directory;
+		}
+		return null;
+	}
+
+	private static long sum(long[] values) {
+		long sum = 0;
+		for (long value : values) sum += value;
+		return sum;
+	}
+
+	/**
+	 * The automatic compression picks one of the lossless compressions
+	 * Bio-Formats reads, and the pixels read back unchanged
+	 */
+	@Test
+	public void automaticCompressionIsLossless() throws Exception {
+		int sizeX = 613, sizeY = 427;
+		File file = new File(folder.getRoot(), "auto.ome.tiff");
+		OMETiffExporter.builder().putXYZRAI(gray16Image(sizeX, sizeY))
+			.defineMetaData("Image").defineWriteOptions().tileSize(64, 64)
+			.nResolutionLevels(2).autoCompression().savePath(file.getAbsolutePath())
+			.create().export();
+
+		try (FileChannel channel = FileChannel.open(file.toPath())) {
+			BigTiffFile tiff = BigTiffFile.read(channel);
+			long code = tiff.get(tiff.mainDirectories.get(0), BigTiffFile.COMPRESSION,
+				1);
+			assertTrue("compression " + code, code == 1 || code == 5 || code == 8);
+		}
+		assertEquals("only the export should be left in the folder", 1, folder
+			.getRoot().list().length);
+
+		ImageReader reader = open(file, 0);
+		try {
+			double[] plane = readPlane(reader, 0);
+			for (int y = 0; y < sizeY; y++) {
+				for (int x = 0; x < sizeX; x++) {
+					assertEquals("pixel (" + x + ", " + y + ")", value16(x, y), plane[y *
+						sizeX + x], 0);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * The automatic compression reads its sample when exporting, not when the
+	 * exporter is created, and measures the disk once per directory
+	 */
+	@Test
+	public void automaticCompressionSamplesOnExport() throws Exception {
+		AtomicLong reads = new AtomicLong();
+		FunctionRandomAccessible<UnsignedShortType> fn =
+			new FunctionRandomAccessible<>(2, (position, pixel) -> {
+				reads.incrementAndGet();
+				pixel.set(value16(position.getIntPosition(0), position.getIntPosition(
+					1)));
+			}, UnsignedShortType::new);
+		File file = new File(folder.getRoot(), "autolazy.ome.tiff");
+		OMETiffExporter exporter = OMETiffExporter.builder().putXYZRAI(Views
+			.interval(fn, new FinalInterval(new long[] { 0, 0 }, new long[] { 255,
+				255 }))).defineMetaData("Image").defineWriteOptions().tileSize(64, 64)
+			.nResolutionLevels(1).autoCompression().savePath(file.getAbsolutePath())
+			.create();
+		// The pixel type is taken from the first pixel, and that is all
+		assertTrue(reads.get() <= 1);
+		exporter.export();
+		assertTrue(reads.get() > 1);
+
+		assertEquals(AutoCompression.writeBandwidth(folder.getRoot()),
+			AutoCompression.writeBandwidth(folder.getRoot()), 0);
+		assertEquals("only the export should be left in the folder", 1, folder
+			.getRoot().list().length);
+	}
+
+	/**
+	 * A slide-like image: a pattern in the top left corner, a constant
+	 * background everywhere else
+	 */
+	private static int valueSlide(int x, int y) {
+		return x < 100 && y < 100 ? value16(x, y) : 1000;
+	}
+
+	/**
+	 * The background tiles of a level all point at the same bytes, and read
+	 * back as background
+	 */
+	@Test
+	public void constantTilesAreStoredOnce() throws Exception {
+		int sizeX = 613, sizeY = 427;
+		FunctionRandomAccessible<UnsignedShortType> fn =
+			new FunctionRandomAccessible<>(2, (position, pixel) -> pixel.set(
+				valueSlide(position.getIntPosition(0), position.getIntPosition(1))),
+				UnsignedShortType::new);
+		File file = new File(folder.getRoot(), "background.ome.tiff");
+		OMETiffExporter.builder().putXYZRAI(Views.interval(fn, new FinalInterval(
+			new long[] { 0, 0 }, new long[] { sizeX - 1, sizeY - 1 })))
+			.defineMetaData("Image").defineWriteOptions().tileSize(64, 64)
+			.nResolutionLevels(2).lzw().cloudOptimizedLayout().savePath(file
+				.getAbsolutePath()).create().export();
+
+		try (FileChannel channel = FileChannel.open(file.toPath())) {
+			BigTiffFile tiff = BigTiffFile.read(channel);
+			long[] offsets = tiff.longs(tiff.mainDirectories.get(0).offsetsEntry());
+			// 10 x 7 tiles of 64: 0, 1, 10 and 11 hold the pattern, and the last
+			// column and row are partial
+			assertTrue(offsets[0] != offsets[2]);
+			assertEquals(offsets[2], offsets[3]);
+			assertEquals(offsets[2], offsets[5 * 10 + 5]);
+			assertTrue(offsets[2] != offsets[9]);
+		}
+
+		ImageReader reader = open(file, 0);
+		try {
+			double[] plane = readPlane(reader, 0);
+			for (int y = 0; y < sizeY; y++) {
+				for (int x = 0; x < sizeX; x++) {
+					assertEquals("pixel (" + x + ", " + y + ")", valueSlide(x, y), plane[y *
+						sizeX + x], 0);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	private File exportSlide(String name, boolean cloudOptimized)
+		throws Exception
+	{
+		FunctionRandomAccessible<UnsignedShortType> fn =
+			new FunctionRandomAccessible<>(2, (position, pixel) -> pixel.set(
+				valueSlide(position.getIntPosition(0), position.getIntPosition(1))),
+				UnsignedShortType::new);
+		File file = new File(folder.getRoot(), name);
+		OMETiffExporter.OMETiffExporterBuilder.WriterOptions.WriterOptionsBuilder options =
+			OMETiffExporter.builder().putXYZRAI(Views.interval(fn, new FinalInterval(
+				new long[] { 0, 0 }, new long[] { 612, 426 }))).defineMetaData("Image")
+				.defineWriteOptions().tileSize(64, 64).nResolutionLevels(2).lzw();
+		if (cloudOptimized) options.cloudOptimizedLayout();
+		options.savePath(file.getAbsolutePath()).create().export();
+		return file;
+	}
+
+	/**
+	 * Sharing the background tiles shrinks the file: the cloud optimised layout
+	 * leaves the repeats behind. Without it, they are not shared at all
+	 */
+	@Test
+	public void sharedConstantTilesShrinkTheFile() throws Exception {
+		File shared = exportSlide("shared.ome.tiff", true);
+		File notShared;
+		System.setProperty("kheops.shareConstantTiles", "false");
+		try {
+			notShared = exportSlide("not-shared.ome.tiff", true);
+		}
+		finally {
+			System.clearProperty("kheops.shareConstantTiles");
+		}
+		// 66 of the 70 tiles of level 0 are background
+		assertTrue(shared.length() + " vs " + notShared.length(), shared
+			.length() < notShared.length());
+
+		File rowMajor = exportSlide("row-major.ome.tiff", false);
+		try (FileChannel channel = FileChannel.open(rowMajor.toPath())) {
+			BigTiffFile tiff = BigTiffFile.read(channel);
+			long[] offsets = tiff.longs(tiff.mainDirectories.get(0).offsetsEntry());
+			assertTrue(offsets[2] != offsets[3]);
+		}
+	}
+
+	/** Repeats every 64 pixels along x, like a mosaic of identical fields */
+	private static int valueMosaic(int x, int y) {
+		return value16(x % 64, y);
+	}
+
+	/** Tiles with the same bytes point at a single copy once deduplicated */
+	@Test
+	public void repeatedTilesAreDeduplicated() throws Exception {
+		int sizeX = 613, sizeY = 427;
+		FunctionRandomAccessible<UnsignedShortType> fn =
+			new FunctionRandomAccessible<>(2, (position, pixel) -> pixel.set(
+				valueMosaic(position.getIntPosition(0), position.getIntPosition(1))),
+				UnsignedShortType::new);
+		File file = new File(folder.getRoot(), "mosaic.ome.tiff");
+		OMETiffExporter.builder().putXYZRAI(Views.interval(fn, new FinalInterval(
+			new long[] { 0, 0 }, new long[] { sizeX - 1, sizeY - 1 })))
+			.defineMetaData("Image").defineWriteOptions().tileSize(64, 64)
+			.nResolutionLevels(2).lzw().deduplicateTiles(1024).savePath(file
+				.getAbsolutePath()).create().export();
+		File copies = new File(folder.getRoot(), "mosaic-copies.ome.tiff");
+		OMETiffExporter.builder().putXYZRAI(Views.interval(fn, new FinalInterval(
+			new long[] { 0, 0 }, new long[] { sizeX - 1, sizeY - 1 })))
+			.defineMetaData("Image").defineWriteOptions().tileSize(64, 64)
+			.nResolutionLevels(2).lzw().cloudOptimizedLayout().savePath(copies
+				.getAbsolutePath()).create().export();
+		assertTrue("the repeats are dropped", file.length() < copies.length());
+
+		try (FileChannel channel = FileChannel.open(file.toPath())) {
+			BigTiffFile tiff = BigTiffFile.read(channel);
+			long[] offsets = tiff.longs(tiff.mainDirectories.get(0).offsetsEntry());
+			// 10 x 7 tiles of 64: the full tiles of a row are all the same, the
+			// rows all differ, and the last column is partial
+			for (int y = 0; y < 7; y++) {
+				for (int x = 1; x < 9; x++) {
+					assertEquals(offsets[y * 10], offsets[y * 10 + x]);
+				}
+				assertTrue(offsets[y * 10] != offsets[y * 10 + 9]);
+				if (y > 0) assertTrue(offsets[y * 10] != offsets[(y - 1) * 10]);
+			}
+		}
+
+		ImageReader reader = open(file, 0);
+		try {
+			double[] plane = readPlane(reader, 0);
+			for (int y = 0; y < sizeY; y++) {
+				for (int x = 0; x < sizeX; x++) {
+					assertEquals("pixel (" + x + ", " + y + ")", valueMosaic(x, y),
+						plane[y * sizeX + x], 0);
+				}
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
 	/** Float pixels should be exported untouched */
 	@Test
 	public void floatPixelsAreUnchanged() throws Exception {
@@ -565,6 +1246,26 @@ public class OMETiffExporterTest {
 			.uncompressed().savePath(file
 				.getAbsolutePath()).create().export();
 
+		assertRgbLevelIsDownsampled(file);
+	}
+
+	/**
+	 * Compressed, the downsampled RGB levels are interleaved by the workers
+	 * before they are handed over: partial tiles included, they should hold the
+	 * same averages
+	 */
+	@Test
+	public void precompressedRgbPyramidLevelsAreDownsampled() throws Exception {
+		int sizeX = 300, sizeY = 170;
+		File file = new File(folder.getRoot(), "rgbpyrlzw.ome.tiff");
+		OMETiffExporter.builder().putXYZRAI(rgbImage(sizeX, sizeY)).defineMetaData(
+			"Image").defineWriteOptions().tileSize(64, 64).nResolutionLevels(2)
+			.lzw().savePath(file.getAbsolutePath()).create().export();
+
+		assertRgbLevelIsDownsampled(file);
+	}
+
+	private static void assertRgbLevelIsDownsampled(File file) throws Exception {
 		ImageReader reader = open(file, 1);
 		try {
 			int width = reader.getSizeX();
@@ -643,6 +1344,60 @@ public class OMETiffExporterTest {
 		}
 	}
 
+	/**
+	 * The Plane elements are streamed into the OME-XML once the writer is
+	 * closed: each plane should still come back with its own C, Z, T and stage
+	 * position.
+	 */
+	@Test
+	public void planeMetadataIsKept() throws Exception {
+		int sizeX = 40, sizeY = 30, sizeZ = 3, sizeC = 2, sizeT = 2;
+		File file = new File(folder.getRoot(), "planes.ome.tiff");
+		@SuppressWarnings("rawtypes")
+		OMETiffExporter.OMETiffExporterBuilder.Data.DataBuilder data =
+			OMETiffExporter.builder();
+		for (int c = 0; c < sizeC; c++) {
+			for (int t = 0; t < sizeT; t++) {
+				data.putXYZRAI(c, t, (RandomAccessibleInterval) cztImage(sizeX, sizeY,
+					sizeZ, c, t));
+			}
+		}
+		OMETiffExporter.OMETiffExporterBuilder.MetaData.MetaDataBuilder meta = data
+			.defineMetaData("Image");
+		int planes = sizeZ * sizeC * sizeT;
+		for (int p = 0; p < planes; p++) {
+			meta.planePositionMicrometer(p, 2 * p, 0.5, p);
+		}
+		meta.defineWriteOptions().tileSize(64, 64).nResolutionLevels(2)
+			.savePath(file.getAbsolutePath()).create().export();
+
+		IMetadata omeMeta = MetadataTools.createOMEXMLMetadata();
+		ImageReader reader = new ImageReader();
+		reader.setMetadataStore(omeMeta);
+		reader.setId(file.getAbsolutePath());
+		try {
+			assertEquals(planes, omeMeta.getPlaneCount(0));
+			for (int t = 0; t < sizeT; t++) {
+				for (int c = 0; c < sizeC; c++) {
+					for (int z = 0; z < sizeZ; z++) {
+						int p = t * sizeZ * sizeC + c * sizeZ + z;
+						assertEquals(c, omeMeta.getPlaneTheC(0, p).getValue().intValue());
+						assertEquals(z, omeMeta.getPlaneTheZ(0, p).getValue().intValue());
+						assertEquals(t, omeMeta.getPlaneTheT(0, p).getValue().intValue());
+						assertEquals(2 * p, omeMeta.getPlanePositionY(0, p).value()
+							.doubleValue(), 0);
+					}
+				}
+			}
+			// And the pixels are still found where the TiffData says
+			double[] plane = readPlane(reader, reader.getIndex(2, 1, 1));
+			assertEquals(valueCZT(5, 7, 1, 2, 1), plane[7 * sizeX + 5], 0);
+		}
+		finally {
+			reader.close();
+		}
+	}
+
 	// ---------------------------------------------------------------- no tiling
 
 	/**
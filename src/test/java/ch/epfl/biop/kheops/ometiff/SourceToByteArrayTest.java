@@ -21,18 +21,26 @@
  */
 package ch.epfl.biop.kheops.ometiff;
 
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImgs;
 import net.imglib2.position.FunctionRandomAccessible;
 import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.view.Views;
 import org.junit.Test;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 /**
@@ -193,6 +201,71 @@ public class SourceToByteArrayTest {
 		assertEquals(width * height, small.length);
 	}
 
+	// ------------------------------------------------ images held in arrays
+
+	private static <T extends RealType<T>> Img<T> fill(Img<T> image) {
+		Cursor<T> cursor = image.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.get().setReal(value(cursor.getIntPosition(0), cursor
+				.getIntPosition(1)) + cursor.getIntPosition(2));
+		}
+		return image;
+	}
+
+	/**
+	 * Checks that the tiles copied in bulk from an image are the tiles the
+	 * cursor gives, across the cell borders and at the edges of the image
+	 */
+	private static <T> void assertSameTiles(Img<T> image, T pixelInstance) {
+		int[][] tiles = { { 0, 0, 16, 16 }, { 5, 9, 23, 17 }, { 48, 32, 16, 16 } };
+		for (int z = 0; z < image.dimension(2); z++) {
+			for (int[] tile : tiles) {
+				byte[] expected = SourceToByteArray.raiToByteArray(tile(Views
+					.hyperSlice(image, 2, z), tile[0], tile[1], tile[2], tile[3]),
+					pixelInstance);
+				assertArrayEquals("tile at " + tile[0] + ", " + tile[1] + ", " + z,
+					expected, SourceToByteArray.tileToByteArray(image, z, tile[0],
+						tile[1], tile[2], tile[3], pixelInstance));
+			}
+		}
+	}
+
+	@Test
+	public void arrayImgIsCopiedInBulk() {
+		assertSameTiles(fill(ArrayImgs.unsignedShorts(64, 48, 3)),
+			new UnsignedShortType());
+		assertSameTiles(fill(ArrayImgs.floats(64, 48, 3)), new FloatType());
+	}
+
+	@Test
+	public void planarImgIsCopiedInBulk() {
+		assertSameTiles(fill(PlanarImgs.unsignedBytes(64, 48, 3)),
+			new UnsignedByteType());
+	}
+
+	@Test
+	public void cellImgIsCopiedInBulk() {
+		assertSameTiles(fill(new CellImgFactory<>(new UnsignedShortType(), 10, 7,
+			2).create(64, 48, 3)), new UnsignedShortType());
+		Img<ARGBType> argb = new CellImgFactory<>(new ARGBType(), 10, 7, 2).create(
+			64, 48, 3);
+		Cursor<ARGBType> cursor = argb.localizingCursor();
+		while (cursor.hasNext()) {
+			cursor.fwd();
+			cursor.get().set(0xff000000 | value(cursor.getIntPosition(0), cursor
+				.getIntPosition(1)) * 251 + cursor.getIntPosition(2));
+		}
+		assertSameTiles(argb, new ARGBType());
+	}
+
+	@Test
+	public void viewsAreLeftToTheCursor() {
+		Img<UnsignedShortType> image = fill(ArrayImgs.unsignedShorts(64, 48, 3));
+		assertNull(SourceToByteArray.tileToByteArray(Views.interval(image, image),
+			0, 0, 0, 16, 16, new UnsignedShortType()));
+	}
+
 	/** A 3D image is sliced by the exporter before being converted */
 	@Test
 	public void hyperSliceOfA3DImage() {
@@ -0,0 +1,134 @@
+/*-
+ * #%L
+ * IJ2 commands that use bio-formats to create pyramidal ome.tiff
+ * %%
+ * Copyright (C) 2018 - 2026 ECOLE POLYTECHNIQUE FEDERALE DE LAUSANNE, Switzerland, BioImaging And Optics Platform (BIOP)
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package ch.epfl.biop.kheops.ometiff;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link TilePrefetcher}: every tile is read once, by the prefetcher
+ * or by the worker, and never more than the distance ahead.
+ */
+public class TilePrefetcherTest {
+
+	private static byte[] tile(long index) {
+		return new byte[] { (byte) index, (byte) (index >> 8) };
+	}
+
+	@Test
+	public void tilesAreReadAheadOnce() {
+		int nTiles = 100, distance = 4;
+		Map<Long, AtomicInteger> reads = new ConcurrentHashMap<>();
+		TilePrefetcher prefetcher = new TilePrefetcher(distance, 2, nTiles,
+			index -> {
+				reads.computeIfAbsent(index, i -> new AtomicInteger())
+					.incrementAndGet();
+				return tile(index);
+			}, "test");
+		try {
+			for (long index = 0; index < nTiles; index++) {
+				byte[] tile = prefetcher.take(index);
+				if (index == 0) {
+					// Nothing was read ahead of the first tile
+					assertNull(tile);
+					tile = tile(index);
+				}
+				assertArrayEquals(tile(index), tile);
+				long last = index + distance;
+				assertTrue("read too far ahead", reads.keySet().stream().allMatch(
+					i -> i <= last));
+			}
+			assertEquals(nTiles - 1, prefetcher.hits());
+			assertEquals(1, prefetcher.misses());
+			assertEquals(nTiles - 1, reads.size());
+			reads.values().forEach(count -> assertEquals(1, count.get()));
+		}
+		finally {
+			prefetcher.shutdown();
+		}
+	}
+
+	@Test
+	public void aFailedReadIsLeftToTheWorker() {
+		TilePrefetcher prefetcher = new TilePrefetcher(2, 1, 10, index -> {
+			if (index == 1) throw new IllegalStateException("decoding failed");
+			return tile(index);
+		}, "test");
+		try {
+			assertNull(prefetcher.take(0));
+			assertNull(prefetcher.take(1));
+			assertArrayEquals(tile(2), prefetcher.take(2));
+		}
+		finally {
+			prefetcher.shutdown();
+		}
+	}
+
+	/**
+	 * An interrupted read leaves its reader closed, and it goes back to the
+	 * shared pool: a shutdown lets the read under way finish, and only drops
+	 * the ones not started
+	 */
+	@Test
+	public void shutdownDoesNotInterruptTheReadUnderWay() throws Exception {
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch finished = new CountDownLatch(1);
+		AtomicBoolean interrupted = new AtomicBoolean();
+		Map<Long, AtomicInteger> reads = new ConcurrentHashMap<>();
+		TilePrefetcher prefetcher = new TilePrefetcher(3, 1, 10, index -> {
+			reads.computeIfAbsent(index, i -> new AtomicInteger()).incrementAndGet();
+			if (index == 1) {
+				started.countDown();
+				try {
+					release.await();
+				}
+				catch (InterruptedException e) {
+					interrupted.set(true);
+				}
+				finished.countDown();
+			}
+			return tile(index);
+		}, "test");
+		assertNull(prefetcher.take(0));
+		started.await();
+		prefetcher.shutdown();
+		release.countDown();
+		finished.await();
+		assertFalse("the read under way was interrupted", interrupted.get());
+		// Leaves the thread the time to start the reads it should not
+		Thread.sleep(100);
+		assertEquals(Collections.singleton(1L), reads.keySet());
+	}
+}